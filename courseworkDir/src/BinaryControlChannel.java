@@ -0,0 +1,238 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * BinaryControlChannel sends control messages as length-prefixed frames.
+ * Frames are built in one buffer per connection, so sending a reply does not allocate.
+ * The buffer is guarded by a ReentrantLock rather than a monitor, so a virtual thread blocked writing does not pin its carrier.
+ * Replies to a request with an ID set REQUEST_ID_FLAG on the opcode and carry the ID after it.
+ */
+public class BinaryControlChannel implements ControlChannel {
+  private final Encoder encoder; // Frame buffer and stream shared by every channel of the connection
+  private final long requestId; // Request ID of every message, or NO_REQUEST
+
+  /**
+   * Constructor for BinaryControlChannel.
+   *
+   * @param out stream of the connection
+   */
+  public BinaryControlChannel(OutputStream out) {
+    this(new Encoder(new BufferedOutputStream(out)), Protocol.NO_REQUEST);
+  }
+
+  private BinaryControlChannel(Encoder encoder, long requestId) {
+    this.encoder = encoder;
+    this.requestId = requestId;
+  }
+
+  /**
+   * Send the handshake reply: MAGIC and the version spoken by this build.
+   */
+  public void sendHandshake() {
+    encoder.lock.lock();
+    try {
+      encoder.out.write(Protocol.MAGIC);
+      encoder.out.write(Protocol.VERSION);
+      encoder.out.flush();
+    } catch (IOException e) {
+      System.out.println("Error sending handshake: " + e.getMessage());
+    } finally {
+      encoder.lock.unlock();
+    }
+  }
+
+  @Override
+  public ControlChannel forRequest(long requestId) {
+    return requestId == this.requestId ? this : new BinaryControlChannel(encoder, requestId);
+  }
+
+  @Override
+  public void send(byte opcode) {
+    encoder.lock.lock();
+    try {
+      encoder.start(opcode, requestId, 0);
+      encoder.finish();
+    } finally {
+      encoder.lock.unlock();
+    }
+  }
+
+  @Override
+  public void send(byte opcode, String argument) {
+    encoder.lock.lock();
+    try {
+      ByteBuffer body = encoder.start(opcode, requestId, 5 + argument.length() * 3);
+      Protocol.putString(body, argument);
+      encoder.finish();
+    } finally {
+      encoder.lock.unlock();
+    }
+  }
+
+  @Override
+  public void sendStoreTo(Protocol.Endpoint[] endpoints) {
+    encoder.lock.lock();
+    try {
+      ByteBuffer body = encoder.start(Protocol.STORE_TO, requestId, 5 + endpoints.length * 5);
+      Protocol.putVarint(body, endpoints.length);
+      for (Protocol.Endpoint endpoint : endpoints) {
+        body.put(endpoint.varint);
+      }
+      encoder.finish();
+    } finally {
+      encoder.lock.unlock();
+    }
+  }
+
+  @Override
+  public void sendLoadFrom(Protocol.Endpoint endpoint, long fileSize) {
+    encoder.lock.lock();
+    try {
+      ByteBuffer body = encoder.start(Protocol.LOAD_FROM, requestId, endpoint.varint.length + 10);
+      body.put(endpoint.varint);
+      Protocol.putVarint(body, fileSize);
+      encoder.finish();
+    } finally {
+      encoder.lock.unlock();
+    }
+  }
+
+  @Override
+  public void sendLoadFromAll(long fileSize, Protocol.Endpoint[] endpoints) {
+    encoder.lock.lock();
+    try {
+      ByteBuffer body = encoder.start(Protocol.LOAD_FROM_ALL, requestId, 15 + endpoints.length * 5);
+      Protocol.putVarint(body, fileSize);
+      Protocol.putVarint(body, endpoints.length);
+      for (Protocol.Endpoint endpoint : endpoints) {
+        body.put(endpoint.varint);
+      }
+      encoder.finish();
+    } finally {
+      encoder.lock.unlock();
+    }
+  }
+
+  @Override
+  public void sendParts(long chunkSize, int[] parts) {
+    encoder.lock.lock();
+    try {
+      ByteBuffer body = encoder.start(Protocol.STORE_PARTS, requestId, 15 + parts.length * 5);
+      Protocol.putVarint(body, chunkSize);
+      Protocol.putVarint(body, parts.length);
+      for (int part : parts) {
+        Protocol.putVarint(body, part);
+      }
+      encoder.finish();
+    } finally {
+      encoder.lock.unlock();
+    }
+  }
+
+  @Override
+  public void sendLoadParts(long fileSize, long chunkSize, Protocol.Endpoint[] endpoints) {
+    encoder.lock.lock();
+    try {
+      ByteBuffer body = encoder.start(Protocol.LOAD_PARTS, requestId, 25 + endpoints.length * 5);
+      Protocol.putVarint(body, fileSize);
+      Protocol.putVarint(body, chunkSize);
+      Protocol.putVarint(body, endpoints.length);
+      for (Protocol.Endpoint endpoint : endpoints) {
+        body.put(endpoint.varint);
+      }
+      encoder.finish();
+    } finally {
+      encoder.lock.unlock();
+    }
+  }
+
+  @Override
+  public void sendList(Iterable<String> filenames) {
+    String[] chunk = new String[Protocol.LIST_CHUNK];
+    Iterator<String> names = filenames.iterator();
+    encoder.lock.lock();
+    try {
+      do {
+        int count = 0;
+        int capacity = 6;
+        while (count < chunk.length && names.hasNext()) {
+          chunk[count] = names.next();
+          capacity += 5 + chunk[count].length() * 3;
+          count++;
+        }
+        boolean more = names.hasNext();
+        ByteBuffer body = encoder.start(Protocol.LIST, requestId, capacity);
+        Protocol.putVarint(body, count);
+        for (int i = 0; i < count; i++) {
+          Protocol.putString(body, chunk[i]);
+        }
+        body.put((byte) (more ? 1 : 0));
+        encoder.finish();
+      } while (names.hasNext());
+    } finally {
+      encoder.lock.unlock();
+    }
+  }
+
+  /**
+   * Frame buffer and stream of one connection. Callers hold its lock from start to finish.
+   */
+  private static final class Encoder {
+    private final ReentrantLock lock = new ReentrantLock(); // Held while a frame is built and written
+    private final OutputStream out; // Buffered stream of the connection
+    private final byte[] header = new byte[5]; // Varint length of the frame being sent
+    private ByteBuffer body = ByteBuffer.allocate(256); // Opcode, request ID and fields of the frame being sent
+
+    Encoder(OutputStream out) {
+      this.out = out;
+    }
+
+    /**
+     * Start a frame, growing the body buffer if the fields may not fit.
+     *
+     * @param opcode      the message opcode
+     * @param requestId   the request ID, or NO_REQUEST
+     * @param fieldsBound upper bound of the encoded size of the fields
+     * @return the body buffer to write the fields to
+     */
+    ByteBuffer start(byte opcode, long requestId, int fieldsBound) {
+      int bound = fieldsBound + 11;
+      if (body.capacity() < bound) {
+        body = ByteBuffer.allocate(Math.max(bound, body.capacity() * 2));
+      }
+      body.clear();
+      if (requestId == Protocol.NO_REQUEST) {
+        body.put(opcode);
+      } else {
+        body.put((byte) (opcode | Protocol.REQUEST_ID_FLAG));
+        Protocol.putVarint(body, requestId);
+      }
+      return body;
+    }
+
+    /**
+     * Write the length prefix and the body of the current frame and flush them.
+     */
+    void finish() {
+      int length = body.position();
+      int headerLength = 0;
+      long value = length;
+      while ((value & ~0x7FL) != 0) {
+        header[headerLength++] = (byte) ((value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+      header[headerLength++] = (byte) value;
+      try {
+        out.write(header, 0, headerLength);
+        out.write(body.array(), 0, length);
+        out.flush();
+      } catch (IOException e) {
+        System.out.println("Error sending " + Protocol.verb((byte) (body.get(0) & ~Protocol.REQUEST_ID_FLAG)) + ": " + e.getMessage());
+      }
+    }
+  }
+}
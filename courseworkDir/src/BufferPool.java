@@ -0,0 +1,53 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * BufferPool hands out fixed-size direct buffers and keeps released ones for reuse,
+ * so streaming transfers use a constant amount of memory regardless of file size.
+ */
+public class BufferPool {
+  private final int bufferSize; // Capacity of every buffer
+  private final int maxPooled; // Maximum number of idle buffers kept for reuse
+  private final ConcurrentLinkedQueue<ByteBuffer> idleBuffers = new ConcurrentLinkedQueue<>(); // Buffers ready for reuse
+  private final AtomicInteger idleCount = new AtomicInteger(); // Number of buffers in idleBuffers
+
+  /**
+   * Constructor for BufferPool.
+   *
+   * @param bufferSize capacity of every buffer in bytes
+   * @param maxPooled  maximum number of idle buffers kept for reuse
+   */
+  public BufferPool(int bufferSize, int maxPooled) {
+    this.bufferSize = bufferSize;
+    this.maxPooled = maxPooled;
+  }
+
+  /**
+   * Take a cleared buffer from the pool, allocating a new one if none is idle.
+   *
+   * @return a direct buffer of bufferSize bytes
+   */
+  public ByteBuffer acquire() {
+    ByteBuffer buffer = idleBuffers.poll();
+    if (buffer == null) {
+      return ByteBuffer.allocateDirect(bufferSize);
+    }
+    idleCount.decrementAndGet();
+    buffer.clear();
+    return buffer;
+  }
+
+  /**
+   * Return a buffer to the pool. Buffers beyond maxPooled are left to the garbage collector.
+   *
+   * @param buffer the buffer to return
+   */
+  public void release(ByteBuffer buffer) {
+    if (buffer.capacity() == bufferSize && idleCount.incrementAndGet() <= maxPooled) {
+      idleBuffers.offer(buffer);
+    } else if (buffer.capacity() == bufferSize) {
+      idleCount.decrementAndGet();
+    }
+  }
+}
@@ -0,0 +1,105 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.zip.CRC32C;
+
+/**
+ * ChecksumBenchmark measures what the CRC32C computed on the store path costs.
+ * It streams data through a direct buffer of the Dstore's default size, the way processStore does, once without
+ * and once with crc.update on each chunk while it is in the buffer. The sink is either another buffer, the worst
+ * case for the relative overhead, or a file in the temporary directory, as on a real store.
+ * Each case reports its best of several rounds, alternating which run goes first, since a file run is slower
+ * right after the previous one truncated the file.
+ * Usage: java ChecksumBenchmark [megabytes per run] [buffer bytes]
+ */
+public class ChecksumBenchmark {
+
+  /**
+   * Run the benchmark.
+   *
+   * @param args megabytes streamed per run and the buffer size
+   * @throws IOException if the temporary file cannot be written
+   */
+  public static void main(String[] args) throws IOException {
+    int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+    int bufferSize = args.length > 1 ? Integer.parseInt(args[1]) : 64 * 1024;
+    byte[] source = new byte[bufferSize * 16];
+    new Random(42).nextBytes(source);
+    ByteBuffer buffer = ByteBuffer.allocateDirect(bufferSize);
+    ByteBuffer memorySink = ByteBuffer.allocateDirect(bufferSize);
+    long total = (long) megabytes * 1024 * 1024;
+    Path file = Files.createTempFile("checksum-benchmark", ".bin");
+    System.out.println(megabytes + " MiB per run, " + bufferSize + " byte buffer");
+    try (FileChannel out = FileChannel.open(file, StandardOpenOption.WRITE)) {
+      double[] best = new double[4];  // Plain and checksummed MiB/s into memory, then into the file
+      for (int round = 0; round < 6; round++) {  // Best of several rounds, alternating which run goes first
+        for (int i = 0; i < 2; i++) {
+          boolean checked = (round + i) % 2 == 1;
+          CRC32C crc = checked ? new CRC32C() : null;
+          int slot = checked ? 1 : 0;
+          best[slot] = Math.max(best[slot], stream(source, buffer, total, crc, memorySink, null));
+          best[slot + 2] = Math.max(best[slot + 2], stream(source, buffer, total, crc, null, out));
+        }
+      }
+      report("memory", best[0], best[1]);
+      report("file", best[2], best[3]);
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  /**
+   * Stream bytes through the buffer into a sink, optionally checksumming each chunk.
+   *
+   * @param source     bytes to copy from, repeatedly
+   * @param buffer     the transfer buffer
+   * @param total      number of bytes to stream
+   * @param crc        checksum to update, or null
+   * @param memorySink buffer to copy each chunk to, or null
+   * @param fileSink   file to write each chunk to, or null
+   * @return throughput in MiB/s
+   * @throws IOException if the file cannot be written
+   */
+  private static double stream(byte[] source, ByteBuffer buffer, long total, CRC32C crc, ByteBuffer memorySink, FileChannel fileSink) throws IOException {
+    if (fileSink != null) {
+      fileSink.truncate(0);  // Each run allocates the file's pages afresh, as a new store does
+    }
+    long start = System.nanoTime();
+    for (long sent = 0; sent < total; sent += buffer.capacity()) {
+      buffer.clear();
+      buffer.put(source, (int) (sent % source.length), buffer.capacity());
+      buffer.flip();
+      if (crc != null) {
+        crc.update(buffer.duplicate());
+      }
+      if (memorySink != null) {
+        memorySink.clear();
+        memorySink.put(buffer);
+      } else {
+        while (buffer.hasRemaining()) {
+          fileSink.write(buffer);
+        }
+      }
+    }
+    double seconds = (System.nanoTime() - start) / 1e9;
+    if (crc != null && crc.getValue() == 42) {
+      System.out.println();  // Keeps the checksum from being optimised away
+    }
+    return total / 1048576.0 / seconds;
+  }
+
+  /**
+   * Print the throughput with and without the checksum, and the overhead.
+   *
+   * @param sink    name of the sink
+   * @param plain   MiB/s without the checksum
+   * @param checked MiB/s with the checksum
+   */
+  private static void report(String sink, double plain, double checked) {
+    System.out.printf("%-6s plain %8.0f MiB/s  crc32c %8.0f MiB/s  overhead %5.1f%%%n", sink, plain, checked, (plain / checked - 1) * 100);
+  }
+}
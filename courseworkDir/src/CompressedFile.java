@@ -0,0 +1,407 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * CompressedFile writes and reads the format of files the Dstore stores compressed: the contents are cut into
+ * fixed-size blocks, each deflated on its own behind a four-byte length, followed by an index of where each block
+ * starts and a footer giving the size of the contents. Since every block decompresses on its own, a range is read by
+ * looking its first block up in the index, without decompressing anything before it.
+ * A block that does not shrink is stored as it is, marked in its length, and a file whose first block does not shrink
+ * by an eighth is not compressed at all, so data that is already compressed costs one block of work and stays plain.
+ * Corrupt compressed data is reported as a ZipException, so callers can tell it from other I/O errors.
+ */
+public final class CompressedFile {
+  private static final int MAGIC = 0x445A4631; // "DZF1", last bytes of a compressed file
+  private static final int FOOTER_LENGTH = 8 + 4 + 4 + 4; // Size of the contents, block size, block count, magic
+  private static final int RAW = 0x80000000; // Block length flag of a block stored uncompressed
+  private static final int MAX_BLOCK_SIZE = 16 * 1024 * 1024; // Largest block size a footer may declare
+
+  private CompressedFile() {
+  }
+
+  /**
+   * Where the blocks of a compressed file are, read from its footer.
+   *
+   * @param size       size of the contents
+   * @param blockSize  size of each block but the last before compression
+   * @param blocks     number of blocks
+   * @param indexStart position of the index of block offsets in the file
+   */
+  private record Footer(long size, int blockSize, int blocks, long indexStart) {
+
+    /**
+     * Gets the size of a block before compression.
+     *
+     * @param block the index of the block
+     * @return its size, smaller for the last block
+     */
+    int blockLength(int block) {
+      return (int) Math.min(blockSize, size - (long) block * blockSize);
+    }
+  }
+
+  /**
+   * Writer compresses the contents of one file as they are streamed to it. Nothing is written until the first block
+   * is full, since that block decides whether the file is compressed or written as it is.
+   */
+  public static class Writer implements Closeable {
+    private final WritableByteChannel out; // The file being written, positioned at its start
+    private final CompressionMetrics metrics; // Counters the blocks and the file are recorded in
+    private final Deflater deflater; // Compresses one block at a time
+    private final byte[] block; // Contents of the block being filled
+    private final byte[] packed; // Compressed block; one that does not fit is stored as it is
+    private final ByteBuffer length = ByteBuffer.allocate(4); // Length written before each block
+    private long[] offsets = new long[64]; // Position of each block written
+    private int blocks; // Number of blocks written
+    private int filled; // Bytes of the current block filled
+    private long size; // Bytes of contents written
+    private long written; // Bytes written to the file
+    private boolean plain; // Whether the file is being written as it is
+
+    /**
+     * Constructor for Writer.
+     *
+     * @param out       the channel of the empty file to write
+     * @param blockSize the size of each block before compression
+     * @param level     the Deflater compression level
+     * @param metrics   the counters to record the compression in
+     */
+    public Writer(WritableByteChannel out, int blockSize, int level, CompressionMetrics metrics) {
+      if (blockSize < 1 || blockSize > MAX_BLOCK_SIZE) {
+        throw new IllegalArgumentException("Unsupported block size " + blockSize);
+      }
+      this.out = out;
+      this.metrics = metrics;
+      this.deflater = new Deflater(level, true);
+      this.block = new byte[blockSize];
+      this.packed = new byte[blockSize];
+    }
+
+    /**
+     * Write contents to the file.
+     *
+     * @param contents the bytes from its position to its limit, all of which are consumed
+     * @throws IOException if the file cannot be written
+     */
+    public void write(ByteBuffer contents) throws IOException {
+      size += contents.remaining();
+      if (plain) {
+        writeFully(out, contents);
+        return;
+      }
+      while (contents.hasRemaining()) {
+        int count = Math.min(contents.remaining(), block.length - filled);
+        contents.get(block, filled, count);
+        filled += count;
+        if (filled == block.length) {
+          writeBlock();
+        }
+      }
+    }
+
+    /**
+     * Write the last block, then the index and footer, once all the contents are written.
+     *
+     * @return true if the file is compressed, false if it was written as it is
+     * @throws IOException if the file cannot be written
+     */
+    public boolean finish() throws IOException {
+      if (!plain && filled > 0) {
+        writeBlock();
+      }
+      if (plain || blocks == 0) {
+        metrics.recordFile(size, size, false);
+        return false;
+      }
+      ByteBuffer trailer = ByteBuffer.allocate(blocks * 8 + FOOTER_LENGTH);
+      for (int i = 0; i < blocks; i++) {
+        trailer.putLong(offsets[i]);
+      }
+      trailer.putLong(size).putInt(block.length).putInt(blocks).putInt(MAGIC).flip();
+      written += trailer.remaining();
+      writeFully(out, trailer);
+      metrics.recordFile(size, written, true);
+      return true;
+    }
+
+    /**
+     * Compress the filled block and write it, or write it as it is if it does not shrink.
+     * After the first block, the whole file is written as it is if that block did not shrink by an eighth.
+     *
+     * @throws IOException if the file cannot be written
+     */
+    private void writeBlock() throws IOException {
+      long start = CompressionMetrics.cpuTime();
+      deflater.reset();
+      deflater.setInput(block, 0, filled);
+      deflater.finish();
+      int packedLength = 0;
+      while (!deflater.finished() && packedLength < packed.length) {
+        packedLength += deflater.deflate(packed, packedLength, packed.length - packedLength);
+      }
+      boolean raw = !deflater.finished() || packedLength >= filled;
+      metrics.recordCompression(filled, CompressionMetrics.cpuTime() - start);
+
+      if (blocks == 0 && (raw || packedLength + 4 + 8 + FOOTER_LENGTH > filled - filled / 8)) {
+        plain = true;
+        writeFully(out, ByteBuffer.wrap(block, 0, filled));
+        filled = 0;
+        return;
+      }
+      if (blocks == offsets.length) {
+        offsets = Arrays.copyOf(offsets, blocks * 2);
+      }
+      offsets[blocks++] = written;
+      length.clear().putInt(raw ? filled | RAW : packedLength).flip();
+      writeFully(out, length);
+      writeFully(out, ByteBuffer.wrap(raw ? block : packed, 0, raw ? filled : packedLength));
+      written += 4 + (raw ? filled : packedLength);
+      filled = 0;
+    }
+
+    /**
+     * Release the compressor. The file itself is closed by its owner.
+     */
+    @Override
+    public void close() {
+      deflater.end();
+    }
+  }
+
+  /**
+   * Open a compressed file for reading its contents from an offset.
+   *
+   * @param path    the compressed file
+   * @param offset  the first byte of the contents to read
+   * @param metrics the counters to record decompression in
+   * @return a stream of the contents from the offset to the end
+   * @throws IOException if the file cannot be read, or a ZipException if it is not a compressed file
+   */
+  public static InputStream open(Path path, long offset, CompressionMetrics metrics) throws IOException {
+    FileChannel in = FileChannel.open(path, StandardOpenOption.READ);
+    try {
+      Footer footer = readFooter(in);
+      if (footer == null) {
+        throw new ZipException("Not a compressed file");
+      }
+      return new BlockInputStream(in, footer, offset, metrics);
+    } catch (IOException | RuntimeException e) {
+      in.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Read all the contents of a compressed file into a direct buffer.
+   *
+   * @param path    the compressed file
+   * @param metrics the counters to record decompression in
+   * @return a buffer holding the contents from position 0 to its limit
+   * @throws IOException if the file cannot be read, or a ZipException if it is corrupt
+   */
+  public static ByteBuffer readAll(Path path, CompressionMetrics metrics) throws IOException {
+    try (InputStream in = open(path, 0, metrics)) {
+      BlockInputStream blocks = (BlockInputStream) in;
+      ByteBuffer contents = ByteBuffer.allocateDirect(Math.toIntExact(blocks.footer.size()));
+      byte[] buffer = new byte[blocks.footer.blockSize()];
+      int count;
+      while ((count = in.read(buffer)) != -1) {
+        contents.put(buffer, 0, count);
+      }
+      return contents.flip();
+    }
+  }
+
+  /**
+   * Gets the size of the contents of a file, if it is a compressed file.
+   *
+   * @param path the file
+   * @return the size of its contents, or -1 if it is not a compressed file or cannot be read
+   */
+  public static long contentSize(Path path) {
+    try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+      Footer footer = readFooter(in);
+      return footer == null ? -1 : footer.size();
+    } catch (IOException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Read and check the footer of a file.
+   *
+   * @param in the file
+   * @return the footer, or null if the file does not end with a valid one
+   * @throws IOException if the file cannot be read
+   */
+  private static Footer readFooter(FileChannel in) throws IOException {
+    long fileSize = in.size();
+    if (fileSize < FOOTER_LENGTH) {
+      return null;
+    }
+    ByteBuffer footer = readFully(in, ByteBuffer.allocate(FOOTER_LENGTH), fileSize - FOOTER_LENGTH);
+    long size = footer.getLong();
+    int blockSize = footer.getInt();
+    int blocks = footer.getInt();
+    if (footer.getInt() != MAGIC || size <= 0 || blockSize < 1 || blockSize > MAX_BLOCK_SIZE
+        || blocks != (size + blockSize - 1) / blockSize) {
+      return null;
+    }
+    long indexStart = fileSize - FOOTER_LENGTH - 8L * blocks;
+    return indexStart < 0 ? null : new Footer(size, blockSize, blocks, indexStart);
+  }
+
+  /**
+   * Fill a buffer from a position of a file.
+   *
+   * @param in       the file
+   * @param buffer   the buffer to fill
+   * @param position the position to read from
+   * @return the buffer, flipped for reading
+   * @throws IOException if the file ends before the buffer is full
+   */
+  private static ByteBuffer readFully(FileChannel in, ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      if (in.read(buffer, position + buffer.position()) == -1) {
+        throw new ZipException("Compressed file ended early");
+      }
+    }
+    return buffer.flip();
+  }
+
+  /**
+   * Write a whole buffer to a channel.
+   *
+   * @param out    the channel
+   * @param buffer the buffer, written from its position to its limit
+   * @throws IOException if the write fails
+   */
+  private static void writeFully(WritableByteChannel out, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      out.write(buffer);
+    }
+  }
+
+  /**
+   * BlockInputStream decompresses a compressed file one block at a time, starting from the block holding an offset.
+   */
+  private static class BlockInputStream extends InputStream {
+    private final FileChannel in; // The compressed file
+    private final Footer footer; // Where its blocks are
+    private final CompressionMetrics metrics; // Counters decompression is recorded in
+    private final Inflater inflater = new Inflater(true); // Decompresses one block at a time
+    private final byte[] block; // Contents of the current block
+    private byte[] packed = new byte[0]; // Compressed bytes of the current block, grown as needed
+    private final ByteBuffer length = ByteBuffer.allocate(4); // Length read before each block
+    private int next; // Index of the next block to read
+    private long position; // Position of the next block in the file
+    private int start; // Next byte of the current block to return
+    private int end; // End of the current block's contents
+
+    /**
+     * Constructor for BlockInputStream.
+     *
+     * @param in      the compressed file
+     * @param footer  its footer
+     * @param offset  the first byte of the contents to return
+     * @param metrics the counters to record decompression in
+     * @throws IOException if the index cannot be read
+     */
+    BlockInputStream(FileChannel in, Footer footer, long offset, CompressionMetrics metrics) throws IOException {
+      this.in = in;
+      this.footer = footer;
+      this.metrics = metrics;
+      this.block = new byte[footer.blockSize()];
+      if (offset < footer.size()) {
+        next = (int) (offset / footer.blockSize());
+        position = readFully(in, ByteBuffer.allocate(8), footer.indexStart() + 8L * next).getLong();
+        readBlock();
+        start = (int) (offset % footer.blockSize());
+      } else {
+        next = footer.blocks();
+      }
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] one = new byte[1];
+      return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) throws IOException {
+      if (count == 0) {
+        return 0;
+      }
+      if (start == end) {
+        if (next == footer.blocks()) {
+          return -1;
+        }
+        readBlock();
+      }
+      int copied = Math.min(count, end - start);
+      System.arraycopy(block, start, buffer, offset, copied);
+      start += copied;
+      return copied;
+    }
+
+    /**
+     * Read and decompress the next block.
+     *
+     * @throws IOException if it cannot be read, or a ZipException if it is corrupt
+     */
+    private void readBlock() throws IOException {
+      int expected = footer.blockLength(next);
+      int stored = readFully(in, length.clear(), position).getInt();
+      boolean raw = (stored & RAW) != 0;
+      int storedLength = stored & ~RAW;
+      if (storedLength > (raw ? expected : footer.blockSize()) || storedLength < 0 || position + 4 + storedLength > footer.indexStart()) {
+        throw new ZipException("Corrupt block " + next + " length");
+      }
+      if (raw) {
+        readFully(in, ByteBuffer.wrap(block, 0, expected), position + 4);
+      } else {
+        if (packed.length < storedLength) {
+          packed = new byte[footer.blockSize()];
+        }
+        readFully(in, ByteBuffer.wrap(packed, 0, storedLength), position + 4);
+        long cpu = CompressionMetrics.cpuTime();
+        inflater.reset();
+        inflater.setInput(packed, 0, storedLength);
+        int inflated = 0;
+        try {
+          while (inflated < expected && !inflater.finished() && !inflater.needsInput()) {
+            inflated += inflater.inflate(block, inflated, expected - inflated);
+          }
+        } catch (DataFormatException e) {
+          throw new ZipException("Corrupt block " + next + ": " + e.getMessage());
+        }
+        if (inflated != expected) {
+          throw new ZipException("Corrupt block " + next + ": " + inflated + " of " + expected + " bytes");
+        }
+        metrics.recordDecompression(expected, CompressionMetrics.cpuTime() - cpu);
+      }
+      position += 4 + storedLength;
+      next++;
+      start = 0;
+      end = expected;
+    }
+
+    @Override
+    public void close() throws IOException {
+      inflater.end();
+      in.close();
+    }
+  }
+}
@@ -0,0 +1,124 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * CompressionMetrics counts what the Dstore's compression tier saves and what it costs: the bytes of the files
+ * compressed before and after compression, the files left as they are because they did not shrink, and the CPU time
+ * spent compressing and decompressing, so the ratio can be weighed against the throughput it leaves.
+ */
+public class CompressionMetrics {
+  private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean(); // Source of per-thread CPU time
+  private static final boolean CPU_TIME = THREADS.isCurrentThreadCpuTimeSupported() && THREADS.isThreadCpuTimeEnabled(); // Whether CPU time can be measured, otherwise wall time is used
+
+  private final LongAdder compressedFiles = new LongAdder(); // Files stored compressed
+  private final LongAdder skippedFiles = new LongAdder(); // Files stored as they are because they did not shrink
+  private final LongAdder originalBytes = new LongAdder(); // Bytes of the compressed files before compression
+  private final LongAdder storedBytes = new LongAdder(); // Bytes of the compressed files on disk, index included
+  private final LongAdder compressedBytes = new LongAdder(); // Bytes passed through the compressor, including files then skipped
+  private final LongAdder compressNanos = new LongAdder(); // CPU time spent compressing
+  private final LongAdder decompressedBytes = new LongAdder(); // Bytes produced by decompression
+  private final LongAdder decompressNanos = new LongAdder(); // CPU time spent decompressing
+
+  /**
+   * Gets the CPU time of the current thread, to be subtracted from a later reading.
+   *
+   * @return the thread's CPU time in nanoseconds, or the wall time if CPU time cannot be measured
+   */
+  public static long cpuTime() {
+    return CPU_TIME ? THREADS.getCurrentThreadCpuTime() : System.nanoTime();
+  }
+
+  /**
+   * Record one block passed through the compressor.
+   *
+   * @param bytes the block's length before compression
+   * @param nanos the CPU time compressing it took
+   */
+  public void recordCompression(long bytes, long nanos) {
+    compressedBytes.add(bytes);
+    compressNanos.add(nanos);
+  }
+
+  /**
+   * Record one block decompressed.
+   *
+   * @param bytes the block's length after decompression
+   * @param nanos the CPU time decompressing it took
+   */
+  public void recordDecompression(long bytes, long nanos) {
+    decompressedBytes.add(bytes);
+    decompressNanos.add(nanos);
+  }
+
+  /**
+   * Record a stored file.
+   *
+   * @param original   the size of the file's contents
+   * @param stored     the size of the file on disk
+   * @param compressed whether it was stored compressed
+   */
+  public void recordFile(long original, long stored, boolean compressed) {
+    if (compressed) {
+      compressedFiles.increment();
+      originalBytes.add(original);
+      storedBytes.add(stored);
+    } else {
+      skippedFiles.increment();
+    }
+  }
+
+  /**
+   * Gets the number of files stored compressed.
+   *
+   * @return the number of files
+   */
+  public long getCompressedFiles() {
+    return compressedFiles.sum();
+  }
+
+  /**
+   * Gets the number of files stored as they are because they did not shrink.
+   *
+   * @return the number of files
+   */
+  public long getSkippedFiles() {
+    return skippedFiles.sum();
+  }
+
+  /**
+   * Gets the compression ratio of the files stored compressed.
+   *
+   * @return their original size divided by their size on disk, or 1 if none was compressed
+   */
+  public double getRatio() {
+    long stored = storedBytes.sum();
+    return stored == 0 ? 1 : (double) originalBytes.sum() / stored;
+  }
+
+  /**
+   * Gets the compression throughput per second of CPU time.
+   *
+   * @return bytes compressed per CPU second, or 0 if nothing was compressed
+   */
+  public double getCompressBytesPerCpuSecond() {
+    return TransferMetrics.bytesPerSecond(compressedBytes.sum(), compressNanos.sum());
+  }
+
+  /**
+   * Gets the decompression throughput per second of CPU time.
+   *
+   * @return bytes produced per CPU second, or 0 if nothing was decompressed
+   */
+  public double getDecompressBytesPerCpuSecond() {
+    return TransferMetrics.bytesPerSecond(decompressedBytes.sum(), decompressNanos.sum());
+  }
+
+  @Override
+  public String toString() {
+    return String.format("compression: %d files compressed, %d stored as is, ratio %.2f, %.1f ms CPU compressing (%.1f MB/s),"
+            + " %.1f ms CPU decompressing (%.1f MB/s)", getCompressedFiles(), getSkippedFiles(), getRatio(),
+        compressNanos.sum() / 1e6, getCompressBytesPerCpuSecond() / (1024 * 1024),
+        decompressNanos.sum() / 1e6, getDecompressBytesPerCpuSecond() / (1024 * 1024));
+  }
+}
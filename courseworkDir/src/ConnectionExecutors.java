@@ -0,0 +1,77 @@
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ConnectionExecutors creates the executor that runs one handler per accepted connection.
+ * The mode is read from the system properties {@code <prefix>.executor}, {@code <prefix>.poolSize}
+ * and {@code <prefix>.queueCapacity}:
+ * <ul>
+ *   <li>{@code thread} (default) starts a new platform thread per connection, as before;</li>
+ *   <li>{@code virtual} starts a virtual thread per connection;</li>
+ *   <li>{@code bounded} runs connections on a fixed platform pool and blocks the accept loop while the queue is full;
+ *   once the pool is shut down, tasks are rejected instead.</li>
+ * </ul>
+ */
+public final class ConnectionExecutors {
+
+  private ConnectionExecutors() {
+  }
+
+  /**
+   * Create the executor configured for a component.
+   *
+   * @param prefix system property prefix, e.g. "controller" or "dstore"
+   * @return executor for connection handlers
+   */
+  public static ExecutorService fromProperties(String prefix) {
+    String mode = System.getProperty(prefix + ".executor", "thread");
+    int poolSize = Integer.getInteger(prefix + ".poolSize", 256);
+    int queueCapacity = Integer.getInteger(prefix + ".queueCapacity", 1024);
+    return create(mode, prefix, poolSize, queueCapacity);
+  }
+
+  /**
+   * Create an executor for connection handlers.
+   *
+   * @param mode          one of thread, virtual or bounded
+   * @param name          prefix for thread names
+   * @param poolSize      number of threads in bounded mode
+   * @param queueCapacity number of connections that may wait for a thread in bounded mode
+   * @return executor for connection handlers
+   */
+  public static ExecutorService create(String mode, String name, int poolSize, int queueCapacity) {
+    switch (mode) {
+      case "virtual":
+        return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name + "-conn-", 0).factory());
+      case "bounded":
+        return new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(queueCapacity), Thread.ofPlatform().name(name + "-conn-", 0).factory(),
+            (task, executor) -> {
+              // Backpressure: the accepting thread waits for room instead of spawning more threads,
+              // checking periodically so a shutdown rejects the task rather than leaving it waiting forever.
+              try {
+                while (!executor.isShutdown()) {
+                  if (executor.getQueue().offer(task, 100, TimeUnit.MILLISECONDS)) {
+                    if (executor.isShutdown() && executor.remove(task)) {
+                      break;  // Queued after the pool shut down, so no worker may be left to run it
+                    }
+                    return;
+                  }
+                }
+                throw new RejectedExecutionException("Executor " + name + " has been shut down");
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException("Interrupted while waiting for a free connection slot", e);
+              }
+            });
+      case "thread":
+        return Executors.newThreadPerTaskExecutor(Thread.ofPlatform().name(name + "-conn-", 0).factory());
+      default:
+        throw new IllegalArgumentException("Unknown executor mode: " + mode);
+    }
+  }
+}
@@ -0,0 +1,69 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * ConsistentHashPlacement places each Dstore on a hash ring at several virtual nodes.
+ * A file goes to the first r distinct Dstores clockwise from its hash, so a JOIN or leave
+ * only changes the placement of about 1/N of the files.
+ */
+public class ConsistentHashPlacement implements PlacementStrategy {
+  private final int virtualNodes; // Ring positions per Dstore
+  private final ConcurrentSkipListMap<Long, Integer> ring = new ConcurrentSkipListMap<>(); // Ring position to Dstore port
+
+  /**
+   * Constructor for ConsistentHashPlacement.
+   *
+   * @param virtualNodes number of ring positions per Dstore
+   */
+  public ConsistentHashPlacement(int virtualNodes) {
+    this.virtualNodes = virtualNodes;
+  }
+
+  @Override
+  public void addDstore(int port) {
+    for (int i = 0; i < virtualNodes; i++) {
+      ring.put(PlacementStrategy.hash(Integer.toString(port), i), port);
+    }
+  }
+
+  @Override
+  public void removeDstore(int port) {
+    for (int i = 0; i < virtualNodes; i++) {
+      ring.remove(PlacementStrategy.hash(Integer.toString(port), i), port);
+    }
+  }
+
+  @Override
+  public List<Integer> select(String filename, long fileSize, int r) {
+    List<Integer> selected = new ArrayList<>(r);
+    long position = PlacementStrategy.hash(filename, 0);
+    collect(ring.tailMap(position), selected, r);
+    collect(ring.headMap(position), selected, r);  // Wrap around the ring
+    return selected;
+  }
+
+  /**
+   * Add distinct Dstores from a section of the ring until r are selected.
+   *
+   * @param section  the ring section, in clockwise order
+   * @param selected Dstores selected so far
+   * @param r        number of Dstores wanted
+   */
+  private void collect(Map<Long, Integer> section, List<Integer> selected, int r) {
+    for (Integer port : section.values()) {
+      if (selected.size() >= r) {
+        return;
+      }
+      if (!selected.contains(port)) {
+        selected.add(port);
+      }
+    }
+  }
+
+  @Override
+  public List<Integer> rank(String filename, int r) {
+    return select(filename, 0, r);  // Selection has no side effects, so it doubles as the ranking
+  }
+}
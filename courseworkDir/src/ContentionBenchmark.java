@@ -0,0 +1,127 @@
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.IntConsumer;
+
+/**
+ * ContentionBenchmark measures how file lifecycle operations scale with threads.
+ * Each thread repeatedly stores, completes, marks for removal and removes its own files, once on the Index
+ * and once on a model of the old Index, where every method synchronized on one monitor.
+ * Usage: java ContentionBenchmark [operations per thread] [max threads]
+ */
+public class ContentionBenchmark {
+
+  /**
+   * The old Index: one map and a status string per file, guarded by the Index's monitor.
+   */
+  private static class LockedIndex {
+    private final Map<String, String> states = new HashMap<>(); // Status of each file
+
+    /**
+     * Adds a file as in progress.
+     *
+     * @param filename the name of the file
+     */
+    synchronized void fileToStore(String filename) {
+      states.putIfAbsent(filename, "IN_PROGRESS");
+    }
+
+    /**
+     * Marks an in-progress file as complete.
+     *
+     * @param filename the name of the file
+     */
+    synchronized void markFileAsComplete(String filename) {
+      states.replace(filename, "IN_PROGRESS", "COMPLETE");
+    }
+
+    /**
+     * Marks a complete file as being removed.
+     *
+     * @param filename the name of the file
+     */
+    synchronized void markFileAsRemoveInProgress(String filename) {
+      states.replace(filename, "COMPLETE", "REMOVE_IN_PROGRESS");
+    }
+
+    /**
+     * Removes a file.
+     *
+     * @param filename the name of the file
+     */
+    synchronized void removeFile(String filename) {
+      states.remove(filename);
+    }
+  }
+
+  /**
+   * Run the benchmark.
+   *
+   * @param args operations per thread and the largest number of threads
+   * @throws InterruptedException if interrupted while waiting for the threads
+   */
+  public static void main(String[] args) throws InterruptedException {
+    int operations = args.length > 0 ? Integer.parseInt(args[0]) : 500_000;
+    int maxThreads = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+    System.out.println("operations/thread=" + operations + " cpus=" + Runtime.getRuntime().availableProcessors());
+    int[] dstoreIds = {0, 1, 2};
+    for (int round = 0; round < 2; round++) {  // The first round warms up the JIT
+      for (int threads = 1; threads <= maxThreads; threads *= 2) {
+        LockedIndex locked = new LockedIndex();
+        double lockedRate = run(threads, operations, (thread) -> {
+          for (int i = 0; i < operations; i++) {
+            String filename = "f" + thread + "-" + (i & 1023);
+            locked.fileToStore(filename);
+            locked.markFileAsComplete(filename);
+            locked.markFileAsRemoveInProgress(filename);
+            locked.removeFile(filename);
+          }
+        });
+        Index index = new Index();
+        double casRate = run(threads, operations, (thread) -> {
+          for (int i = 0; i < operations; i++) {
+            String filename = "f" + thread + "-" + (i & 1023);
+            index.fileToStore(filename, dstoreIds, 1024);
+            index.markFileAsComplete(filename);
+            index.markFileAsRemoveInProgress(filename);
+            index.removeFile(filename, FileState.REMOVE_IN_PROGRESS);
+          }
+        });
+        if (round == 1) {
+          System.out.printf("threads=%2d  synchronized %6.2f M lifecycles/s  CAS %6.2f M lifecycles/s%n", threads, lockedRate, casRate);
+        }
+      }
+    }
+  }
+
+  /**
+   * Run a workload on several threads at once.
+   *
+   * @param threads    number of threads
+   * @param operations lifecycles each thread runs
+   * @param workload   the work of one thread, given its number
+   * @return millions of lifecycles per second over all threads
+   * @throws InterruptedException if interrupted while waiting for the threads
+   */
+  private static double run(int threads, int operations, IntConsumer workload) throws InterruptedException {
+    CountDownLatch start = new CountDownLatch(1);
+    CountDownLatch done = new CountDownLatch(threads);
+    for (int t = 0; t < threads; t++) {
+      int thread = t;
+      new Thread(() -> {
+        try {
+          start.await();
+          workload.accept(thread);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        } finally {
+          done.countDown();
+        }
+      }).start();
+    }
+    long begin = System.nanoTime();
+    start.countDown();
+    done.await();
+    return (double) threads * operations / (System.nanoTime() - begin) * 1000;
+  }
+}
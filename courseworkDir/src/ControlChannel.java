@@ -0,0 +1,76 @@
+/**
+ * ControlChannel sends control messages on one connection in the protocol that connection negotiated.
+ * Implementations are safe to use from several threads at once.
+ */
+public interface ControlChannel {
+
+  /**
+   * Get a channel on the same connection whose messages answer one request.
+   *
+   * @param requestId the ID the client gave the request, or NO_REQUEST
+   * @return a channel tagging every message with the request ID
+   */
+  ControlChannel forRequest(long requestId);
+
+  /**
+   * Send a message without arguments, such as ACK, STORE_COMPLETE or an error.
+   *
+   * @param opcode the message opcode
+   */
+  void send(byte opcode);
+
+  /**
+   * Send a message with one text argument, such as REMOVE with its file name.
+   *
+   * @param opcode   the message opcode
+   * @param argument the argument
+   */
+  void send(byte opcode, String argument);
+
+  /**
+   * Send STORE_TO with the Dstores a client should store a file on.
+   *
+   * @param endpoints the pre-encoded Dstore endpoints
+   */
+  void sendStoreTo(Protocol.Endpoint[] endpoints);
+
+  /**
+   * Send LOAD_FROM with the Dstore a client should load a file from.
+   *
+   * @param endpoint the pre-encoded Dstore endpoint
+   * @param fileSize the size of the file
+   */
+  void sendLoadFrom(Protocol.Endpoint endpoint, long fileSize);
+
+  /**
+   * Send LOAD_FROM_ALL with every Dstore holding a file, so a client can fetch ranges from all of them.
+   *
+   * @param fileSize  the size of the file
+   * @param endpoints the pre-encoded Dstore endpoints
+   */
+  void sendLoadFromAll(long fileSize, Protocol.Endpoint[] endpoints);
+
+  /**
+   * Send STORE_PARTS with the chunks of a multipart upload still to be stored.
+   *
+   * @param chunkSize the size of every chunk but the last
+   * @param parts     the indices of the chunks to upload
+   */
+  void sendParts(long chunkSize, int[] parts);
+
+  /**
+   * Send LOAD_PARTS with one Dstore for each chunk of a multipart file, in chunk order.
+   *
+   * @param fileSize  the size of the file
+   * @param chunkSize the size of every chunk but the last
+   * @param endpoints the pre-encoded Dstore endpoints, one per chunk
+   */
+  void sendLoadParts(long fileSize, long chunkSize, Protocol.Endpoint[] endpoints);
+
+  /**
+   * Send the LIST reply, writing it out as the names are iterated rather than building it in memory first.
+   *
+   * @param filenames the names of the complete files, iterated once
+   */
+  void sendList(Iterable<String> filenames);
+}
@@ -0,0 +1,459 @@
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * ControlMessage is a parsed control message from either protocol.
+ * One instance is reused for every message on a connection, so handlers must copy the fields they keep beyond
+ * the current message. Parsing is not allocation-free: numbers, verbs and opcodes are read in place, but every file
+ * name, list prefix, cursor and content hash becomes a new String. Handlers use file names as keys of the index,
+ * the file locks and the pending acknowledgements, and hold on to them after the message is reused, so a view into
+ * the line or frame would have to be copied into a String there anyway; a STORE costs one name, about 64 bytes.
+ */
+public class ControlMessage {
+  public byte opcode; // Opcode of the message, UNKNOWN if it was malformed
+  public long requestId = Protocol.NO_REQUEST; // ID the client gave the request, or NO_REQUEST
+  public String filename; // File name, for messages that carry one
+  public long size; // File size, for STORE, REBALANCE_STORE, STORE_CHAIN, STORE_FRAGMENT and STORE_MULTIPART; range length for LOAD_RANGE and LOAD_FRAGMENT; file count for INVENTORY_END
+  public String contentHash; // Hash of the contents declared with STORE, or null
+  public long offset; // First byte of a LOAD_RANGE or LOAD_FRAGMENT
+  public int port; // Dstore port, for JOIN
+  public int batchCount; // Number of files in a STORE_MANY, REMOVE_MANY or INVENTORY
+  public String[] batchFilenames = new String[8]; // File names of a batch, valid up to batchCount
+  public long[] batchSizes = new long[8]; // File sizes of a STORE_MANY or INVENTORY, valid up to batchCount
+  public int inFlight; // Transfers in flight on the Dstore, for LOAD_STATS
+  public long latencyMicros; // Moving average of the Dstore's transfer time, for LOAD_STATS
+  public int queueDepth; // Connections queued on the Dstore, for LOAD_STATS
+  public long checksum = Protocol.NO_CHECKSUM; // CRC32C of the stored file, for STORE_ACK
+  public String listPrefix; // Prefix of a paged LIST, empty for all files; null for a plain LIST
+  public String listCursor; // Last file name of the previous page of a paged LIST, empty for the first page
+  public int listLimit; // Maximum number of names in a paged LIST reply, 0 for no limit
+  public int part; // Chunk index, for STORE_PART
+  public int chainCount; // Number of Dstores a STORE_CHAIN is forwarded to
+  public int[] chainPorts = new int[4]; // Ports of the Dstores a STORE_CHAIN is forwarded to, valid up to chainCount
+  private String text; // The text message as received, null for binary frames
+
+  /**
+   * Parse a text message of the form "[#id] VERB [argument...]".
+   *
+   * @param message the message without its line terminator
+   * @return this message, with opcode UNKNOWN if the message was malformed
+   */
+  public ControlMessage parseText(String message) {
+    reset();
+    text = message;
+    int length = message.length();
+    int verbStart = 0;
+    try {
+      if (length > 0 && message.charAt(0) == '#') {
+        verbStart = message.indexOf(' ');
+        if (verbStart == -1) {
+          return this;
+        }
+        requestId = Long.parseLong(message, 1, verbStart, 10);
+        verbStart++;
+      }
+      int verbEnd = tokenEnd(message, verbStart);
+      opcode = Protocol.opcodeOf(message, verbStart, verbEnd - verbStart);
+      int argStart = Math.min(verbEnd + 1, length);
+      int argEnd = tokenEnd(message, argStart);
+      switch (opcode) {
+        case Protocol.JOIN:
+          port = Integer.parseInt(message, argStart, argEnd, 10);
+          break;
+        case Protocol.STORE:
+        case Protocol.REBALANCE_STORE:
+        case Protocol.STORE_FRAGMENT:
+        case Protocol.STORE_MULTIPART:
+          filename = argEnd > argStart ? message.substring(argStart, argEnd) : null;
+          argStart = argEnd + 1;
+          argEnd = tokenEnd(message, argStart);
+          size = Long.parseLong(message, argStart, argEnd, 10);
+          if (opcode == Protocol.STORE && argEnd + 1 < length) {
+            contentHash = message.substring(argEnd + 1, tokenEnd(message, argEnd + 1));
+          }
+          break;
+        case Protocol.STORE_CHAIN:
+          filename = argEnd > argStart ? message.substring(argStart, argEnd) : null;
+          argStart = argEnd + 1;
+          argEnd = tokenEnd(message, argStart);
+          size = Long.parseLong(message, argStart, argEnd, 10);
+          while (argEnd < length) {
+            argStart = argEnd + 1;
+            argEnd = tokenEnd(message, argStart);
+            addChainPort(Integer.parseInt(message, argStart, argEnd, 10));
+          }
+          break;
+        case Protocol.LOAD_RANGE:
+        case Protocol.LOAD_FRAGMENT:
+          filename = argEnd > argStart ? message.substring(argStart, argEnd) : null;
+          argStart = argEnd + 1;
+          argEnd = tokenEnd(message, argStart);
+          offset = Long.parseLong(message, argStart, argEnd, 10);
+          size = Long.parseLong(message, argEnd + 1, tokenEnd(message, argEnd + 1), 10);
+          break;
+        case Protocol.STORE_PART:
+          filename = argEnd > argStart ? message.substring(argStart, argEnd) : null;
+          part = Integer.parseInt(message, argEnd + 1, tokenEnd(message, argEnd + 1), 10);
+          break;
+        case Protocol.LOAD_STATS:
+          inFlight = Integer.parseInt(message, argStart, argEnd, 10);
+          argStart = argEnd + 1;
+          argEnd = tokenEnd(message, argStart);
+          latencyMicros = Long.parseLong(message, argStart, argEnd, 10);
+          queueDepth = Integer.parseInt(message, argEnd + 1, tokenEnd(message, argEnd + 1), 10);
+          break;
+        case Protocol.STORE_ACK:
+          filename = argEnd > argStart ? message.substring(argStart, argEnd) : null;
+          if (argEnd < length) {
+            checksum = Long.parseLong(message, argEnd + 1, tokenEnd(message, argEnd + 1), 10);
+          }
+          break;
+        case Protocol.LOAD:
+        case Protocol.LOAD_ALL:
+        case Protocol.RELOAD:
+        case Protocol.REMOVE:
+        case Protocol.REMOVE_ACK:
+        case Protocol.LOAD_DATA:
+        case Protocol.ERROR_FILE_DOES_NOT_EXIST:
+        case Protocol.REPLICA_CORRUPT:
+        case Protocol.ENCODE_COMPLETE:
+        case Protocol.COMPLETE_MULTIPART:
+          filename = argEnd > argStart ? message.substring(argStart, argEnd) : null;
+          break;
+        case Protocol.LIST:
+          if (argEnd > argStart) {
+            listPrefix = message.substring(argStart, message.charAt(argEnd - 1) == '*' ? argEnd - 1 : argEnd);
+            listCursor = "";
+            argStart = Math.min(argEnd + 1, length);
+            argEnd = tokenEnd(message, argStart);
+            if (argEnd > argStart && !(argEnd - argStart == 1 && message.charAt(argStart) == '*')) {
+              listCursor = message.substring(argStart, argEnd);
+            }
+            if (argEnd < length) {
+              listLimit = Integer.parseInt(message, argEnd + 1, tokenEnd(message, argEnd + 1), 10);
+              if (listLimit < 0) {
+                throw new IllegalArgumentException("Negative limit");
+              }
+            }
+          }
+          break;
+        case Protocol.INVENTORY_END:
+          size = Long.parseLong(message, argStart, argEnd, 10);
+          break;
+        case Protocol.STORE_MANY:
+        case Protocol.REMOVE_MANY:
+        case Protocol.INVENTORY:
+          int count = Integer.parseInt(message, argStart, argEnd, 10);
+          if (count < 0 || count > (length - argEnd) / 2) {  // Each file takes at least a space and one character
+            throw new IllegalArgumentException("Batch longer than message");
+          }
+          for (int i = 0; i < count; i++) {
+            ensureBatchCapacity(i + 1);
+            argStart = argEnd + 1;
+            argEnd = tokenEnd(message, argStart);
+            if (argEnd <= argStart) {
+              throw new IllegalArgumentException("Missing file name");
+            }
+            batchFilenames[i] = message.substring(argStart, argEnd);
+            batchCount = i + 1;  // Counted as it is read, so reset clears the names of a batch that fails part way
+            if (opcode != Protocol.REMOVE_MANY) {
+              argStart = argEnd + 1;
+              argEnd = tokenEnd(message, argStart);
+              batchSizes[i] = Long.parseLong(message, argStart, argEnd, 10);
+            }
+          }
+          break;
+        default:
+          break;
+      }
+    } catch (RuntimeException e) {
+      opcode = Protocol.UNKNOWN;
+    }
+    if (requiresFilename() && filename == null) {
+      opcode = Protocol.UNKNOWN;
+    }
+    return this;
+  }
+
+  /**
+   * Decode a binary frame.
+   *
+   * @param frame heap buffer holding the frame from its opcode to its end
+   * @return this message, with opcode UNKNOWN if the frame was malformed
+   */
+  public ControlMessage decode(ByteBuffer frame) {
+    reset();
+    try {
+      int header = frame.get() & 0xFF;
+      if ((header & Protocol.REQUEST_ID_FLAG) != 0) {
+        requestId = Protocol.getVarint(frame);
+      }
+      opcode = (byte) (header & ~Protocol.REQUEST_ID_FLAG);
+      switch (opcode) {
+        case Protocol.JOIN:
+          port = (int) Protocol.getVarint(frame);
+          break;
+        case Protocol.STORE:
+        case Protocol.REBALANCE_STORE:
+        case Protocol.STORE_FRAGMENT:
+        case Protocol.STORE_MULTIPART:
+          filename = Protocol.getString(frame);
+          size = Protocol.getVarint(frame);
+          if (opcode == Protocol.STORE && frame.hasRemaining()) {
+            contentHash = Protocol.getString(frame);
+          }
+          break;
+        case Protocol.STORE_CHAIN:
+          filename = Protocol.getString(frame);
+          size = Protocol.getVarint(frame);
+          long hops = Protocol.getVarint(frame);
+          if (hops > frame.remaining()) {
+            throw new IllegalArgumentException("Chain longer than frame");
+          }
+          for (int i = 0; i < hops; i++) {
+            addChainPort((int) Protocol.getVarint(frame));
+          }
+          break;
+        case Protocol.LOAD_RANGE:
+        case Protocol.LOAD_FRAGMENT:
+          filename = Protocol.getString(frame);
+          offset = Protocol.getVarint(frame);
+          size = Protocol.getVarint(frame);
+          break;
+        case Protocol.STORE_PART:
+          filename = Protocol.getString(frame);
+          part = (int) Math.min(Protocol.getVarint(frame), Integer.MAX_VALUE);
+          break;
+        case Protocol.LOAD_STATS:
+          inFlight = (int) Protocol.getVarint(frame);
+          latencyMicros = Protocol.getVarint(frame);
+          queueDepth = (int) Protocol.getVarint(frame);
+          break;
+        case Protocol.STORE_ACK:
+          filename = Protocol.getString(frame);
+          if (frame.hasRemaining()) {
+            checksum = Protocol.getVarint(frame);
+          }
+          break;
+        case Protocol.LOAD:
+        case Protocol.LOAD_ALL:
+        case Protocol.RELOAD:
+        case Protocol.REMOVE:
+        case Protocol.REMOVE_ACK:
+        case Protocol.LOAD_DATA:
+        case Protocol.REPLICA_CORRUPT:
+        case Protocol.ENCODE_COMPLETE:
+        case Protocol.COMPLETE_MULTIPART:
+          filename = Protocol.getString(frame);
+          break;
+        case Protocol.ERROR_FILE_DOES_NOT_EXIST:
+          filename = frame.hasRemaining() ? Protocol.getString(frame) : null;
+          break;
+        case Protocol.LIST:
+          if (frame.hasRemaining()) {
+            listPrefix = Protocol.getString(frame);
+            listCursor = Protocol.getString(frame);
+            listLimit = (int) Math.min(Protocol.getVarint(frame), Integer.MAX_VALUE);
+          }
+          break;
+        case Protocol.INVENTORY_END:
+          size = Protocol.getVarint(frame);
+          break;
+        case Protocol.STORE_MANY:
+        case Protocol.REMOVE_MANY:
+        case Protocol.INVENTORY:
+          long count = Protocol.getVarint(frame);
+          if (count > frame.remaining()) {
+            throw new IllegalArgumentException("Batch longer than frame");
+          }
+          for (int i = 0; i < count; i++) {
+            ensureBatchCapacity(i + 1);
+            batchFilenames[i] = Protocol.getString(frame);
+            batchCount = i + 1;
+            if (opcode != Protocol.REMOVE_MANY) {
+              batchSizes[i] = Protocol.getVarint(frame);
+            }
+          }
+          break;
+        default:
+          if (Protocol.verb(opcode) == null) {
+            opcode = Protocol.UNKNOWN;
+          }
+          break;
+      }
+    } catch (BufferUnderflowException | IllegalArgumentException e) {
+      opcode = Protocol.UNKNOWN;
+    }
+    return this;
+  }
+
+  /**
+   * End of the space-separated token starting at an index.
+   *
+   * @param message the text message
+   * @param start   index of the token
+   * @return index just past the token
+   */
+  private static int tokenEnd(String message, int start) {
+    if (start >= message.length()) {
+      return message.length();
+    }
+    int end = message.indexOf(' ', start);
+    return end == -1 ? message.length() : end;
+  }
+
+  /**
+   * Append a port to the chain of a STORE_CHAIN.
+   *
+   * @param chainPort the port of the next Dstore in the chain
+   */
+  private void addChainPort(int chainPort) {
+    if (chainCount == chainPorts.length) {
+      chainPorts = Arrays.copyOf(chainPorts, chainCount * 2);
+    }
+    chainPorts[chainCount++] = chainPort;
+  }
+
+  /**
+   * Grow the batch arrays, by doubling, to hold a number of files.
+   * They are grown as files are read rather than to the declared count, so a count the message cannot hold
+   * allocates nothing.
+   *
+   * @param count the number of files read so far
+   */
+  private void ensureBatchCapacity(int count) {
+    if (batchFilenames.length < count) {
+      int capacity = Math.max(count, batchFilenames.length * 2);
+      batchFilenames = Arrays.copyOf(batchFilenames, capacity);
+      batchSizes = Arrays.copyOf(batchSizes, capacity);
+    }
+  }
+
+  /**
+   * Checks whether the opcode needs a file name to be valid.
+   *
+   * @return true for messages about a single file
+   */
+  private boolean requiresFilename() {
+    switch (opcode) {
+      case Protocol.STORE:
+      case Protocol.REBALANCE_STORE:
+      case Protocol.STORE_CHAIN:
+      case Protocol.STORE_ACK:
+      case Protocol.LOAD:
+      case Protocol.LOAD_ALL:
+      case Protocol.LOAD_RANGE:
+      case Protocol.RELOAD:
+      case Protocol.REMOVE:
+      case Protocol.REMOVE_ACK:
+      case Protocol.LOAD_DATA:
+      case Protocol.REPLICA_CORRUPT:
+      case Protocol.ENCODE_COMPLETE:
+      case Protocol.STORE_FRAGMENT:
+      case Protocol.LOAD_FRAGMENT:
+      case Protocol.STORE_MULTIPART:
+      case Protocol.STORE_PART:
+      case Protocol.COMPLETE_MULTIPART:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * Clear the fields of the previous message.
+   */
+  private void reset() {
+    opcode = Protocol.UNKNOWN;
+    requestId = Protocol.NO_REQUEST;
+    filename = null;
+    size = 0;
+    contentHash = null;
+    offset = 0;
+    port = 0;
+    inFlight = 0;
+    latencyMicros = 0;
+    queueDepth = 0;
+    checksum = Protocol.NO_CHECKSUM;
+    part = 0;
+    listPrefix = null;
+    listCursor = null;
+    listLimit = 0;
+    if (batchFilenames.length > Protocol.LIST_CHUNK) {  // Do not keep the arrays of an unusually large batch
+      batchFilenames = new String[8];
+      batchSizes = new long[8];
+    } else {
+      Arrays.fill(batchFilenames, 0, batchCount, null);
+    }
+    batchCount = 0;
+    chainCount = 0;
+    text = null;
+  }
+
+  /**
+   * The message in the text protocol, for logging.
+   *
+   * @return the received text, or a text rendering of the binary frame
+   */
+  @Override
+  public String toString() {
+    if (text != null) {
+      return text;
+    }
+    String verb = Protocol.verb(opcode);
+    if (verb == null) {
+      return "<malformed frame>";
+    }
+    StringBuilder sb = new StringBuilder();
+    if (requestId != Protocol.NO_REQUEST) {
+      sb.append('#').append(requestId).append(' ');
+    }
+    sb.append(verb);
+    if (opcode == Protocol.JOIN) {
+      sb.append(' ').append(port);
+    }
+    if (filename != null) {
+      sb.append(' ').append(filename);
+    }
+    if (opcode == Protocol.LOAD_RANGE || opcode == Protocol.LOAD_FRAGMENT) {
+      sb.append(' ').append(offset);
+    }
+    if (opcode == Protocol.STORE_ACK && checksum != Protocol.NO_CHECKSUM) {
+      sb.append(' ').append(checksum);
+    }
+    if (opcode == Protocol.STORE || opcode == Protocol.REBALANCE_STORE || opcode == Protocol.STORE_CHAIN
+        || opcode == Protocol.LOAD_RANGE || opcode == Protocol.STORE_FRAGMENT || opcode == Protocol.LOAD_FRAGMENT
+        || opcode == Protocol.STORE_MULTIPART) {
+      sb.append(' ').append(size);
+    }
+    if (opcode == Protocol.STORE_PART) {
+      sb.append(' ').append(part);
+    }
+    if (contentHash != null) {
+      sb.append(' ').append(contentHash);
+    }
+    if (opcode == Protocol.LIST && listPrefix != null) {
+      sb.append(' ').append(listPrefix).append("* ").append(listCursor.isEmpty() ? "*" : listCursor).append(' ').append(listLimit);
+    }
+    if (opcode == Protocol.LOAD_STATS) {
+      sb.append(' ').append(inFlight).append(' ').append(latencyMicros).append(' ').append(queueDepth);
+    }
+    for (int i = 0; i < chainCount; i++) {
+      sb.append(' ').append(chainPorts[i]);
+    }
+    if (opcode == Protocol.INVENTORY_END) {
+      sb.append(' ').append(size);
+    }
+    if (opcode == Protocol.STORE_MANY || opcode == Protocol.REMOVE_MANY || opcode == Protocol.INVENTORY) {
+      sb.append(' ').append(batchCount);
+      for (int i = 0; i < batchCount; i++) {
+        sb.append(' ').append(batchFilenames[i]);
+        if (opcode != Protocol.REMOVE_MANY) {
+          sb.append(' ').append(batchSizes[i]);
+        }
+      }
+    }
+    return sb.toString();
+  }
+}
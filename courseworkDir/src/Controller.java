@@ -2,6 +2,8 @@
 import java.io.*;
 import java.net.Socket;
 import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.locks.ReentrantLock;
@@ -10,17 +12,33 @@ public class Controller {
   private int port; // Controller port
   private int r; // Number of Dstores to store a file
   private int timeout; // Timeout for store operation
-  private int rebalance_timeout; // Timeout for rebalance operation
+  private int rebalance_timeout; // Rebalance period in seconds, also the time a rebalance waits for acknowledgements
   private Index index = new Index(); // Index of files and their file info including status.
-  private Map<Socket, Integer> socketIntegerConcurrentHashMap = new ConcurrentHashMap<>();  // Map of Dstore socket to port
-  private Map<String, Long> initialStoreTimes = new ConcurrentHashMap<>(); // Map of initial store times for files
-  private Map<String, Socket> activeStoreClients = new ConcurrentHashMap<>(); // Map of active store clients
-  private Map<String, Socket> activeRemoveClients = new ConcurrentHashMap<>(); // Map of active remove clients
-  private Map<String, Integer> acknowledgements = new ConcurrentHashMap<>(); // Map of acknowledgements for files
-  private Map<Socket, List<Socket>> clientLoadAttempts = new ConcurrentHashMap<>();   // Map of client load attempts
-  private List<Socket> dstoresList = new CopyOnWriteArrayList<>(); // List of Dstores
-  private ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1); // Scheduler for timeouts
+  private final DstoreRegistry dstores = new DstoreRegistry(); // IDs, ports and connections of the Dstores
+  private final Map<String, PendingAcks> pendingAcks = new ConcurrentHashMap<>(); // Acknowledgements expected for each STORE or REMOVE in progress
+  private Map<Socket, Map<String, List<Integer>>> clientLoadAttempts = new ConcurrentHashMap<>();   // Dstore IDs not yet tried for each file a client is loading
+  private final PlacementStrategy placement = PlacementStrategy.fromName(System.getProperty("controller.placement", "ring")); // Chooses Dstores for new files
+  private final ReplicaSelector replicaSelector = new ReplicaSelector(System.getProperty("controller.replicaSelection", "p2c")); // Chooses the Dstore that serves each LOAD
+  private final TimerWheel timers = new TimerWheel(1, 1024, "controller-timeouts"); // Deadlines of STORE and REMOVE operations
   private final Map<String, ReentrantLock> fileLocks = new ConcurrentHashMap<>(); // Locks for files
+  private final Map<Socket, ControlChannel> connectionChannels = new ConcurrentHashMap<>(); // Reply channel of every open connection
+  private final boolean nioMode = Boolean.getBoolean("controller.nio"); // Serve connections from a selector event loop
+  private final boolean dedup = Boolean.getBoolean("controller.dedup"); // Link STOREs of contents already held instead of uploading them
+  private final long ecThreshold = Long.getLong("controller.ecThreshold", 0); // Smallest file stored erasure-coded, 0 to replicate every file
+  private final int ecData = Integer.getInteger("controller.ecData", 4); // Data fragments k of an erasure-coded file
+  private final int ecParity = Integer.getInteger("controller.ecParity", 2); // Parity fragments m, the Dstore failures an erasure-coded file survives
+  private static final int MAX_CHUNKS = 65536; // Most chunks of a multipart upload, keeping STORE_PARTS and LOAD_PARTS within a frame
+  private final long chunkSize = Long.getLong("controller.chunkSize", 64L * 1024 * 1024); // Size of each chunk of a multipart upload
+  private final int ioThreads = Integer.getInteger("controller.ioThreads", Runtime.getRuntime().availableProcessors()); // Selector threads in NIO mode
+  private final ExecutorService connectionExecutor = ConnectionExecutors.fromProperties("controller"); // Runs handleCommands for each connection
+  private final ExecutorService replyExecutor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("controller-reply-", 0).factory()); // Sends replies released by the journal and runs expired deadlines, off the flusher and timer threads
+  private final ScheduledExecutorService rebalanceScheduler = Executors.newSingleThreadScheduledExecutor(); // Runs rebalance operations one at a time
+  private final Map<String, Queue<Runnable>> deferredCommands = new ConcurrentHashMap<>(); // Client STORE/REMOVE commands held back while their file moves
+  private final Map<Socket, Set<String>> unreportedFiles = new ConcurrentHashMap<>(); // Files indexed on each joining Dstore that its inventory has not listed yet
+  private final Set<Socket> pendingRebalanceAcks = ConcurrentHashMap.newKeySet(); // Dstores yet to send REBALANCE_COMPLETE
+  private final Set<String> removingChunks = ConcurrentHashMap.newKeySet(); // Multipart files whose chunks are being removed
+  private volatile IndexJournal journal; // Durable log of the index, or null unless controller.metadataDir is set
+  private volatile CountDownLatch rebalanceLatch; // Released when every Dstore of the current rebalance has acknowledged
 
   /**
    * Constructor for Controller
@@ -28,50 +46,71 @@ public class Controller {
    * @param port              Controller port number
    * @param r                 Number of Dstores to store a file
    * @param timeout           Timeout for store operation
-   * @param rebalance_timeout Timeout for rebalance operation
+   * @param rebalance_timeout Rebalance period in seconds, also the time a rebalance waits for acknowledgements
    */
   public Controller(int port, int r, int timeout, int rebalance_timeout) {
     this.port = port;
     this.r = r;
     this.timeout = timeout;
     this.rebalance_timeout = rebalance_timeout;
-    startTimeout();
+    if (rebalance_timeout > 0) {
+      rebalanceScheduler.scheduleWithFixedDelay(this::rebalance, rebalance_timeout, rebalance_timeout, TimeUnit.SECONDS);
+    }
   }
 
   /**
-   * Start the timeout for STORE and REMOVE operations
+   * Schedule the deadline of a STORE or REMOVE
+   * The timer thread only hands the expired deadline to replyExecutor, since handling it takes file locks and may
+   * reply to a client, and a slow client must not hold up every other deadline.
+   *
+   * @param onTimeout the handler of the expired deadline
+   * @return the deadline, to cancel once the operation completes
    */
-  private void startTimeout() {
-    scheduler.scheduleAtFixedRate(() -> {
-      long currentTime = System.currentTimeMillis();
-      initialStoreTimes.forEach((filename, startTime) -> {
-        if (currentTime - startTime > timeout && acknowledgements.containsKey(filename) && acknowledgements.get(filename) > 0) {
-          synchronized (this) {
-            acknowledgements.remove(filename);
-            fileLocks.remove(filename);
-            index.removeFile(filename);
-            System.out.println("Timeout expired for STORE operation of file: " + filename);
-          }
-        }
-      });
-    }, 0, 1, TimeUnit.SECONDS);
+  private TimerWheel.Timeout scheduleTimeout(Runnable onTimeout) {
+    return timers.schedule(() -> replyExecutor.execute(onTimeout), timeout);
   }
 
   /**
-   * Schedule timeout for REMOVE operation
+   * Fail a STORE that has not been acknowledged by all its Dstores in time
    *
    * @param filename file name
+   * @param pending  the STORE operation
    */
-  private void removeTimeout(String filename) {
-    scheduler.schedule(() -> {
-      synchronized (this) {
-        if (acknowledgements.containsKey(filename)) {
-          acknowledgements.remove(filename);
-          fileLocks.remove(filename);
-          System.out.println("Timeout expired for REMOVE operation of file: " + filename);
+  private void storeTimedOut(String filename, PendingAcks pending) {
+    if (pendingAcks.remove(filename, pending)) {
+      fileLocks.remove(filename);
+      FileInfo fileInfo = index.removeFile(filename, FileState.IN_PROGRESS);
+      if (fileInfo != null) {
+        recordRemovedFromDstores(fileInfo);
+      }
+      System.out.println("Timeout expired for STORE operation of file: " + filename);
+    }
+  }
+
+  /**
+   * Give up on a REMOVE that has not been acknowledged by all its Dstores in time
+   * The file becomes complete again on the Dstores that did not acknowledge, so a later REMOVE can finish the job.
+   * An erasure-coded file keeps all its holders, since fragments are placed by position; those already removed
+   * answer the next REMOVE with ERROR_FILE_DOES_NOT_EXIST, which counts as an acknowledgement.
+   *
+   * @param filename file name
+   * @param pending  the REMOVE operation
+   */
+  private void removeTimedOut(String filename, PendingAcks pending) {
+    if (pendingAcks.remove(filename, pending)) {
+      fileLocks.remove(filename);
+      FileInfo fileInfo = index.getFileInfo(filename);
+      int[] remaining = pending.getAwaiting();
+      if (fileInfo != null && index.cancelRemove(filename, fileInfo.isErasureCoded() ? fileInfo.getDstoreIds() : remaining)) {
+        for (Integer dstorePort : portsOf(remaining)) {
+          placement.recordStored(dstorePort, fileInfo.getBytesPerDstore());
         }
       }
-    }, timeout, TimeUnit.MILLISECONDS);
+      System.out.println("Timeout expired for REMOVE operation of file: " + filename);
+      if (fileInfo != null && fileInfo.isChunk()) {
+        pending.getClient().send(Protocol.ERROR, "Timeout");  // The REMOVE of the chunk's file is waiting for an answer
+      }
+    }
   }
 
   /**
@@ -79,77 +118,100 @@ public class Controller {
    * Listen for incoming connections
    */
   public void start() {
+    if (!recoverIndex()) {
+      return;
+    }
+    if (nioMode) {
+      try {
+        new ControllerEventLoop(port, ioThreads, this::handleMessage, this::handleDisconnections).run();
+      } catch (IOException e) {
+        System.out.println("Error starting Controller: " + e.getMessage());
+      }
+      return;
+    }
+
     try (ServerSocket serverSocket = new ServerSocket(port)) {
       System.out.println("Controller started. PORT no: " + port);
       while (true) {
         Socket socket = serverSocket.accept();
-        new Thread(() -> handleCommands(socket)).start();
+        connectionExecutor.execute(() -> handleCommands(socket));
       }
     } catch (IOException e) {
       System.out.println("Error starting Controller: " + e.getMessage());
     }
   }
 
+  /**
+   * Rebuild the index from controller.metadataDir, if set, and journal it from now on
+   * Snapshots are taken each time controller.snapshotBytes of log have been written (64 MiB by default)
+   *
+   * @return false if the metadata could not be recovered
+   */
+  private boolean recoverIndex() {
+    String dir = System.getProperty("controller.metadataDir");
+    if (dir == null) {
+      return true;
+    }
+    long start = System.nanoTime();
+    IndexJournal recovered = new IndexJournal(Paths.get(dir), index, dstores, Long.getLong("controller.snapshotBytes", 64L * 1024 * 1024),
+        replyExecutor);
+    try {
+      int files = recovered.open();
+      journal = recovered;
+      System.out.println("Recovered " + files + " files from " + dir + " in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+      return true;
+    } catch (IOException e) {
+      System.out.println("Error recovering index from " + dir + ": " + e.getMessage());
+      return false;
+    }
+  }
+
+  /**
+   * Send a reply once the index changes made so far are durable, or straight away without a journal
+   * Replies from many operations share one fsync, so waiting does not limit throughput
+   * Replies released by an fsync are sent on replyExecutor, so a client that stops reading cannot stall the journal
+   *
+   * @param reply the reply to send
+   */
+  private void afterCommit(Runnable reply) {
+    IndexJournal log = journal;
+    if (log == null) {
+      reply.run();
+    } else {
+      log.whenDurable(reply);
+    }
+  }
+
   /**
    * Handle incoming connection
-   * Listen for incoming messages
-   * Handle the message
-   * Handle JOIN, STORE, STORE_ACK, LOAD, RELOAD, REMOVE, REMOVE_ACK, ERROR_FILE_DOES_NOT_EXIST, LIST Operations
+   * Detect the protocol from the first byte, then pass each message to handleMessage
    *
    * @param socket Incoming socket connection
    */
   private void handleCommands(Socket socket) {
     try {
-      BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-      PrintWriter writer = new PrintWriter(socket.getOutputStream(), true);
-      String message;
-      while ((message = reader.readLine()) != null) {
-        if (message.trim().isEmpty()) {
-          System.out.println("Malformed message: " + message + " ignored by Controller");
-          continue;
+      InputStream in = new BufferedInputStream(socket.getInputStream());
+      ControlMessage message = new ControlMessage();
+      in.mark(1);
+      if (in.read() == Protocol.MAGIC) {
+        if (in.read() == -1) {
+          return;
         }
-
-        System.out.println("Received message: " + message);
-        String[] msg = message.split(" ");
-        try {
-          switch (msg[0]) {
-            case "JOIN":
-              handleJoin(socket, writer, message);
-              break;
-            case "STORE":
-              resetClientLoadAttempts(socket);
-              handleStoreCommand(socket, message, writer);
-              break;
-            case "STORE_ACK":
-              handleStoreAck(message);
-              break;
-            case "LOAD":
-              resetClientLoadAttempts(socket);
-              handleLoadCommand(socket, message, writer);
-              break;
-            case "RELOAD":
-              handleReloadCommand(socket, message, writer);
-              break;
-            case "REMOVE":
-              resetClientLoadAttempts(socket);
-              handleRemoveCommand(socket, message, writer);
-              break;
-            case "REMOVE_ACK":
-              handleRemoveAck(message);
-              break;
-            case "ERROR_FILE_DOES_NOT_EXIST":
-              handleRemoveAck(message);
-              break;
-            case "LIST":
-              resetClientLoadAttempts(socket);
-              handleListCommand(writer);
-              break;
-            default:
-              System.out.println("Malformed message: " + message + " ignored by Controller");
-              break;
-          }
-        } catch (Exception e) {
-          System.out.println("Error handling message: " + message + " Error: " + e.getMessage());
+        BinaryControlChannel channel = new BinaryControlChannel(socket.getOutputStream());
+        connectionChannels.put(socket, channel);
+        channel.sendHandshake();
+        ByteBuffer frame = null;
+        while ((frame = Protocol.readFrame(in, frame)) != null) {
+          handleMessage(socket, channel, message.decode(frame));
+        }
+      } else {
+        in.reset();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+        ControlChannel channel = new TextControlChannel(new PrintWriter(socket.getOutputStream(), true));
+        connectionChannels.put(socket, channel);
+        String line;
+        while ((line = reader.readLine()) != null) {
+          handleMessage(socket, channel, message.parseText(line));
         }
       }
     } catch (IOException e) {
@@ -159,141 +221,651 @@ public class Controller {
     }
   }
 
+  /**
+   * Handle a single message
+   * Handle JOIN, STORE, STORE_MANY, STORE_MULTIPART, STORE_PART, COMPLETE_MULTIPART, STORE_ACK, ENCODE_COMPLETE, LOAD, LOAD_ALL, RELOAD, REMOVE, REMOVE_MANY, REMOVE_ACK, ERROR_FILE_DOES_NOT_EXIST, LIST, INVENTORY, LOAD_STATS, REPLICA_CORRUPT Operations
+   * Replies to a client request carry the request's ID, so a client can pipeline requests on one connection.
+   *
+   * @param socket  Socket the message arrived on
+   * @param channel Channel to send replies on
+   * @param message Parsed message, reused for the connection's next message
+   */
+  private void handleMessage(Socket socket, ControlChannel channel, ControlMessage message) {
+    connectionChannels.putIfAbsent(socket, channel);
+    if (message.opcode != Protocol.LOAD_STATS && message.opcode != Protocol.INVENTORY) {  // Frequent or long; summarised by their handlers
+      System.out.println("Received message: " + message);
+    }
+    String filename = message.filename;
+    ControlChannel replies = channel.forRequest(message.requestId);
+    try {
+      switch (message.opcode) {
+        case Protocol.JOIN:
+          handleJoin(socket, channel, message.port);
+          break;
+        case Protocol.STORE:
+          submitStore(socket, filename, message.size, message.contentHash, replies);
+          break;
+        case Protocol.STORE_MANY:
+          for (int i = 0; i < message.batchCount; i++) {
+            submitStore(socket, message.batchFilenames[i], message.batchSizes[i], null, channel.forRequest(batchRequestId(message, i)));
+          }
+          break;
+        case Protocol.STORE_MULTIPART:
+          handleStoreMultipart(filename, message.size, replies);
+          break;
+        case Protocol.STORE_PART:
+          handleStorePart(socket, filename, message.part, replies);
+          break;
+        case Protocol.COMPLETE_MULTIPART:
+          handleCompleteMultipart(filename, replies);
+          break;
+        case Protocol.STORE_ACK:
+          handleStoreAck(socket, filename, message.checksum);
+          break;
+        case Protocol.ENCODE_COMPLETE:
+          handleEncodeComplete(socket, filename);
+          break;
+        case Protocol.LOAD:
+          handleLoadCommand(socket, filename, replies);
+          break;
+        case Protocol.LOAD_ALL:
+          handleLoadAllCommand(socket, filename, replies);
+          break;
+        case Protocol.RELOAD:
+          handleReloadCommand(socket, filename, replies);
+          break;
+        case Protocol.REMOVE:
+          submitRemove(socket, filename, replies);
+          break;
+        case Protocol.REMOVE_MANY:
+          for (int i = 0; i < message.batchCount; i++) {
+            submitRemove(socket, message.batchFilenames[i], channel.forRequest(batchRequestId(message, i)));
+          }
+          break;
+        case Protocol.REMOVE_ACK:
+          handleRemoveAck(socket, filename);
+          break;
+        case Protocol.ERROR_FILE_DOES_NOT_EXIST:
+          if (filename != null) {
+            handleRemoveAck(socket, filename);
+          }
+          break;
+        case Protocol.REBALANCE_COMPLETE:
+          handleRebalanceComplete(socket);
+          break;
+        case Protocol.LIST:
+          handleListCommand(replies, message.listPrefix, message.listCursor, message.listLimit);
+          break;
+        case Protocol.INVENTORY:
+          handleInventory(socket, message);
+          break;
+        case Protocol.INVENTORY_END:
+          handleInventoryEnd(socket, message.size);
+          break;
+        case Protocol.LOAD_STATS:
+          handleLoadStats(socket, message.inFlight, message.latencyMicros, message.queueDepth);
+          break;
+        case Protocol.REPLICA_CORRUPT:
+          handleReplicaCorrupt(socket, filename);
+          break;
+        default:
+          System.out.println("Malformed message: " + message + " ignored by Controller");
+          break;
+      }
+    } catch (Exception e) {
+      System.out.println("Error handling message: " + message + " Error: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Request ID of one file in a STORE_MANY or REMOVE_MANY
+   * The files of a batch with ID n answer as requests n, n+1, ...; an untagged batch is numbered from 0.
+   *
+   * @param message the batch message
+   * @param i       position of the file in the batch
+   * @return the request ID of the file
+   */
+  private static long batchRequestId(ControlMessage message, int i) {
+    return (message.requestId == Protocol.NO_REQUEST ? 0 : message.requestId) + i;
+  }
+
+  /**
+   * Run a client STORE, or queue it while its file is being moved by a rebalance
+   *
+   * @param clientSocket client socket connection
+   * @param filename     file name
+   * @param fileSize     file size
+   * @param contentHash  hash of the contents declared by the client, or null
+   * @param replies      channel to send replies on
+   */
+  private void submitStore(Socket clientSocket, String filename, long fileSize, String contentHash, ControlChannel replies) {
+    resetClientLoadAttempts(clientSocket, filename);
+    String contentId = dedup && contentHash != null ? contentHash + ":" + fileSize : null;  // The size guards against a mistaken hash
+    runUnlessRebalancing(Protocol.STORE, filename, () -> handleStoreCommand(filename, fileSize, contentId, false, replies));
+  }
+
+  /**
+   * Run a client REMOVE, or queue it while its file is being moved by a rebalance
+   * A multipart file is removed chunk by chunk, and chunks cannot be removed on their own.
+   *
+   * @param clientSocket client socket connection
+   * @param filename     file name
+   * @param replies      channel to send replies on
+   */
+  private void submitRemove(Socket clientSocket, String filename, ControlChannel replies) {
+    resetClientLoadAttempts(clientSocket, filename);
+    FileInfo fileInfo = index.getFileInfo(filename);
+    if (fileInfo != null && fileInfo.isChunk()) {
+      replies.send(Protocol.ERROR_FILE_DOES_NOT_EXIST);
+      return;
+    } else if (fileInfo != null && fileInfo.isChunked()) {
+      handleRemoveChunks(filename, fileInfo, replies);
+      return;
+    }
+    runUnlessRebalancing(Protocol.REMOVE, filename, () -> handleRemoveCommand(filename, replies));
+  }
+
   /**
    * Handle Dstore disconnection
    * Remove the Dstore from the list of Dstores
-   * Remove the Dstore from the index
+   * Remove the Dstore from the index, unless it has already rejoined on a new connection
    *
    * @param socket Disconnected Dstore socket
    */
   private void handleDisconnections(Socket socket) {
-    dstoresList.remove(socket);
-    Integer dstorePort = socketIntegerConcurrentHashMap.remove(socket);
-    if (dstorePort != null) {
-      index.removeDstoreFromFiles(socket);
-      System.out.println("Dstore on port " + dstorePort + " disconnected and removed.");
+    connectionChannels.remove(socket);
+    clientLoadAttempts.remove(socket);
+    unreportedFiles.remove(socket);
+    synchronized (dstores) {  // Against a JOIN from the same port re-registering the ID meanwhile
+      Integer dstoreId = dstores.unregister(socket);
+      if (dstoreId != null) {
+        int dstorePort = dstores.portOf(dstoreId);
+        placement.removeDstore(dstorePort);
+        replicaSelector.remove(dstoreId);
+        index.removeDstoreFromFiles(dstoreId);
+        System.out.println("Dstore on port " + dstorePort + " disconnected and removed.");
+      }
     }
   }
 
   /**
    * Handle JOIN command
    *
-   * @param socket  Incoming socket connection
-   * @param writer  Writer to write response
-   * @param message Incoming message
+   * @param socket     Incoming socket connection
+   * @param channel    Channel to send replies on
+   * @param dstorePort Port the Dstore listens on
    */
-  private void handleJoin(Socket socket, PrintWriter writer, String message) {
-    String[] msg = message.split(" ");
-    int dstorePort = Integer.parseInt(msg[1]);
-    socketIntegerConcurrentHashMap.put(socket, dstorePort);
-    dstoresList.add(socket);
+  private void handleJoin(Socket socket, ControlChannel channel, int dstorePort) {
+    synchronized (dstores) {
+      int dstoreId = dstores.register(dstorePort, socket);
+      Set<String> unreported = ConcurrentHashMap.newKeySet();
+      for (String filename : index.getFilesOnDstore(dstoreId)) {
+        FileInfo fileInfo = index.getFileInfo(filename);
+        if (fileInfo != null && !fileInfo.isErasureCoded()) {  // Fragments are not listed in the inventory
+          unreported.add(filename);
+        }
+      }
+      unreportedFiles.put(socket, unreported);
+      placement.addDstore(dstorePort);
+    }
     System.out.println("Dstore joined from: " + dstorePort);
-    writer.println("ACK");
+    channel.send(Protocol.ACK);
+  }
+
+  /**
+   * Handle one INVENTORY message from a Dstore that joined
+   * Each reported file is added to the index as a replica on the Dstore. Unknown files are adopted only without
+   * a journal, when the Controller cannot tell a file removed while the Dstore was away from one it forgot on restart.
+   *
+   * @param socket  Dstore socket connection
+   * @param message the INVENTORY message
+   */
+  private void handleInventory(Socket socket, ControlMessage message) {
+    Integer dstoreId = dstores.idOf(socket);
+    Set<String> unreported = unreportedFiles.get(socket);
+    if (dstoreId == null || unreported == null) {
+      return;
+    }
+    int dstorePort = dstores.portOf(dstoreId);
+    boolean adopt = journal == null;
+    for (int i = 0; i < message.batchCount; i++) {
+      String filename = message.batchFilenames[i];
+      unreported.remove(filename);
+      if (index.addReplica(filename, message.batchSizes[i], dstoreId, adopt)) {
+        placement.recordStored(dstorePort, message.batchSizes[i]);
+      }
+    }
+  }
+
+  /**
+   * Handle INVENTORY_END from a Dstore that joined
+   * Files the index placed on the Dstore but it did not report are dropped from its replicas,
+   * then a rebalance brings every file back to R copies.
+   *
+   * @param socket Dstore socket connection
+   * @param total  number of files the Dstore reported
+   */
+  private void handleInventoryEnd(Socket socket, long total) {
+    Integer dstoreId = dstores.idOf(socket);
+    Set<String> unreported = unreportedFiles.remove(socket);
+    if (dstoreId == null || unreported == null) {
+      return;
+    }
+    int dstorePort = dstores.portOf(dstoreId);
+    for (String filename : unreported) {
+      FileInfo fileInfo = index.getFileInfo(filename);
+      if (fileInfo != null && index.removeReplica(filename, dstoreId)) {
+        placement.recordRemoved(dstorePort, fileInfo.getFileSize());
+      }
+    }
+    System.out.println("Dstore " + dstorePort + " holds " + total + " files, " + unreported.size() + " indexed files missing");
+    rebalanceScheduler.execute(this::rebalance);
+  }
+
+  /**
+   * Handle REPLICA_CORRUPT from a Dstore that found its copy of a file corrupt and deleted it
+   * Drop the replica from the index and rebalance to copy the file from a healthy replica
+   *
+   * @param socket   Dstore socket connection
+   * @param filename file name
+   */
+  private void handleReplicaCorrupt(Socket socket, String filename) {
+    Integer dstoreId = dstores.idOf(socket);
+    FileInfo fileInfo = index.getFileInfo(filename);
+    if (dstoreId == null || fileInfo == null || !index.removeReplica(filename, dstoreId)) {
+      return;
+    }
+    placement.recordRemoved(dstores.portOf(dstoreId), fileInfo.getFileSize());
+    System.out.println("Dstore " + dstores.portOf(dstoreId) + " lost corrupt replica of " + filename);
+    rebalanceScheduler.execute(this::rebalance);
+  }
+
+  /**
+   * Handle LOAD_STATS from a Dstore
+   *
+   * @param socket        Dstore socket connection
+   * @param inFlight      transfers the Dstore is serving
+   * @param latencyMicros moving average of the Dstore's transfer time in microseconds
+   * @param queueDepth    connections waiting for a handler thread on the Dstore
+   */
+  private void handleLoadStats(Socket socket, int inFlight, long latencyMicros, int queueDepth) {
+    Integer dstoreId = dstores.idOf(socket);
+    if (dstoreId != null) {
+      replicaSelector.report(dstoreId, inFlight, latencyMicros, queueDepth);
+    }
   }
 
   /**
    * Handle LIST command
+   * A plain LIST streams every complete file; a paged LIST streams at most limit files with the prefix after the cursor.
+   * Names come sorted from the index's live view, so the next page starts after the last name of this one.
    *
-   * @param writer Writer to write response
+   * @param channel Channel to send replies on
+   * @param prefix  Prefix of the file names, or null for a plain LIST
+   * @param cursor  Last name of the previous page, empty for the first page
+   * @param limit   Maximum number of names, 0 for no limit
    */
-  private void handleListCommand(PrintWriter writer) {
-    if (dstoresList.size() < r) {
-      writer.println("ERROR_NOT_ENOUGH_DSTORES");
+  private void handleListCommand(ControlChannel channel, String prefix, String cursor, int limit) {
+    if (dstores.size() < r) {
+      channel.send(Protocol.ERROR_NOT_ENOUGH_DSTORES);
       return;
     }
 
-    List<String> completeFiles = index.getCompleteFiles();
-    System.out.println(index.getCompleteFiles().toString());
-    if (completeFiles.isEmpty()) {
-      writer.println("LIST");
-    } else {
-      String fileList = String.join(" ", completeFiles);
-      writer.println("LIST " + fileList);
+    NavigableSet<String> complete = prefix == null ? index.getCompleteFiles("", "") : index.getCompleteFiles(prefix, cursor);
+    Iterable<String> files = complete;
+    if (limit > 0) {
+      List<String> page = new ArrayList<>(Math.min(limit, Protocol.LIST_CHUNK));
+      for (Iterator<String> it = files.iterator(); it.hasNext() && page.size() < limit; ) {
+        page.add(it.next());
+      }
+      files = page;
     }
+    channel.sendList(files);
   }
 
   /**
    * Handle STORE command.
    * Select Dstores to store the file.
-   * Send STORE_TO message to the client.
+   * Send STORE_TO message to the client, unless the declared contents are already stored and can be linked.
+   * A file of at least controller.ecThreshold bytes is erasure-coded when there are k + m Dstores: k + m distinct
+   * Dstores are chosen to hold its fragments, and the client uploads it only to the first, which encodes it.
+   * A client file cannot take the name of a chunk of a multipart file.
    *
-   * @param clientSocket client socket connection to send response
-   * @param msg          incoming message
-   * @param writer       writer to write response
+   * @param filename  file name
+   * @param fileSize  file size
+   * @param contentId declared content hash and size, or null
+   * @param chunk     whether the file is a chunk of a multipart file
+   * @param channel   channel to send replies on
    */
-  private void handleStoreCommand(Socket clientSocket, String msg, PrintWriter writer) {
-    String[] msgParts = msg.split(" ");
-    if (msgParts.length != 3) {
-      return;
+  private void handleStoreCommand(String filename, long fileSize, String contentId, boolean chunk, ControlChannel channel) {
+    // A client file named like a chunk is checked against the multipart file, whose lock is taken first
+    ReentrantLock parentLock = !chunk && Protocol.chunkIndex(filename) >= 0
+        ? fileLocks.computeIfAbsent(Protocol.chunkParent(filename), k -> new ReentrantLock()) : null;
+    if (parentLock != null) {
+      parentLock.lock();
     }
-    String filename = msgParts[1];
-    int fileSize = Integer.parseInt(msgParts[2]);
-
     ReentrantLock lock = fileLocks.computeIfAbsent(filename, k -> new ReentrantLock());
     lock.lock();
     try {
-      if (index.isFileComplete(filename) || index.isFileInProgress(filename)) {
+      if (index.getFileInfo(filename) != null || (parentLock != null && isChunkOfMultipartFile(filename))) {
         System.out.println("File already exists or is in progress");
-        writer.println("ERROR_FILE_ALREADY_EXISTS");
-      } else if (dstoresList.size() < r) {
+        channel.send(Protocol.ERROR_FILE_ALREADY_EXISTS);
+      } else if (dstores.size() < r) {
         System.out.println("Not enough Dstores");
-        writer.println("ERROR_NOT_ENOUGH_DSTORES");
-      } else {
-        List<Socket> selectedDstores = randomDstore();
-        if (selectedDstores.size() < r) {
-          writer.println("ERROR_NOT_ENOUGH_DSTORES");
+        channel.send(Protocol.ERROR_NOT_ENOUGH_DSTORES);
+      } else if (contentId == null || !linkToContent(filename, fileSize, contentId, channel)) {
+        boolean erasure = ecThreshold > 0 && fileSize >= ecThreshold && dstores.size() >= ecData + ecParity;
+        int wanted = erasure ? ecData + ecParity : r;
+        long bytesPerDstore = erasure ? ReedSolomon.fragmentLength(fileSize, ecData) : fileSize;
+        int[] selectedDstores = selectDstores(filename, bytesPerDstore, wanted);
+        if (selectedDstores.length < wanted) {
+          for (Integer dstorePort : portsOf(selectedDstores)) {
+            placement.recordRemoved(dstorePort, bytesPerDstore);
+          }
+          channel.send(Protocol.ERROR_NOT_ENOUGH_DSTORES);
         } else {
-          index.fileToStore(filename, selectedDstores, fileSize);
-          System.out.println(index.getInProgressFilesInfo());
-
-          acknowledgements.put(filename, r);
-          initialStoreTimes.put(filename, System.currentTimeMillis());
-          activeStoreClients.put(filename, clientSocket);  // Track client socket
-          String response = "STORE_TO " + formatDstorePort(selectedDstores);
-          System.out.println("Storing file: " + filename + " to Dstores: " + formatDstorePort(selectedDstores));
-          writer.println(response);
+          int[] uploadTo = erasure ? new int[] {selectedDstores[0]} : selectedDstores;
+          if (chunk) {
+            index.chunkToStore(filename, selectedDstores, fileSize, erasure ? ecData : 0, erasure ? ecParity : 0);
+          } else {
+            index.fileToStore(filename, selectedDstores, fileSize, contentId, erasure ? ecData : 0, erasure ? ecParity : 0);
+          }
+
+          PendingAcks pending = new PendingAcks(uploadTo, channel);  // Track the client's reply channel and expected Dstores
+          pendingAcks.put(filename, pending);
+          pending.setDeadline(scheduleTimeout(() -> storeTimedOut(filename, pending)));
+          System.out.println("Storing file: " + filename + " to Dstores: " + formatDstorePort(selectedDstores)
+              + (erasure ? " as " + ecData + "+" + ecParity + " fragments" : ""));
+          channel.sendStoreTo(endpointsOf(uploadTo));
+        }
+      }
+    } finally {
+      lock.unlock();
+      if (parentLock != null) {
+        parentLock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Handle STORE_MULTIPART command
+   * Start a multipart upload, or resume one in progress with the same size, and send STORE_PARTS with the
+   * chunks still to be stored. The file is indexed in progress until COMPLETE_MULTIPART; it has no deadline,
+   * so an abandoned upload stays until it is removed. An upload is refused if a client file has one of its chunk
+   * names, or if its own name is that of a chunk of another multipart file.
+   *
+   * @param filename file name
+   * @param fileSize file size
+   * @param channel  channel to send replies on
+   */
+  private void handleStoreMultipart(String filename, long fileSize, ControlChannel channel) {
+    ReentrantLock lock = fileLocks.computeIfAbsent(filename, k -> new ReentrantLock());
+    lock.lock();
+    try {
+      FileInfo fileInfo = index.getFileInfo(filename);
+      if (dstores.size() < r) {
+        channel.send(Protocol.ERROR_NOT_ENOUGH_DSTORES);
+      } else if (fileInfo == null && (fileSize + chunkSize - 1) / chunkSize > MAX_CHUNKS) {
+        channel.send(Protocol.ERROR, "Too many chunks");
+      } else if (fileInfo == null && hasChunkNameTaken(filename, (int) ((fileSize + chunkSize - 1) / chunkSize))) {
+        channel.send(Protocol.ERROR_FILE_ALREADY_EXISTS);
+      } else if (fileInfo == null) {
+        index.fileToStoreInChunks(filename, fileSize, chunkSize);
+        fileInfo = index.getFileInfo(filename);
+        System.out.println("Storing file: " + filename + " in " + fileInfo.getChunkCount() + " chunks of " + chunkSize + " bytes");
+        channel.sendParts(fileInfo.chunkSize, missingChunks(filename, fileInfo));
+      } else if (fileInfo.isChunked() && fileInfo.state == FileState.IN_PROGRESS && fileInfo.fileSize == fileSize) {
+        int[] missing = missingChunks(filename, fileInfo);
+        System.out.println("Resuming upload of " + filename + ", " + missing.length + " of " + fileInfo.getChunkCount() + " chunks missing");
+        channel.sendParts(fileInfo.chunkSize, missing);
+      } else {
+        channel.send(Protocol.ERROR_FILE_ALREADY_EXISTS);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Handle STORE_PART command
+   * Store one chunk of a multipart upload as a file of its own, replying STORE_TO and then STORE_COMPLETE as for STORE.
+   * A chunk that is already stored is answered with STORE_COMPLETE straight away, so a retry is harmless.
+   *
+   * @param clientSocket client socket connection
+   * @param filename     name of the multipart file
+   * @param part         index of the chunk
+   * @param channel      channel to send replies on
+   */
+  private void handleStorePart(Socket clientSocket, String filename, int part, ControlChannel channel) {
+    FileInfo fileInfo = index.getFileInfo(filename);
+    if (fileInfo == null || !fileInfo.isChunked() || fileInfo.state != FileState.IN_PROGRESS) {
+      channel.send(Protocol.ERROR_FILE_DOES_NOT_EXIST);
+    } else if (part < 0 || part >= fileInfo.getChunkCount()) {
+      channel.send(Protocol.ERROR, "No chunk " + part);
+    } else {
+      String chunk = Protocol.chunkName(filename, part);
+      if (index.isFileComplete(chunk)) {
+        channel.send(Protocol.STORE_COMPLETE);
+      } else {
+        resetClientLoadAttempts(clientSocket, chunk);
+        runUnlessRebalancing(Protocol.STORE, chunk, () -> handleStoreCommand(chunk, fileInfo.getChunkSize(part), null, true, channel));
+      }
+    }
+  }
+
+  /**
+   * Handle COMPLETE_MULTIPART command
+   * Mark a multipart file complete once all its chunks are stored and send STORE_COMPLETE once that is durable,
+   * or send STORE_PARTS with the chunks still missing.
+   *
+   * @param filename name of the multipart file
+   * @param channel  channel to send replies on
+   */
+  private void handleCompleteMultipart(String filename, ControlChannel channel) {
+    ReentrantLock lock = fileLocks.computeIfAbsent(filename, k -> new ReentrantLock());
+    lock.lock();
+    try {
+      FileInfo fileInfo = index.getFileInfo(filename);
+      if (fileInfo == null || !fileInfo.isChunked() || fileInfo.state == FileState.REMOVE_IN_PROGRESS) {
+        channel.send(Protocol.ERROR_FILE_DOES_NOT_EXIST);
+        return;
+      }
+      int[] missing = fileInfo.state == FileState.COMPLETE ? new int[0] : missingChunks(filename, fileInfo);
+      if (missing.length > 0) {
+        channel.sendParts(fileInfo.chunkSize, missing);
+      } else {
+        if (index.markFileAsComplete(filename)) {
+          System.out.println("STORE Success for " + filename + " in " + fileInfo.getChunkCount() + " chunks");
         }
+        afterCommit(() -> channel.send(Protocol.STORE_COMPLETE));
       }
     } finally {
       lock.unlock();
     }
   }
 
+  /**
+   * Checks whether a name is that of a chunk of a multipart file, stored or not.
+   * The caller holds the lock of the multipart file.
+   *
+   * @param filename a name for which Protocol.chunkIndex is not -1
+   * @return true if the multipart file exists and has a chunk of that index
+   */
+  private boolean isChunkOfMultipartFile(String filename) {
+    FileInfo parent = index.getFileInfo(Protocol.chunkParent(filename));
+    return parent != null && parent.isChunked() && Protocol.chunkIndex(filename) < parent.getChunkCount();
+  }
+
+  /**
+   * Checks whether a new multipart file would clash with existing names: a client file with one of its chunk names,
+   * or a multipart file of which its own name is a chunk.
+   * The caller holds the lock of the new file, which client files named like its chunks are stored under.
+   *
+   * @param filename   name of the new multipart file
+   * @param chunkCount number of chunks of the new file
+   * @return true if a name is taken
+   */
+  private boolean hasChunkNameTaken(String filename, int chunkCount) {
+    if (Protocol.chunkIndex(filename) >= 0 && isChunkOfMultipartFile(filename)) {
+      return true;
+    }
+    for (int i = 0; i < chunkCount; i++) {
+      if (index.getFileInfo(Protocol.chunkName(filename, i)) != null) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * The chunks of a multipart file that are not stored yet
+   *
+   * @param filename name of the multipart file
+   * @param fileInfo file info of the multipart file
+   * @return indices of the chunks that are not complete, in order
+   */
+  private int[] missingChunks(String filename, FileInfo fileInfo) {
+    int[] missing = new int[fileInfo.getChunkCount()];
+    int count = 0;
+    for (int i = 0; i < missing.length; i++) {
+      if (!index.isFileComplete(Protocol.chunkName(filename, i))) {
+        missing[count++] = i;
+      }
+    }
+    return Arrays.copyOf(missing, count);
+  }
+
   /**
    * Handle STORE_ACK message
-   * STORE_COMPLETE if all Dstores have acknowledged
+   * STORE_COMPLETE if all Dstores have acknowledged, or for an erasure-coded file, ENCODE once its upload is stored
    *
-   * @param msg incoming message from Dstores.
+   * @param dstoreSocket socket of the acknowledging Dstore
+   * @param filename     file name
+   * @param checksum     CRC32C of the Dstore's replica, or NO_CHECKSUM
    */
-  private void handleStoreAck(String msg) {
-    String[] parts = msg.split(" ");
-    if (parts.length < 2) {
+  private void handleStoreAck(Socket dstoreSocket, String filename, long checksum) {
+    FileInfo fileInfo = index.getFileInfo(filename);
+    long recorded = checksum == Protocol.NO_CHECKSUM || fileInfo == null ? checksum : fileInfo.recordChecksum(checksum);
+    if (recorded != checksum) {
+      System.out.println("Checksum mismatch for " + filename + ": replicas stored " + Long.toHexString(recorded)
+          + " and " + Long.toHexString(checksum));
+    }
+    PendingAcks pending = acknowledge(dstoreSocket, filename);
+    if (pending != null && fileInfo != null && fileInfo.isErasureCoded()) {
+      startEncode(dstoreSocket, filename, fileInfo, pending);
+    } else if (pending != null) {
+      completeStore(filename, pending);
+    }
+  }
+
+  /**
+   * Ask the Dstore holding the upload of an erasure-coded file to encode it and send out its fragments
+   * The STORE stays in progress, with a new deadline, until the Dstore reports ENCODE_COMPLETE.
+   *
+   * @param coordinator socket of the Dstore holding the upload
+   * @param filename    file name
+   * @param fileInfo    file info of the file, with the fragment holders in order
+   * @param uploaded    the completed upload, whose client is answered once encoding completes
+   */
+  private void startEncode(Socket coordinator, String filename, FileInfo fileInfo, PendingAcks uploaded) {
+    Integer coordinatorId = dstores.idOf(coordinator);
+    if (coordinatorId == null) {
       return;
     }
+    PendingAcks pending = new PendingAcks(new int[] {coordinatorId}, uploaded.getClient());
+    pendingAcks.put(filename, pending);
+    pending.setDeadline(scheduleTimeout(() -> storeTimedOut(filename, pending)));
+    StringBuilder arguments = new StringBuilder(filename).append(' ').append(fileInfo.dataShards).append(' ').append(fileInfo.parityShards);
+    for (int dstoreId : fileInfo.getDstoreIds()) {
+      arguments.append(' ').append(dstores.portOf(dstoreId));
+    }
+    try {
+      channelFor(coordinator).send(Protocol.ENCODE, arguments.toString());
+    } catch (IOException e) {
+      System.out.println("Error sending ENCODE to Dstore: " + e.getMessage());
+    }
+  }
 
-    String filename = parts[1];
+  /**
+   * Handle ENCODE_COMPLETE message
+   * The fragments of an erasure-coded file are all stored, so the STORE is complete
+   *
+   * @param dstoreSocket socket of the Dstore that encoded the file
+   * @param filename     file name
+   */
+  private void handleEncodeComplete(Socket dstoreSocket, String filename) {
+    PendingAcks pending = acknowledge(dstoreSocket, filename);
+    if (pending != null) {
+      completeStore(filename, pending);
+    }
+  }
 
-    synchronized (this) {
-      Integer count = acknowledgements.getOrDefault(filename, 0);
-      if (count <= 1) {
-        acknowledgements.remove(filename);
-        index.markFileAsComplete(filename);
-        initialStoreTimes.remove(filename);
-        System.out.println("STORE Success for " + filename);
+  /**
+   * Mark a file whose Dstores have all acknowledged as complete, and send STORE_COMPLETE once that is durable
+   *
+   * @param filename file name
+   * @param pending  the completed STORE operation
+   */
+  private void completeStore(String filename, PendingAcks pending) {
+    if (index.markFileAsComplete(filename)) {
+      System.out.println("STORE Success for " + filename);
 
-        Socket clientSocket = activeStoreClients.remove(filename);
-        if (clientSocket != null) {
-          try {
-            PrintWriter writer = new PrintWriter(clientSocket.getOutputStream(), true);
-            writer.println("STORE_COMPLETE");
-          } catch (IOException e) {
-            System.out.println("Error can't send STORE_COMPLETE to client: " + e.getMessage());
-          }
+      afterCommit(() -> pending.getClient().send(Protocol.STORE_COMPLETE));
+      FileInfo fileInfo = index.getFileInfo(filename);
+      if (fileInfo != null && fileInfo.isChunk() && !index.isFileInProgress(Protocol.chunkParent(filename))) {
+        System.out.println("Removing " + filename + ", a chunk of an upload removed while it was stored");
+        handleRemoveCommand(filename, new CountdownChannel(1, Protocol.REMOVE_COMPLETE, failures -> { }));
+      }
+    }
+  }
+
+  /**
+   * Store a file whose declared contents are already held, by telling the Dstores of a complete file with the
+   * same contents to LINK the new name to it. No data moves; the Dstores answer with STORE_ACK as for an upload,
+   * and the client gets STORE_COMPLETE without a STORE_TO. Each Dstore hard-links the file, so REMOVE of one name
+   * frees the data only with the last name, matching the content's reference count in the index.
+   *
+   * @param filename  file name
+   * @param fileSize  file size
+   * @param contentId declared content hash and size
+   * @param channel   channel to send replies on
+   * @return false if no complete file with the contents is on r live Dstores, so the file must be uploaded
+   */
+  private boolean linkToContent(String filename, long fileSize, String contentId, ControlChannel channel) {
+    String source = index.findCompleteFileWithContent(contentId);
+    FileInfo sourceInfo = source == null ? null : index.getCompleteFileInfo(source);
+    if (sourceInfo == null || sourceInfo.isErasureCoded()) {
+      return false;  // Fragments cannot be linked: each holder has only part of the contents
+    }
+    int[] dstoreIds = sourceInfo.getDstoreIds();
+    if (dstoreIds.length < r) {
+      return false;
+    }
+    for (int dstoreId : dstoreIds) {
+      if (!dstores.isLive(dstoreId)) {
+        return false;
+      }
+    }
+    index.fileToStore(filename, dstoreIds, fileSize, contentId);
+    for (int dstorePort : portsOf(dstoreIds)) {
+      placement.recordStored(dstorePort, fileSize);
+    }
+    PendingAcks pending = new PendingAcks(dstoreIds, channel);
+    pendingAcks.put(filename, pending);
+    pending.setDeadline(scheduleTimeout(() -> storeTimedOut(filename, pending)));
+    System.out.println("Linking file: " + filename + " to " + source + " on Dstores: " + formatDstorePort(dstoreIds)
+        + ", " + index.getContentReferences(contentId) + " references");
+    for (int dstoreId : dstoreIds) {
+      Socket dstore = dstores.socketOf(dstoreId);
+      if (dstore != null) {
+        try {
+          channelFor(dstore).send(Protocol.LINK, source + " " + filename);
+        } catch (IOException e) {
+          System.out.println("Error sending LINK to Dstore: " + e.getMessage());
         }
-      } else {
-        acknowledgements.put(filename, count - 1);
       }
     }
+    return true;
   }
 
   /**
@@ -302,35 +874,34 @@ public class Controller {
    * Send LOAD_FROM message to the client
    *
    * @param clientSocket client socket connection to send response
-   * @param msg          incoming message
-   * @param writer       writer to write response
+   * @param filename     file name
+   * @param channel      channel to send replies on
    */
-  private void handleLoadCommand(Socket clientSocket, String msg, PrintWriter writer) {
-    String[] parts = msg.split(" ");
-    if (parts.length != 2) {
-      return;
-    }
-    String filename = parts[1];
+  private void handleLoadCommand(Socket clientSocket, String filename, ControlChannel channel) {
 
     ReentrantLock lock = fileLocks.computeIfAbsent(filename, k -> new ReentrantLock());
     lock.lock();
     try {
-      if (dstoresList.size() < r) {
-        writer.println("ERROR_NOT_ENOUGH_DSTORES");
-      } else if (index.getCompleteFileInfo(filename) == null || index.getInProgressFilesInfo().containsKey(filename)) {
-        writer.println("ERROR_FILE_DOES_NOT_EXIST");
+      if (dstores.size() < r) {
+        channel.send(Protocol.ERROR_NOT_ENOUGH_DSTORES);
+      } else if (index.getCompleteFileInfo(filename) == null) {
+        channel.send(Protocol.ERROR_FILE_DOES_NOT_EXIST);
       } else {
-        List<Socket> dstoreSockets = index.getCompleteFileInfo(filename).getDstoreSockets();
-        clientLoadAttempts.put(clientSocket, new ArrayList<>(dstoreSockets)); // The original list of Dstores.
-        Socket selectedDstore = dstoresForLoadOperation(clientSocket);
+        FileInfo fileInfo = index.getCompleteFileInfo(filename);
+        if (fileInfo.isChunked()) {
+          loadChunks(clientSocket, filename, fileInfo, channel);
+          return;
+        }
+        clientLoadAttempts.computeIfAbsent(clientSocket, k -> new ConcurrentHashMap<>()).put(filename, liveIdListOf(fileInfo)); // The original list of Dstores.
+        Integer selectedDstore = dstoresForLoadOperation(clientSocket, filename);
         if (selectedDstore == null) {
-          writer.println("ERROR_LOAD");
+          channel.send(Protocol.ERROR_LOAD);
         } else {
-          Integer port = socketIntegerConcurrentHashMap.get(selectedDstore);
-          if (port == null) {
+          Protocol.Endpoint endpoint = dstores.endpointOf(selectedDstore);
+          if (endpoint == null) {
             System.out.println("Port not found");
           } else {
-            writer.println("LOAD_FROM " + port + " " + index.getCompleteFileInfo(filename).getFileSize());
+            channel.sendLoadFrom(endpoint, index.getCompleteFileInfo(filename).getFileSize());
           }
         }
       }
@@ -339,39 +910,91 @@ public class Controller {
     }
   }
 
+  /**
+   * Send LOAD_PARTS for a multipart file, with one Dstore chosen for each chunk
+   * The Dstores not chosen are remembered per chunk, so RELOAD of a chunk's name offers another one.
+   *
+   * @param clientSocket client socket connection
+   * @param filename     name of the multipart file
+   * @param fileInfo     file info of the multipart file
+   * @param channel      channel to send replies on
+   */
+  private void loadChunks(Socket clientSocket, String filename, FileInfo fileInfo, ControlChannel channel) {
+    Map<String, List<Integer>> attempts = clientLoadAttempts.computeIfAbsent(clientSocket, k -> new ConcurrentHashMap<>());
+    Protocol.Endpoint[] endpoints = new Protocol.Endpoint[fileInfo.getChunkCount()];
+    for (int i = 0; i < endpoints.length; i++) {
+      String chunk = Protocol.chunkName(filename, i);
+      FileInfo chunkInfo = index.getCompleteFileInfo(chunk);
+      if (chunkInfo == null) {
+        System.out.println("Chunk " + chunk + " is not stored");
+        channel.send(Protocol.ERROR_LOAD);
+        return;
+      }
+      attempts.put(chunk, liveIdListOf(chunkInfo));
+      Integer selectedDstore = dstoresForLoadOperation(clientSocket, chunk);
+      endpoints[i] = selectedDstore == null ? null : dstores.endpointOf(selectedDstore);
+      if (endpoints[i] == null) {
+        channel.send(Protocol.ERROR_LOAD);
+        return;
+      }
+    }
+    channel.sendLoadParts(fileInfo.fileSize, fileInfo.chunkSize, endpoints);
+  }
+
+  /**
+   * Handle LOAD_ALL command
+   * Send LOAD_FROM_ALL with every live Dstore holding the file, so the client can fetch disjoint ranges in parallel
+   * A multipart file is answered with LOAD_PARTS, whose chunks can already be fetched in parallel.
+   *
+   * @param clientSocket client socket connection
+   * @param filename     file name
+   * @param channel      channel to send replies on
+   */
+  private void handleLoadAllCommand(Socket clientSocket, String filename, ControlChannel channel) {
+    FileInfo fileInfo = index.getCompleteFileInfo(filename);
+    if (dstores.size() < r) {
+      channel.send(Protocol.ERROR_NOT_ENOUGH_DSTORES);
+    } else if (fileInfo == null) {
+      channel.send(Protocol.ERROR_FILE_DOES_NOT_EXIST);
+    } else if (fileInfo.isChunked()) {
+      loadChunks(clientSocket, filename, fileInfo, channel);
+    } else {
+      Protocol.Endpoint[] endpoints = endpointsOf(fileInfo.getDstoreIds());
+      if (endpoints.length == 0) {
+        channel.send(Protocol.ERROR_LOAD);
+      } else {
+        channel.sendLoadFromAll(fileInfo.getFileSize(), endpoints);
+      }
+    }
+  }
+
   /**
    * Handle RELOAD command
    * Select Dstore to load the file
    *
    * @param clientSocket client socket connection to send response
-   * @param msg          incoming message
-   * @param writer       writer to write response
+   * @param filename     file name
+   * @param channel      channel to send replies on
    */
-  private void handleReloadCommand(Socket clientSocket, String msg, PrintWriter writer) {
-    String[] parts = msg.split(" ");
-    if (parts.length < 2) {
-      return;
-    }
-    String filename = parts[1];
+  private void handleReloadCommand(Socket clientSocket, String filename, ControlChannel channel) {
 
     ReentrantLock lock = fileLocks.computeIfAbsent(filename, k -> new ReentrantLock());
     lock.lock();
     try {
-      List<Socket> dstoreSockets = clientLoadAttempts.get(clientSocket);
-      if (dstoreSockets == null || dstoreSockets.isEmpty()) {
-        writer.println("ERROR_LOAD");
+      if (index.getCompleteFileInfo(filename) == null) {
+        channel.send(Protocol.ERROR_LOAD);
         return;
       }
 
-      Socket selectedDstore = dstoresForLoadOperation(clientSocket);
+      Integer selectedDstore = dstoresForLoadOperation(clientSocket, filename);
       if (selectedDstore == null) {
-        writer.println("ERROR_LOAD");
+        channel.send(Protocol.ERROR_LOAD);
       } else {
-        Integer port = socketIntegerConcurrentHashMap.get(selectedDstore);
-        if (port == null) {
+        Protocol.Endpoint endpoint = dstores.endpointOf(selectedDstore);
+        if (endpoint == null) {
           System.out.println("Dstore port not found");
         } else {
-          writer.println("LOAD_FROM " + port + " " + index.getCompleteFileInfo(filename).getFileSize());
+          channel.sendLoadFrom(endpoint, index.getCompleteFileInfo(filename).getFileSize());
         }
       }
     } finally {
@@ -381,46 +1004,47 @@ public class Controller {
 
   /**
    * Handle REMOVE command
-   * Select Dstores to remove the file
-   * Send REMOVE message to Dstores
+   * Send REMOVE message to the live Dstores holding the file
+   * Dstores that are down are not waited for, since they could never acknowledge
    *
-   * @param clientSocket client socket connection to send response
-   * @param message      incoming message
-   * @param out          writer to write response
+   * @param filename file name
+   * @param channel  channel to send replies on
    */
-  private void handleRemoveCommand(Socket clientSocket, String message, PrintWriter out) {
-    String[] parts = message.split(" ");
-    if (parts.length != 2) {
-      System.out.println("Malformed message: " + message);
-      return;
-    }
-    String filename = parts[1];
+  private void handleRemoveCommand(String filename, ControlChannel channel) {
 
     ReentrantLock lock = fileLocks.computeIfAbsent(filename, k -> new ReentrantLock());
     lock.lock();
     try {
 
-      if (dstoresList.size() < r) {
-        out.println("ERROR_NOT_ENOUGH_DSTORES");
-      } else if (!index.isFileComplete(filename) || index.getInProgressFilesInfo().containsKey(filename)) {
-        out.println("ERROR_FILE_DOES_NOT_EXIST");
+      if (dstores.size() < r) {
+        channel.send(Protocol.ERROR_NOT_ENOUGH_DSTORES);
+      } else if (!index.isFileComplete(filename)) {
+        channel.send(Protocol.ERROR_FILE_DOES_NOT_EXIST);
       } else {
-        List<Socket> dstoreSockets = new ArrayList<>(index.getCompleteFileInfo(filename).getDstoreSockets());
-        acknowledgements.put(filename, dstoreSockets.size());
-        activeRemoveClients.put(filename, clientSocket);
+        FileInfo fileInfo = index.getCompleteFileInfo(filename);
+        int[] dstoreIds = liveIdsOf(fileInfo.getDstoreIds());
+        PendingAcks pending = new PendingAcks(dstoreIds, channel);
+        pendingAcks.put(filename, pending);
+        recordRemovedFromDstores(fileInfo);
         index.markFileAsRemoveInProgress(filename);
-        for (Socket dstore : dstoreSockets) {
-          Integer port = socketIntegerConcurrentHashMap.get(dstore);
-          if (port != null) {
+        for (int dstoreId : dstoreIds) {
+          Socket dstore = dstores.socketOf(dstoreId);
+          if (dstore != null) {
             try {
-              PrintWriter dstoreOut = new PrintWriter(dstore.getOutputStream(), true);
-              dstoreOut.println("REMOVE " + filename);
+              channelFor(dstore).send(Protocol.REMOVE, filename);
             } catch (IOException e) {
               System.out.println("Error sending REMOVE reply to Dstore: " + e.getMessage());
             }
           }
         }
-        removeTimeout(filename);
+        if (dstoreIds.length == 0 && index.removeFile(filename, FileState.REMOVE_IN_PROGRESS) != null) {
+          pendingAcks.remove(filename, pending);  // No live Dstore holds it, so there is nothing to wait for
+          fileLocks.remove(filename);
+          System.out.println("REMOVE_COMPLETE for " + filename);
+          afterCommit(() -> channel.send(Protocol.REMOVE_COMPLETE));
+          return;
+        }
+        pending.setDeadline(scheduleTimeout(() -> removeTimedOut(filename, pending)));
       }
     } finally {
       lock.unlock();
@@ -428,84 +1052,458 @@ public class Controller {
   }
 
   /**
-   * Handle REMOVE_ACK message
-   * Remove the file if all Dstores have acknowledged
+   * Remove a multipart file, or abort its upload, by removing each of its stored chunks
+   * The file is marked as being removed first, so no chunk can be added and the upload cannot complete.
+   * REMOVE_COMPLETE is sent once every chunk is removed; if some could not be, the file stays marked,
+   * and a later REMOVE tries the chunks still stored again. That includes a chunk whose REMOVE timed out, which is
+   * complete again on the Dstores that did not acknowledge it. A chunk still being stored or removed counts as not
+   * removed, so the file is only dropped from the index once none of its chunks is.
    *
-   * @param message incoming message from Dstores
+   * @param filename name of the multipart file
+   * @param fileInfo file info of the multipart file
+   * @param channel  channel to send replies on
    */
-  private void handleRemoveAck(String message) {
-    String[] parts = message.split(" ");
-    if (parts.length != 2) {
+  private void handleRemoveChunks(String filename, FileInfo fileInfo, ControlChannel channel) {
+    if (dstores.size() < r) {
+      channel.send(Protocol.ERROR_NOT_ENOUGH_DSTORES);
+      return;
+    }
+    if (!removingChunks.add(filename)) {
+      channel.send(Protocol.ERROR_FILE_DOES_NOT_EXIST);  // Already being removed
       return;
     }
-    String filename = parts[1];
-    synchronized (this) {
-      Integer count = acknowledgements.getOrDefault(filename, 0);
-      if (count <= 1) {
-        acknowledgements.remove(filename);
-        index.removeFile(filename);
+    ReentrantLock lock = fileLocks.computeIfAbsent(filename, k -> new ReentrantLock());
+    lock.lock();
+    try {
+      if (fileInfo.state != FileState.REMOVE_IN_PROGRESS && !index.markFileAsRemoveInProgress(filename) && !index.abortUpload(filename)) {
+        removingChunks.remove(filename);
+        channel.send(Protocol.ERROR_FILE_DOES_NOT_EXIST);
+        return;
+      }
+    } finally {
+      lock.unlock();
+    }
+
+    List<String> chunks = new ArrayList<>();
+    int busy = 0;  // Chunks with a STORE or REMOVE still in flight
+    for (int i = 0; i < fileInfo.getChunkCount(); i++) {
+      String chunk = Protocol.chunkName(filename, i);
+      if (index.isFileComplete(chunk)) {
+        chunks.add(chunk);
+      } else if (index.getFileInfo(chunk) != null) {
+        busy++;
+      }
+    }
+    System.out.println("Removing " + chunks.size() + " chunks of " + filename);
+    ControlChannel chunkReplies = new CountdownChannel(chunks.size() + busy, Protocol.REMOVE_COMPLETE, failures -> {
+      removingChunks.remove(filename);
+      if (failures > 0) {
+        System.out.println(failures + " chunks of " + filename + " could not be removed");
+        channel.send(Protocol.ERROR, failures + " chunks not removed");
+      } else if (index.removeFile(filename, FileState.REMOVE_IN_PROGRESS) != null) {
         fileLocks.remove(filename);
         System.out.println("REMOVE_COMPLETE for " + filename);
+        afterCommit(() -> channel.send(Protocol.REMOVE_COMPLETE));
+      }
+    });
+    for (String chunk : chunks) {
+      runUnlessRebalancing(Protocol.REMOVE, chunk, () -> handleRemoveCommand(chunk, chunkReplies));
+    }
+    for (int i = 0; i < busy; i++) {
+      chunkReplies.send(Protocol.ERROR, "Busy");
+    }
+  }
 
-        // Notify the client
-        Socket clientSocket = activeRemoveClients.remove(filename);
-        if (clientSocket != null) {
-          try {
-            PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true);
-            out.println("REMOVE_COMPLETE");
-          } catch (IOException e) {
-            System.out.println("Error sending REMOVE_COMPLETE reply to client: " + e.getMessage());
+  /**
+   * Handle REMOVE_ACK message
+   * Remove the file if all Dstores have acknowledged
+   *
+   * @param dstoreSocket socket of the acknowledging Dstore
+   * @param filename     file name
+   */
+  private void handleRemoveAck(Socket dstoreSocket, String filename) {
+    PendingAcks pending = acknowledge(dstoreSocket, filename);
+    if (pending != null && index.removeFile(filename, FileState.REMOVE_IN_PROGRESS) != null) {
+      fileLocks.remove(filename);
+      System.out.println("REMOVE_COMPLETE for " + filename);
+
+      // Notify the client
+      afterCommit(() -> pending.getClient().send(Protocol.REMOVE_COMPLETE));
+    }
+  }
+
+  /**
+   * Run a client STORE or REMOVE now, or queue it if its file is being moved by a rebalance
+   * The check and the command run under the file lock, which a rebalance also holds while it marks the file as moving,
+   * so a command either runs before the file starts moving or waits until the rebalance is over.
+   *
+   * @param opcode   opcode of the message
+   * @param filename file name of the message
+   * @param command  handler to run for the message
+   */
+  private void runUnlessRebalancing(byte opcode, String filename, Runnable command) {
+    ReentrantLock lock = fileLocks.computeIfAbsent(filename, k -> new ReentrantLock());
+    lock.lock();
+    try {
+      Queue<Runnable> queue = deferredCommands.get(filename);
+      if (queue != null) {
+        queue.add(command);
+        System.out.println("Deferred " + Protocol.verb(opcode) + " of " + filename + " until rebalance completes");
+        return;
+      }
+      command.run();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Rebalance the files across the Dstores
+   * Restore R replicas for every complete replicated file and spread files evenly, moving only what has to change.
+   * The copies are made first; surplus replicas are only removed in a second round, and only for files whose new
+   * copies were all confirmed, so a Dstore that fails or times out during a rebalance never leaves a file below R replicas.
+   * Client STORE/REMOVE commands for the moving files are queued until the Dstores acknowledge.
+   */
+  private void rebalance() {
+    if (dstores.size() < r) {
+      return;
+    }
+    Map<String, Set<Integer>> target = Collections.emptyMap();
+    try {
+      Map<String, Set<Integer>> current = new HashMap<>();
+      List<String> complete = index.getCompleteFiles();
+      complete.addAll(index.getCompleteChunks());
+      for (String filename : complete) {
+        FileInfo fileInfo = index.getCompleteFileInfo(filename);
+        if (fileInfo != null && !fileInfo.isErasureCoded() && !fileInfo.isChunked()) {  // Fragments are not copied; each holder has its own, and a multipart file is held as its chunks
+          current.put(filename, portsOf(fileInfo.getDstoreIds()));
+        }
+      }
+
+      Set<Integer> livePorts = new HashSet<>();
+      for (Integer dstoreId : dstores.liveIds()) {
+        livePorts.add(dstores.portOf(dstoreId));
+      }
+      target = RebalancePlanner.plan(current, livePorts, r, placement::rank);
+      Iterator<String> moving = target.keySet().iterator();
+      while (moving.hasNext()) {
+        String filename = moving.next();
+        ReentrantLock lock = fileLocks.computeIfAbsent(filename, k -> new ReentrantLock());
+        lock.lock();
+        try {
+          if (index.isFileComplete(filename)) {
+            deferredCommands.put(filename, new ConcurrentLinkedQueue<>());
+          } else {
+            moving.remove();  // Removed since the snapshot was taken
           }
+        } finally {
+          lock.unlock();
+        }
+      }
+      if (target.isEmpty()) {
+        return;
+      }
+
+      Map<Integer, RebalancePlanner.Instruction> instructions = RebalancePlanner.instructions(current, target);
+      System.out.println("Rebalancing " + target.size() + " files across " + instructions.size() + " Dstores");
+      Map<Integer, RebalancePlanner.Instruction> copies = RebalancePlanner.copies(instructions);
+      Set<Integer> copied = sendRebalance(copies);
+
+      // A copy counts once the Dstore sending it has reported REBALANCE_COMPLETE.
+      Map<String, Set<Integer>> confirmed = new HashMap<>();
+      for (String filename : target.keySet()) {
+        confirmed.put(filename, new HashSet<>(current.get(filename)));
+      }
+      for (Map.Entry<Integer, RebalancePlanner.Instruction> instruction : copies.entrySet()) {
+        if (copied.contains(instruction.getKey())) {
+          for (Map.Entry<String, List<Integer>> send : instruction.getValue().filesToSend.entrySet()) {
+            confirmed.get(send.getKey()).addAll(send.getValue());
+          }
+        }
+      }
+      Map<Integer, RebalancePlanner.Instruction> removals = RebalancePlanner.removals(instructions, target, confirmed);
+      Set<Integer> removed = sendRebalance(removals);
+      for (Map.Entry<Integer, RebalancePlanner.Instruction> instruction : removals.entrySet()) {
+        if (removed.contains(instruction.getKey())) {
+          for (String filename : instruction.getValue().filesToRemove) {
+            confirmed.get(filename).remove(instruction.getKey());
+          }
+        }
+      }
+
+      for (Map.Entry<String, Set<Integer>> entry : confirmed.entrySet()) {
+        String filename = entry.getKey();
+        Set<Integer> holders = entry.getValue();
+        List<Integer> holderIds = new ArrayList<>();
+        for (Integer holder : holders) {
+          Integer dstoreId = dstores.idOfPort(holder);
+          if (dstoreId != null) {
+            holderIds.add(dstoreId);
+          }
+        }
+        FileInfo fileInfo = index.getCompleteFileInfo(filename);
+        if (fileInfo == null) {
+          continue;
+        }
+        long fileSize = fileInfo.getFileSize();
+        for (Integer holder : holders) {
+          if (!current.get(filename).contains(holder)) {
+            placement.recordStored(holder, fileSize);
+          }
+        }
+        for (Integer holder : current.get(filename)) {
+          if (!holders.contains(holder)) {
+            placement.recordRemoved(holder, fileSize);
+          }
+        }
+        index.updateFileDstores(filename, holderIds.stream().mapToInt(Integer::intValue).toArray());
+      }
+      System.out.println("REBALANCE complete");
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (Exception e) {
+      System.out.println("Error during rebalance: " + e.getMessage());
+    } finally {
+      pendingRebalanceAcks.clear();
+      for (String filename : target.keySet()) {
+        ReentrantLock lock = fileLocks.computeIfAbsent(filename, k -> new ReentrantLock());
+        lock.lock();
+        try {
+          Queue<Runnable> queued = deferredCommands.remove(filename);
+          if (queued == null) {
+            continue;
+          }
+          for (Runnable command : queued) {
+            try {
+              command.run();
+            } catch (Exception e) {
+              System.out.println("Error handling deferred command for " + filename + ": " + e.getMessage());
+            }
+          }
+        } finally {
+          lock.unlock();
         }
-      } else {
-        acknowledgements.put(filename, count - 1);
       }
     }
   }
 
+  /**
+   * Send one round of REBALANCE messages and wait for the Dstores to report REBALANCE_COMPLETE
+   *
+   * @param instructions instruction for each Dstore port
+   * @return ports of the Dstores that completed their instruction in time
+   * @throws InterruptedException if interrupted while waiting
+   */
+  private Set<Integer> sendRebalance(Map<Integer, RebalancePlanner.Instruction> instructions) throws InterruptedException {
+    Set<Integer> completed = new HashSet<>();
+    if (instructions.isEmpty()) {
+      return completed;
+    }
+    CountDownLatch latch = new CountDownLatch(instructions.size());
+    pendingRebalanceAcks.clear();
+    rebalanceLatch = latch;
+    Map<Integer, Socket> sentTo = new HashMap<>();
+    for (Map.Entry<Integer, RebalancePlanner.Instruction> entry : instructions.entrySet()) {
+      Socket dstore = socketOfPort(entry.getKey());
+      if (dstore == null) {
+        latch.countDown();
+        continue;
+      }
+      pendingRebalanceAcks.add(dstore);
+      try {
+        channelFor(dstore).send(Protocol.REBALANCE, entry.getValue().toArguments());
+        sentTo.put(entry.getKey(), dstore);
+      } catch (IOException e) {
+        System.out.println("Error sending REBALANCE to Dstore " + entry.getKey() + ": " + e.getMessage());
+        pendingRebalanceAcks.remove(dstore);
+        latch.countDown();
+      }
+    }
+
+    if (!latch.await(rebalance_timeout, TimeUnit.SECONDS)) {
+      System.out.println("Timeout expired for REBALANCE, " + pendingRebalanceAcks.size() + " Dstores did not complete");
+    }
+    for (Map.Entry<Integer, Socket> sent : sentTo.entrySet()) {
+      if (!pendingRebalanceAcks.contains(sent.getValue())) {
+        completed.add(sent.getKey());
+      }
+    }
+    pendingRebalanceAcks.clear();
+    return completed;
+  }
+
+  /**
+   * Handle REBALANCE_COMPLETE message
+   *
+   * @param socket Dstore socket that completed its part of the rebalance
+   */
+  private void handleRebalanceComplete(Socket socket) {
+    CountDownLatch latch = rebalanceLatch;
+    if (pendingRebalanceAcks.remove(socket) && latch != null) {
+      latch.countDown();
+    }
+  }
+
+  /**
+   * Port numbers of the connected Dstores among a set of Dstore IDs
+   *
+   * @param dstoreIds Dstore IDs
+   * @return ports of the Dstores that are still connected
+   */
+  private Set<Integer> portsOf(int[] dstoreIds) {
+    Set<Integer> ports = new HashSet<>();
+    for (int dstoreId : dstoreIds) {
+      if (dstores.isLive(dstoreId)) {
+        ports.add(dstores.portOf(dstoreId));
+      }
+    }
+    return ports;
+  }
+
+  /**
+   * Control connection of the live Dstore listening on a port
+   *
+   * @param dstorePort Dstore port
+   * @return the Dstore socket, or null if no live Dstore listens on the port
+   */
+  private Socket socketOfPort(int dstorePort) {
+    Integer dstoreId = dstores.idOfPort(dstorePort);
+    return dstoreId == null ? null : dstores.socketOf(dstoreId);
+  }
+
+  /**
+   * Record an acknowledgement for the STORE or REMOVE in progress on a file
+   * Only the Dstores the operation was sent to count, each of them once.
+   *
+   * @param dstoreSocket socket of the acknowledging Dstore
+   * @param filename     file name
+   * @return the completed operation if this was its last acknowledgement, otherwise null
+   */
+  private PendingAcks acknowledge(Socket dstoreSocket, String filename) {
+    Integer dstoreId = dstores.idOf(dstoreSocket);
+    PendingAcks pending = pendingAcks.get(filename);
+    if (dstoreId == null || pending == null || !pending.acknowledge(dstoreId)) {
+      return null;
+    }
+    if (!pendingAcks.remove(filename, pending)) {
+      return null;
+    }
+    pending.cancelDeadline();
+    return pending;
+  }
+
   /**
    * Select Dstore for LOAD operation
+   * The least loaded of the Dstores the client has not tried yet is chosen by the replica selector.
    *
    * @param clientSocket client socket connection
-   * @return selected Dstore
+   * @param filename     file name
+   * @return ID of the selected Dstore
    */
-  private Socket dstoresForLoadOperation(Socket clientSocket) {
-    List<Socket> dstoreSockets = clientLoadAttempts.get(clientSocket);
-    if (dstoreSockets == null || dstoreSockets.isEmpty()) return null;
+  private Integer dstoresForLoadOperation(Socket clientSocket, String filename) {
+    Map<String, List<Integer>> attempts = clientLoadAttempts.get(clientSocket);
+    List<Integer> dstoreIds = attempts == null ? null : attempts.get(filename);
+    if (dstoreIds == null || dstoreIds.isEmpty()) return null;
+
+    return dstoreIds.remove(replicaSelector.choose(dstoreIds));
+  }
 
-    return dstoreSockets.remove(new Random().nextInt(dstoreSockets.size()));
+  /**
+   * Get the reply channel of an open connection
+   *
+   * @param socket socket of the connection
+   * @return channel registered for the connection
+   * @throws IOException if the connection has already been closed
+   */
+  private ControlChannel channelFor(Socket socket) throws IOException {
+    ControlChannel channel = connectionChannels.get(socket);
+    if (channel == null) {
+      throw new IOException("Connection closed");
+    }
+    return channel;
   }
 
   /**
-   * Reset client load attempts
+   * Reset client load attempts for a file
    *
    * @param clientSocket client socket connection
+   * @param filename     file name
+   */
+  private void resetClientLoadAttempts(Socket clientSocket, String filename) {
+    Map<String, List<Integer>> attempts = clientLoadAttempts.get(clientSocket);
+    if (attempts != null) {
+      attempts.remove(filename);
+    }
+  }
+
+  /**
+   * Select Dstores to store the file using the configured placement strategy
+   *
+   * @param filename file name
+   * @param bytes    bytes the file takes on each Dstore
+   * @param count    number of Dstores wanted
+   * @return IDs of the selected live Dstores
    */
-  private void resetClientLoadAttempts(Socket clientSocket) {
-    clientLoadAttempts.remove(clientSocket);
+  private int[] selectDstores(String filename, long bytes, int count) {
+    List<Integer> ports = placement.select(filename, bytes, count);
+    int[] selected = new int[ports.size()];
+    int found = 0;
+    for (Integer dstorePort : ports) {
+      Integer dstoreId = dstores.idOfPort(dstorePort);
+      if (dstoreId != null) {
+        selected[found++] = dstoreId;
+      }
+    }
+    return Arrays.copyOf(selected, found);
   }
 
   /**
-   * Select Dstores to store the file
+   * The connected Dstores holding a file, as a list a LOAD can take Dstores from
    *
-   * @return list of selected Dstores
+   * @param fileInfo file info of the file
+   * @return the IDs of the connected Dstores, in a new mutable list
    */
-  private List<Socket> randomDstore() {
-    List<Socket> selected = new ArrayList<>(dstoresList);
-    Collections.shuffle(selected);
-    return selected.subList(0, Math.min(r, selected.size()));
+  private List<Integer> liveIdListOf(FileInfo fileInfo) {
+    List<Integer> dstoreIds = new ArrayList<>();
+    for (int dstoreId : fileInfo.getDstoreIds()) {
+      if (dstores.isLive(dstoreId)) {  // A recovered index may name Dstores that have not rejoined
+        dstoreIds.add(dstoreId);
+      }
+    }
+    return dstoreIds;
+  }
+
+  /**
+   * The connected Dstores among a set of Dstore IDs
+   *
+   * @param dstoreIds Dstore IDs
+   * @return the IDs of the Dstores that are still connected, in the same order
+   */
+  private int[] liveIdsOf(int[] dstoreIds) {
+    return Arrays.stream(dstoreIds).filter(dstores::isLive).toArray();
+  }
+
+  /**
+   * Tell the placement strategy that the Dstores of a file no longer hold it
+   *
+   * @param fileInfo file info of the file
+   */
+  private void recordRemovedFromDstores(FileInfo fileInfo) {
+    for (Integer dstorePort : portsOf(fileInfo.getDstoreIds())) {
+      placement.recordRemoved(dstorePort, fileInfo.getBytesPerDstore());
+    }
   }
 
   /**
    * Format Dstore port numbers
    *
-   * @param dstores list of Dstores
+   * @param dstoreIds IDs of the Dstores
    * @return formatted Dstore port numbers
    */
-  private String formatDstorePort(List<Socket> dstores) {
+  private String formatDstorePort(int[] dstoreIds) {
     StringBuilder sb = new StringBuilder();
-    for (Socket dstore : dstores) {
-      Integer port = socketIntegerConcurrentHashMap.get(dstore);
+    for (int dstoreId : dstoreIds) {
+      Integer port = dstores.portOf(dstoreId);
       if (port != null) {
         sb.append(port).append(" ");
       }
@@ -513,6 +1511,24 @@ public class Controller {
     return sb.toString().trim();
   }
 
+  /**
+   * Pre-encoded endpoints of the Dstores among a set of Dstore IDs
+   *
+   * @param dstoreIds IDs of the Dstores
+   * @return endpoints of the Dstores with a known port
+   */
+  private Protocol.Endpoint[] endpointsOf(int[] dstoreIds) {
+    Protocol.Endpoint[] endpoints = new Protocol.Endpoint[dstoreIds.length];
+    int count = 0;
+    for (int dstoreId : dstoreIds) {
+      Protocol.Endpoint endpoint = dstores.endpointOf(dstoreId);
+      if (endpoint != null && dstores.isLive(dstoreId)) {
+        endpoints[count++] = endpoint;
+      }
+    }
+    return count == endpoints.length ? endpoints : Arrays.copyOf(endpoints, count);
+  }
+
   public static void main(String[] args) {
     if (args.length != 4) {
       System.out.println("Need to provide 4 arguments: <cport> <R> <timeout> <rebalance_period>");
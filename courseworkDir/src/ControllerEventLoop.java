@@ -0,0 +1,347 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+/**
+ * ControllerEventLoop serves the Controller's text and binary protocols from a small fixed set of selector threads.
+ * One acceptor hands new connections to the I/O threads round-robin, and each connection keeps its own
+ * read and write buffers so no thread ever blocks on a single slow peer.
+ * The protocol of a connection is chosen by its first byte; binary frames are decoded in place in the read buffer.
+ */
+public class ControllerEventLoop {
+  private static final int INITIAL_READ_BUFFER = 8 * 1024; // Initial size of a connection's read buffer
+  private static final int MAX_LINE_LENGTH = 4 * 1024 * 1024; // Longest message accepted before the connection is dropped
+
+  private final int port; // Port to listen on
+  private final IoThread[] ioThreads; // Selector threads serving the connections
+  private final MessageHandler handler; // Callback for every complete message
+  private final Consumer<Socket> closeHandler; // Callback when a connection closes
+
+  /**
+   * Callback for a complete text line or binary frame.
+   */
+  public interface MessageHandler {
+    /**
+     * Handle one message received on a connection.
+     *
+     * @param socket  the socket identifying the connection
+     * @param channel channel that queues replies on the connection
+     * @param message the parsed message, reused for the connection's next message
+     */
+    void onMessage(Socket socket, ControlChannel channel, ControlMessage message);
+  }
+
+  /**
+   * Constructor for ControllerEventLoop.
+   *
+   * @param port         port to listen on
+   * @param threads      number of selector threads
+   * @param handler      callback for every complete message
+   * @param closeHandler callback when a connection closes
+   */
+  public ControllerEventLoop(int port, int threads, MessageHandler handler, Consumer<Socket> closeHandler) {
+    this.port = port;
+    this.handler = handler;
+    this.closeHandler = closeHandler;
+    this.ioThreads = new IoThread[Math.max(1, threads)];
+  }
+
+  /**
+   * Start the selector threads and accept connections on the calling thread.
+   *
+   * @throws IOException if the server channel or a selector cannot be opened
+   */
+  public void run() throws IOException {
+    for (int i = 0; i < ioThreads.length; i++) {
+      ioThreads[i] = new IoThread(Selector.open());
+      Thread thread = new Thread(ioThreads[i], "controller-io-" + i);
+      thread.setDaemon(true);
+      thread.start();
+    }
+
+    try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+      serverChannel.bind(new InetSocketAddress(port));
+      System.out.println("Controller started (NIO, " + ioThreads.length + " I/O threads). PORT no: " + port);
+      int next = 0;
+      while (true) {
+        SocketChannel channel = serverChannel.accept();
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        ioThreads[next].register(channel);
+        next = (next + 1) % ioThreads.length;
+      }
+    }
+  }
+
+  /**
+   * A selector thread owning a subset of the connections.
+   */
+  private class IoThread implements Runnable {
+    private final Selector selector; // Selector for this thread's connections
+    private final Queue<SocketChannel> newChannels = new ConcurrentLinkedQueue<>(); // Channels waiting to be registered
+
+    IoThread(Selector selector) {
+      this.selector = selector;
+    }
+
+    /**
+     * Queue a channel for registration with this thread's selector.
+     *
+     * @param channel the accepted channel
+     */
+    void register(SocketChannel channel) {
+      newChannels.add(channel);
+      selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+      while (true) {
+        try {
+          selector.select();
+          SocketChannel channel;
+          while ((channel = newChannels.poll()) != null) {
+            try {
+              Connection connection = new Connection(channel, this);
+              connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            } catch (ClosedChannelException e) {
+              System.out.println("Connection closed before registration: " + e.getMessage());
+            }
+          }
+
+          Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+          while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            Connection connection = (Connection) key.attachment();
+            try {
+              if (key.isValid() && key.isReadable()) {
+                connection.read();
+              }
+              if (key.isValid() && key.isWritable()) {
+                connection.flush();
+              }
+            } catch (IOException e) {
+              connection.close();
+            }
+          }
+        } catch (IOException e) {
+          System.out.println("Controller I/O thread error: " + e.getMessage());
+        }
+      }
+    }
+  }
+
+  /**
+   * Per-connection state: the channel, its read buffer and its queue of pending writes.
+   */
+  private class Connection extends Writer {
+    private final SocketChannel channel; // Channel for this connection
+    private final Socket socket; // Socket used as the connection's identity by the Controller
+    private final IoThread ioThread; // Thread owning this connection
+    private final ControlMessage message = new ControlMessage(); // Parsed message, reused for every message
+    private ControlChannel replies; // Channel handed to the message handler, null until the protocol is known
+    private final Queue<ByteBuffer> pendingWrites = new ArrayDeque<>(); // Replies not yet written to the channel
+    private final StringBuilder outgoing = new StringBuilder(); // Characters written since the last flush
+    private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER); // Bytes received but not yet framed
+    private SelectionKey key; // Selection key of the channel
+    private boolean closed; // Whether the connection has been closed
+
+    Connection(SocketChannel channel, IoThread ioThread) {
+      this.channel = channel;
+      this.socket = channel.socket();
+      this.ioThread = ioThread;
+    }
+
+    /**
+     * Read what is available and dispatch every complete line or frame.
+     *
+     * @throws IOException if the channel fails or the peer closed it
+     */
+    void read() throws IOException {
+      int bytesRead = channel.read(readBuffer);
+      if (bytesRead == -1) {
+        throw new IOException("Connection closed by peer");
+      }
+
+      readBuffer.flip();
+      if (replies == null) {
+        negotiate();
+      }
+      if (replies instanceof BinaryControlChannel) {
+        readFrames();
+      } else if (replies != null) {
+        readLines();
+      }
+      readBuffer.compact();
+
+      if (!readBuffer.hasRemaining()) {
+        if (readBuffer.capacity() >= MAX_LINE_LENGTH) {
+          throw new IOException("Message too long");
+        }
+        ByteBuffer larger = ByteBuffer.allocate(readBuffer.capacity() * 2);
+        readBuffer.flip();
+        larger.put(readBuffer);
+        readBuffer = larger;
+      }
+    }
+
+    /**
+     * Choose the protocol from the first bytes: MAGIC and a version byte for binary, anything else for text.
+     */
+    private void negotiate() {
+      if (!readBuffer.hasRemaining()) {
+        return;
+      }
+      if ((readBuffer.get(readBuffer.position()) & 0xFF) != Protocol.MAGIC) {
+        replies = new TextControlChannel(new PrintWriter(this, true));
+      } else if (readBuffer.remaining() >= 2) {
+        readBuffer.position(readBuffer.position() + 2);
+        BinaryControlChannel binary = new BinaryControlChannel(new FrameOutput());
+        binary.sendHandshake();
+        replies = binary;
+      }
+    }
+
+    /**
+     * Dispatch every complete line in the read buffer.
+     */
+    private void readLines() {
+      int lineStart = readBuffer.position();
+      for (int i = lineStart; i < readBuffer.limit(); i++) {
+        if (readBuffer.get(i) == '\n') {
+          int lineEnd = i > lineStart && readBuffer.get(i - 1) == '\r' ? i - 1 : i;
+          String line = new String(readBuffer.array(), lineStart, lineEnd - lineStart, StandardCharsets.UTF_8);
+          lineStart = i + 1;
+          handler.onMessage(socket, replies, message.parseText(line));
+        }
+      }
+      readBuffer.position(lineStart);
+    }
+
+    /**
+     * Decode and dispatch every complete frame in the read buffer, in place.
+     *
+     * @throws IOException if a frame is malformed or too long
+     */
+    private void readFrames() throws IOException {
+      int end = readBuffer.limit();
+      while (readBuffer.hasRemaining()) {
+        int start = readBuffer.position();
+        long length = 0;
+        int headerEnd = -1;
+        for (int i = start, shift = 0; i < end && shift < 35; i++, shift += 7) {
+          byte b = readBuffer.get(i);
+          length |= (long) (b & 0x7F) << shift;
+          if (b >= 0) {
+            headerEnd = i + 1;
+            break;
+          }
+        }
+        if (headerEnd == -1) {
+          if (end - start >= 5) {
+            throw new IOException("Frame length too long");
+          }
+          return;
+        }
+        if (length < 1 || length > MAX_LINE_LENGTH - 5) {
+          throw new IOException("Invalid frame length: " + length);
+        }
+        if (end - headerEnd < length) {
+          return;
+        }
+        int frameEnd = headerEnd + (int) length;
+        readBuffer.limit(frameEnd).position(headerEnd);
+        handler.onMessage(socket, replies, message.decode(readBuffer));
+        readBuffer.limit(end).position(frameEnd);
+      }
+    }
+
+    @Override
+    public void write(char[] chars, int offset, int length) {
+      synchronized (this) {
+        outgoing.append(chars, offset, length);
+      }
+    }
+
+    @Override
+    public void flush() throws IOException {
+      synchronized (this) {
+        if (outgoing.length() > 0) {
+          pendingWrites.add(StandardCharsets.UTF_8.encode(outgoing.toString()));
+          outgoing.setLength(0);
+        }
+        if (closed) {
+          throw new IOException("Connection closed");
+        }
+        while (!pendingWrites.isEmpty()) {
+          ByteBuffer buffer = pendingWrites.peek();
+          channel.write(buffer);
+          if (buffer.hasRemaining()) {
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            ioThread.selector.wakeup();
+            return;
+          }
+          pendingWrites.poll();
+        }
+        key.interestOps(SelectionKey.OP_READ);
+      }
+    }
+
+    @Override
+    public void close() {
+      synchronized (this) {
+        if (closed) {
+          return;
+        }
+        closed = true;
+        pendingWrites.clear();
+        key.cancel();
+      }
+      try {
+        channel.close();
+      } catch (IOException e) {
+        System.out.println("Failed to close connection: " + e.getMessage());
+      }
+      closeHandler.accept(socket);
+    }
+
+    /**
+     * Byte stream queueing binary frames on the connection.
+     */
+    private class FrameOutput extends OutputStream {
+      @Override
+      public void write(int b) {
+        write(new byte[] {(byte) b}, 0, 1);
+      }
+
+      @Override
+      public void write(byte[] bytes, int offset, int length) {
+        synchronized (Connection.this) {
+          pendingWrites.add(ByteBuffer.wrap(Arrays.copyOfRange(bytes, offset, offset + length)));
+        }
+      }
+
+      @Override
+      public void flush() throws IOException {
+        Connection.this.flush();
+      }
+    }
+  }
+}
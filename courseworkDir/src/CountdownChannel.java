@@ -0,0 +1,89 @@
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+
+/**
+ * CountdownChannel collects the replies to operations the Controller starts on its own behalf, such as removing
+ * each chunk of a file, in place of a client connection. Every message sent on it counts as the reply to one
+ * operation; once all have replied, it reports how many replies were not the one expected.
+ */
+public class CountdownChannel implements ControlChannel {
+  private final byte expected; // Opcode of a successful reply
+  private final AtomicInteger remaining; // Replies still to come
+  private final AtomicInteger failures = new AtomicInteger(); // Replies other than the expected one
+  private final IntConsumer done; // Called with the number of failures after the last reply
+
+  /**
+   * Constructor for CountdownChannel.
+   *
+   * @param replies  number of replies to wait for; with none, done is called straight away
+   * @param expected opcode of a successful reply, e.g. REMOVE_COMPLETE
+   * @param done     called once with the number of failed replies, on the thread sending the last reply
+   */
+  public CountdownChannel(int replies, byte expected, IntConsumer done) {
+    this.expected = expected;
+    this.remaining = new AtomicInteger(replies);
+    this.done = done;
+    if (replies == 0) {
+      done.accept(0);
+    }
+  }
+
+  /**
+   * Count one reply.
+   *
+   * @param opcode the opcode of the reply
+   */
+  private void reply(byte opcode) {
+    if (opcode != expected) {
+      failures.incrementAndGet();
+    }
+    if (remaining.decrementAndGet() == 0) {
+      done.accept(failures.get());
+    }
+  }
+
+  @Override
+  public ControlChannel forRequest(long requestId) {
+    return this;
+  }
+
+  @Override
+  public void send(byte opcode) {
+    reply(opcode);
+  }
+
+  @Override
+  public void send(byte opcode, String argument) {
+    reply(opcode);
+  }
+
+  @Override
+  public void sendStoreTo(Protocol.Endpoint[] endpoints) {
+    reply(Protocol.STORE_TO);
+  }
+
+  @Override
+  public void sendLoadFrom(Protocol.Endpoint endpoint, long fileSize) {
+    reply(Protocol.LOAD_FROM);
+  }
+
+  @Override
+  public void sendLoadFromAll(long fileSize, Protocol.Endpoint[] endpoints) {
+    reply(Protocol.LOAD_FROM_ALL);
+  }
+
+  @Override
+  public void sendParts(long chunkSize, int[] parts) {
+    reply(Protocol.STORE_PARTS);
+  }
+
+  @Override
+  public void sendLoadParts(long fileSize, long chunkSize, Protocol.Endpoint[] endpoints) {
+    reply(Protocol.LOAD_PARTS);
+  }
+
+  @Override
+  public void sendList(Iterable<String> filenames) {
+    reply(Protocol.LIST);
+  }
+}
@@ -1,11 +1,36 @@
 import java.io.*;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.logging.FileHandler;
 import java.util.logging.Logger;
 import java.util.logging.SimpleFormatter;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+import java.util.zip.Deflater;
+import java.util.zip.ZipException;
 
 public class Dstore {
   private int port; // Port number for the Dstore
@@ -16,6 +41,43 @@ public class Dstore {
   private BufferedReader ctrlIn; // BufferedReader to read messages from the Controller
   private int timeout; // Timeout for the Dstore
   private final ConcurrentHashMap<String, ReentrantLock> fileLocks = new ConcurrentHashMap<>(); // Locks for file access
+  private final ExecutorService connectionExecutor = ConnectionExecutors.fromProperties("dstore"); // Runs handleClient for each connection
+  private final boolean zeroCopy = !"false".equals(System.getProperty("dstore.zeroCopy")); // Send LOAD_DATA with FileChannel.transferTo
+  private final TransferMetrics zeroCopyLoads = new TransferMetrics("LOAD_DATA transferTo"); // Throughput of the zero-copy path
+  private final TransferMetrics streamLoads = new TransferMetrics("LOAD_DATA stream"); // Throughput of the stream copy path
+  private final TransferMetrics cachedLoads = new TransferMetrics("LOAD_DATA cache"); // Throughput of loads served from memory
+  private final TransferMetrics decodedLoads = new TransferMetrics("LOAD_DATA erasure-coded"); // Throughput of loads rebuilt from fragments
+  private final TransferMetrics decompressedLoads = new TransferMetrics("LOAD_DATA decompressed"); // Throughput of loads of compressed files
+  private final boolean compression = "deflate".equals(System.getProperty("dstore.compression")); // Store files compressed when they shrink
+  private final int compressionBlock = Integer.getInteger("dstore.compressionBlock", 64 * 1024); // Bytes compressed into each independently readable block
+  private final int compressionLevel = Integer.getInteger("dstore.compressionLevel", Deflater.BEST_SPEED); // Deflater level, trading ratio for CPU time
+  private final CompressionMetrics compressionMetrics = new CompressionMetrics(); // Ratio and CPU time of the compression tier
+  private final FileCache fileCache = newFileCache(); // Contents of hot small files, or null if caching is disabled
+  private DstoreManifest manifest; // Size, write time and checksum of every stored file
+  private FragmentStore fragments; // Fragments of erasure-coded files held by this Dstore
+  private final BufferPool bufferPool = new BufferPool(Integer.getInteger("dstore.bufferSize", 64 * 1024), 64); // Reusable direct buffers for streaming
+  private final ExecutorService rebalanceExecutor = Executors.newFixedThreadPool(Integer.getInteger("dstore.rebalanceThreads", 4)); // Parallel file transfers during a rebalance
+  private final ExecutorService rebalanceCommands = Executors.newSingleThreadExecutor(); // Runs REBALANCE commands in order, off the Controller connection
+  private final ExecutorService encodeExecutor = Executors.newFixedThreadPool(Integer.getInteger("dstore.encodeThreads", 2)); // Runs ENCODE commands, a few files at a time
+  private final ExecutorService fragmentExecutor = Executors.newCachedThreadPool(); // Opens the fragments of an erasure-coded file in parallel
+  private final int statsInterval = Integer.getInteger("dstore.statsInterval", 500); // Milliseconds between LOAD_STATS reports, 0 to disable
+  private final ScheduledExecutorService statsScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+    Thread thread = new Thread(r, "dstore-stats");
+    thread.setDaemon(true);
+    return thread;
+  }); // Sends LOAD_STATS to the Controller
+  private final AtomicInteger inFlight = new AtomicInteger(); // Client and Dstore requests being served
+  private final long scrubRate = Long.getLong("dstore.scrubRate", 4 * 1024 * 1024); // Bytes per second the scrubber reads, 0 to disable
+  private final long scrubInterval = Long.getLong("dstore.scrubInterval", 600_000); // Milliseconds between scrubber passes
+  private final ScheduledExecutorService scrubScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+    Thread thread = new Thread(r, "dstore-scrubber");
+    thread.setDaemon(true);
+    return thread;
+  }); // Re-reads stored files in the background to find corrupt replicas
+  private final boolean verifyLoads = "true".equals(System.getProperty("dstore.verifyLoads")); // Send whole-file loads through the verifying stream path instead of transferTo
+  private volatile long loadLatencyMicros; // Moving average of LOAD_DATA transfer time in microseconds
+  private static final double LATENCY_WEIGHT = 0.2; // Weight of the newest transfer in the moving average
+  private static final int[] NO_CHAIN = new int[0]; // Chain of a STORE that is not forwarded
   private static final Logger logger = Logger.getLogger(Dstore.class.getName()); // Logger for the Dstore
 
   /**
@@ -34,7 +96,45 @@ public class Dstore {
     if (!storageDir.exists()) {
       storageDir.mkdirs();
     }
+    long started = System.nanoTime();
+    boolean fromSaved = loadManifest();  // Before configureLogger, whose new log file changes the directory
     configureLogger();
+    String loaded = (fromSaved ? "Loaded saved manifest of " : "Scanned ") + manifest.size() + " files in "
+        + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) + " ms";
+    System.out.println(loaded);
+    logger.info(loaded);
+  }
+
+  /**
+   * Build the manifest of stored files, and save it again on a clean shutdown so the next start can skip the scan.
+   * The manifest is saved beside the storage directory rather than in it, so saving it does not change the directory.
+   * Fragments of erasure-coded files are kept beside it too, so they are never mistaken for stored files.
+   *
+   * @return true if the manifest saved at the last shutdown was used.
+   */
+  private boolean loadManifest() {
+    Path dir = storageDir.toPath().toAbsolutePath();
+    try {
+      manifest = new DstoreManifest(dir, dir.resolveSibling(dir.getFileName() + ".manifest"),
+          dir.resolveSibling(dir.getFileName() + ".checksums"), Dstore::isLogFile);
+      fragments = new FragmentStore(dir.resolveSibling(dir.getFileName() + ".fragments"));
+    } catch (IOException e) {
+      throw new UncheckedIOException("Cannot create the checksum and fragment directories of " + storageDir, e);
+    }
+    boolean fromSaved = false;
+    try {
+      fromSaved = manifest.load();
+    } catch (IOException e) {
+      System.err.println("Failed to scan " + storageDir + ": " + e.getMessage());
+    }
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+      try {
+        manifest.save();
+      } catch (IOException e) {
+        System.err.println("Failed to save manifest: " + e.getMessage());
+      }
+    }, "dstore-manifest"));
+    return fromSaved;
   }
 
   /**
@@ -62,9 +162,25 @@ public class Dstore {
    * Start the Dstore by connecting to the controller and handling client requests.
    */
   public void run() {
-    connectToController();
-    new Thread(this::handleControllerCommands).start();
-    handleClientRequests();
+    try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+      serverChannel.bind(new InetSocketAddress(port));  // Listen before JOIN so a rebalance can send files straight away
+      System.out.println("Dstore listening on port " + port);
+      logger.info("Dstore listening on port " + port);
+      connectToController();
+      sendInventory();
+      new Thread(this::handleControllerCommands).start();
+      if (statsInterval > 0) {
+        statsScheduler.scheduleWithFixedDelay(this::sendLoadStats, statsInterval, statsInterval, TimeUnit.MILLISECONDS);
+      }
+      if (scrubRate > 0) {
+        RateLimiter limiter = new RateLimiter(scrubRate);
+        scrubScheduler.scheduleWithFixedDelay(() -> scrub(limiter), scrubInterval, scrubInterval, TimeUnit.MILLISECONDS);
+      }
+      handleClientRequests(serverChannel);
+    } catch (IOException e) {
+      System.out.println("Error starting Dstore on port " + port + ": " + e.getMessage());
+      logger.severe("Error starting Dstore on port " + port + ": " + e.getMessage());
+    }
   }
 
   /**
@@ -95,6 +211,46 @@ public class Dstore {
     }
   }
 
+  /**
+   * Report the files in the storage directory to the Controller after JOIN, in INVENTORY messages of up to
+   * LIST_CHUNK files and a final INVENTORY_END. The files come from the manifest, so the disk is not read.
+   */
+  private void sendInventory() {
+    long total = 0;
+    int count = 0;
+    StringBuilder chunk = new StringBuilder();
+    for (Map.Entry<String, DstoreManifest.Entry> file : manifest.entries()) {
+      String filename = file.getKey();
+      if (filename.indexOf(' ') >= 0) {
+        continue;
+      }
+      chunk.append(' ').append(filename).append(' ').append(file.getValue().size());
+      if (++count == Protocol.LIST_CHUNK) {
+        ctrlWriter.println("INVENTORY " + count + chunk);
+        total += count;
+        count = 0;
+        chunk.setLength(0);
+      }
+    }
+    if (count > 0) {
+      ctrlWriter.println("INVENTORY " + count + chunk);
+      total += count;
+    }
+    ctrlWriter.println("INVENTORY_END " + total);
+    System.out.println("Reported " + total + " files to the Controller");
+    logger.info("Reported " + total + " files to the Controller");
+  }
+
+  /**
+   * Checks whether a file in the storage directory is one of the Dstore's own log files rather than stored data.
+   *
+   * @param filename The name of the file.
+   * @return true for the log files written by configureLogger and their locks.
+   */
+  private static boolean isLogFile(String filename) {
+    return filename.startsWith("dstore-") && (filename.endsWith(".log") || filename.endsWith(".log.lck"));
+  }
+
   /**
    * Handle commands received from the controller.
    */
@@ -126,11 +282,23 @@ public class Dstore {
       case "REMOVE":
         processRemove(cmdParts[1]);
         break;
+      case "REBALANCE":
+        rebalanceCommands.execute(() -> processRebalance(cmdParts));
+        break;
+      case "LINK":
+        if (cmdParts.length == 3) {
+          processLink(cmdParts[1], cmdParts[2]);
+        }
+        break;
+      case "ENCODE":
+        encodeExecutor.execute(() -> processEncode(cmdParts));
+        break;
     }
   }
 
   /**
    * Process the REMOVE command from the controller.
+   * A Dstore holding a fragment of an erasure-coded file rather than the file deletes the fragment.
    *
    * @param filename The name of the file to remove.
    */
@@ -138,12 +306,18 @@ public class Dstore {
     ReentrantLock lock = fileLocks.computeIfAbsent(filename, k -> new ReentrantLock());
     lock.lock();
     try {
+      invalidateCache(filename);
       File file = new File(storageDir, filename);
-      if (!file.exists()) {
+      if (manifest.get(filename) == null && fragments.delete(filename)) {
+        ctrlWriter.println("REMOVE_ACK " + filename);
+        System.out.println("Fragment of " + filename + " removed successfully.");
+        logger.info("Fragment of " + filename + " removed successfully.");
+      } else if (manifest.get(filename) == null) {
         ctrlWriter.println("ERROR_FILE_DOES_NOT_EXIST " + filename);
         System.out.println("File " + filename + " does not exist.");
         logger.info("File " + filename + " does not exist.");
       } else if (file.delete()) {
+        manifest.remove(filename);
         ctrlWriter.println("REMOVE_ACK " + filename);
         System.out.println("File " + filename + " removed successfully.");
         logger.info("File " + filename + " removed successfully.");
@@ -151,56 +325,337 @@ public class Dstore {
         System.out.println("Failed to remove file: " + filename);
         logger.warning("Failed to remove file: " + filename);
       }
+    } catch (IOException e) {
+      System.out.println("Failed to remove fragment of " + filename + ": " + e.getMessage());
+      logger.warning("Failed to remove fragment of " + filename + ": " + e.getMessage());
     } finally {
       lock.unlock();
       fileLocks.remove(filename);
     }
   }
 
+  /**
+   * Process the LINK command from the controller: store a file under a new name by hard-linking it to a stored file
+   * with the same contents, so no data is copied, and acknowledge it with STORE_ACK as if it had been uploaded.
+   * Each name is then a link to the same data, which the file system frees when the last name is removed.
+   *
+   * @param source   The name of the stored file with the same contents.
+   * @param filename The new name.
+   */
+  private void processLink(String source, String filename) {
+    ReentrantLock lock = fileLocks.computeIfAbsent(filename, k -> new ReentrantLock());
+    lock.lock();
+    try {
+      invalidateCache(filename);
+      manifest.remove(filename);
+      DstoreManifest.Entry entry = manifest.get(source);
+      if (entry == null) {
+        System.out.println("Cannot link " + filename + ": " + source + " is not stored.");
+        logger.warning("Cannot link " + filename + ": " + source + " is not stored.");
+        return;
+      }
+      Path link = new File(storageDir, filename).toPath();
+      Files.deleteIfExists(link);
+      Files.createLink(link, new File(storageDir, source).toPath());
+      manifest.put(filename, entry.size(), entry.checksum(), entry.compressed());
+      ctrlWriter.println("STORE_ACK " + filename + (entry.checksum() == DstoreManifest.UNKNOWN_CHECKSUM ? "" : " " + entry.checksum()));
+      System.out.println("Linked file: " + filename + " to " + source + " and sent ACK.");
+      logger.info("Linked file: " + filename + " to " + source + " and sent ACK.");
+    } catch (IOException e) {
+      System.out.println("Error linking file: " + filename + ": " + e.getMessage());
+      logger.severe("Error linking file: " + filename + ": " + e.getMessage());
+    } finally {
+      lock.unlock();
+      fileLocks.remove(filename);
+    }
+  }
+
+  /**
+   * Process the ENCODE command from the controller: split a stored file into k data and m parity fragments,
+   * keep the fragment whose index is this Dstore's place in the port list and send every other fragment to its
+   * Dstore with STORE_FRAGMENT. The file is read and encoded one stripe at a time, writing each fragment's cell
+   * as it is computed, so memory use does not depend on the file size. Once every Dstore has acknowledged its
+   * fragment the full copy is deleted and ENCODE_COMPLETE reported; on any failure the copy is kept and nothing
+   * is reported, so the Controller's STORE times out.
+   *
+   * @param cmdParts The command split into parts: ENCODE filename k m port*
+   */
+  private void processEncode(String[] cmdParts) {
+    String filename = cmdParts[1];
+    ReentrantLock lock = fileLocks.computeIfAbsent(filename, k -> new ReentrantLock());
+    lock.lock();
+    SocketChannel[] peers = null;
+    try {
+      int dataShards = Integer.parseInt(cmdParts[2]);
+      int[] ports = new int[dataShards + Integer.parseInt(cmdParts[3])];
+      int own = -1;
+      for (int i = 0; i < ports.length; i++) {
+        ports[i] = Integer.parseInt(cmdParts[4 + i]);
+        if (ports[i] == port) {
+          own = i;
+        }
+      }
+      DstoreManifest.Entry entry = manifest.get(filename);
+      if (own < 0 || entry == null) {
+        throw new IOException(entry == null ? "file is not stored" : "this Dstore holds no fragment");
+      }
+      FragmentStore.Layout layout = new FragmentStore.Layout(dataShards, ports.length - dataShards, own, entry.size(), ports);
+      ReedSolomon code = new ReedSolomon(dataShards, ports.length - dataShards);
+      File file = new File(storageDir, filename);
+      peers = new SocketChannel[ports.length];
+      BufferedReader[] replies = new BufferedReader[ports.length];
+      try (ReadableByteChannel in = openContents(file, entry, 0); FileChannel local = fragments.create(filename)) {
+        WritableByteChannel[] outs = new WritableByteChannel[ports.length];
+        for (int i = 0; i < ports.length; i++) {
+          if (i == own) {
+            outs[i] = local;
+          } else {
+            peers[i] = openFragmentHop(filename, layout.forIndex(i), replies, i);
+            outs[i] = peers[i];
+          }
+          writeFully(outs[i], layout.forIndex(i).header());
+        }
+        byte[][] shards = new byte[ports.length][ReedSolomon.CELL_SIZE];
+        long stripes = layout.fragmentLength() / ReedSolomon.CELL_SIZE;
+        for (long stripe = 0; stripe < stripes; stripe++) {
+          for (int i = 0; i < dataShards; i++) {
+            ByteBuffer cell = ByteBuffer.wrap(shards[i]);
+            while (cell.hasRemaining() && in.read(cell) > 0) {
+              // Keep reading until the cell is full or the file ends
+            }
+            Arrays.fill(shards[i], cell.position(), ReedSolomon.CELL_SIZE, (byte) 0);  // Pad the last stripe
+          }
+          code.encode(shards, ReedSolomon.CELL_SIZE);
+          for (int i = 0; i < ports.length; i++) {
+            writeFully(outs[i], ByteBuffer.wrap(shards[i]));
+          }
+        }
+        for (int i = 0; i < ports.length; i++) {
+          if (replies[i] != null && !"ACK".equals(replies[i].readLine())) {
+            throw new IOException("Dstore " + ports[i] + " did not store its fragment");
+          }
+        }
+      }
+      fragments.commit(filename);
+      invalidateCache(filename);
+      manifest.remove(filename);
+      file.delete();
+      ctrlWriter.println("ENCODE_COMPLETE " + filename);
+      System.out.println("Encoded file: " + filename + " into " + ports.length + " fragments.");
+      logger.info("Encoded file: " + filename + " into " + ports.length + " fragments of " + layout.fragmentLength() + " bytes.");
+    } catch (IOException | RuntimeException e) {
+      fragments.abort(filename);
+      System.out.println("Failed to encode " + filename + ": " + e.getMessage());
+      logger.severe("Failed to encode " + filename + ": " + e.getMessage());
+    } finally {
+      if (peers != null) {
+        for (SocketChannel peer : peers) {
+          closeQuietly(peer);
+        }
+      }
+      lock.unlock();
+      fileLocks.remove(filename);
+    }
+  }
+
+  /**
+   * Connect to the Dstore that is to hold a fragment and start a STORE_FRAGMENT.
+   *
+   * @param filename The name of the file being encoded.
+   * @param layout   The layout of the fragment to send.
+   * @param replies  Readers of the Dstores' replies by fragment index; this fragment's reader is added.
+   * @param index    The index of the fragment.
+   * @return the channel to write the fragment to, once the Dstore acknowledged.
+   * @throws IOException If the Dstore cannot be reached or does not acknowledge.
+   */
+  private SocketChannel openFragmentHop(String filename, FragmentStore.Layout layout, BufferedReader[] replies, int index) throws IOException {
+    int dstorePort = layout.ports()[index];
+    SocketChannel hop = SocketChannel.open(new InetSocketAddress("localhost", dstorePort));
+    try {
+      Socket socket = hop.socket();
+      socket.setSoTimeout(timeout);
+      new PrintWriter(socket.getOutputStream(), true).println("STORE_FRAGMENT " + filename + " " + (layout.headerLength() + layout.fragmentLength()));
+      replies[index] = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+      if (!"ACK".equals(replies[index].readLine())) {
+        throw new IOException("Dstore " + dstorePort + " did not acknowledge STORE_FRAGMENT");
+      }
+      return hop;
+    } catch (IOException e) {
+      closeQuietly(hop);
+      throw e;
+    }
+  }
+
+  /**
+   * Write a whole buffer to a channel.
+   *
+   * @param out    The channel.
+   * @param buffer The buffer, written from its position to its limit.
+   * @throws IOException If the write fails.
+   */
+  private static void writeFully(WritableByteChannel out, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      out.write(buffer);
+    }
+  }
+
+  /**
+   * Process the REBALANCE command from the controller.
+   * Send the listed files to the other Dstores in parallel, then remove the listed files
+   * and report REBALANCE_COMPLETE. Nothing is removed or reported if any send fails.
+   *
+   * @param cmdParts The command split into parts:
+   *                 REBALANCE files_to_send_count (file port_count port...)* files_to_remove_count file*
+   */
+  private void processRebalance(String[] cmdParts) {
+    try {
+      int i = 1;
+      int filesToSend = Integer.parseInt(cmdParts[i++]);
+      List<CompletableFuture<Boolean>> sends = new ArrayList<>();
+      for (int f = 0; f < filesToSend; f++) {
+        String filename = cmdParts[i++];
+        int portCount = Integer.parseInt(cmdParts[i++]);
+        for (int p = 0; p < portCount; p++) {
+          int dstorePort = Integer.parseInt(cmdParts[i++]);
+          sends.add(CompletableFuture.supplyAsync(() -> sendToDstore(filename, dstorePort), rebalanceExecutor));
+        }
+      }
+      int filesToRemove = Integer.parseInt(cmdParts[i++]);
+      List<String> removals = new ArrayList<>();
+      for (int f = 0; f < filesToRemove; f++) {
+        removals.add(cmdParts[i++]);
+      }
+
+      boolean allSent = true;
+      for (CompletableFuture<Boolean> send : sends) {
+        allSent &= send.join();
+      }
+      if (!allSent) {
+        System.out.println("Rebalance incomplete: not every file could be sent.");
+        logger.warning("Rebalance incomplete: not every file could be sent.");
+        return;
+      }
+
+      for (String filename : removals) {
+        ReentrantLock lock = fileLocks.computeIfAbsent(filename, k -> new ReentrantLock());
+        lock.lock();
+        try {
+          invalidateCache(filename);
+          File file = new File(storageDir, filename);
+          if (manifest.get(filename) != null) {
+            if (file.delete()) {
+              manifest.remove(filename);
+            } else {
+              logger.warning("Failed to remove file during rebalance: " + filename);
+            }
+          }
+        } finally {
+          lock.unlock();
+          fileLocks.remove(filename);
+        }
+      }
+      ctrlWriter.println("REBALANCE_COMPLETE");
+      System.out.println("Rebalance complete: sent " + sends.size() + " copies, removed " + removals.size() + " files.");
+      logger.info("Rebalance complete: sent " + sends.size() + " copies, removed " + removals.size() + " files.");
+    } catch (RuntimeException e) {
+      System.out.println("Malformed REBALANCE command: " + e.getMessage());
+      logger.severe("Malformed REBALANCE command: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Send a copy of a file to another Dstore with REBALANCE_STORE.
+   * A compressed file is sent decompressed, since the receiving Dstore decides for itself how to store it.
+   *
+   * @param filename   The name of the file to send.
+   * @param dstorePort The port of the receiving Dstore.
+   * @return true if the whole file was sent.
+   */
+  private boolean sendToDstore(String filename, int dstorePort) {
+    File file = new File(storageDir, filename);
+    if (!verifyReplica(filename, null)) {
+      return false;  // Not copied, so the corruption does not spread to the new replica
+    }
+    DstoreManifest.Entry entry = manifest.get(filename);
+    boolean compressed = entry != null && entry.compressed();
+    try (SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", dstorePort));
+         FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      Socket socket = channel.socket();
+      socket.setSoTimeout(timeout);
+      PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+      BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+      long size = compressed ? entry.size() : fileChannel.size();
+      out.println("REBALANCE_STORE " + filename + " " + size);
+      if (!"ACK".equals(in.readLine())) {
+        logger.warning("Dstore " + dstorePort + " did not acknowledge REBALANCE_STORE " + filename);
+        return false;
+      }
+      if (compressed) {
+        try (InputStream contents = CompressedFile.open(file.toPath(), 0, compressionMetrics)) {
+          contents.transferTo(Channels.newOutputStream(channel));
+        }
+      } else {
+        long position = 0;
+        while (position < size) {
+          position += fileChannel.transferTo(position, size - position, channel);
+        }
+      }
+      logger.info("Sent " + filename + " to Dstore " + dstorePort);
+      return true;
+    } catch (IOException e) {
+      System.out.println("Failed to send " + filename + " to Dstore " + dstorePort + ": " + e.getMessage());
+      logger.severe("Failed to send " + filename + " to Dstore " + dstorePort + ": " + e.getMessage());
+      return false;
+    }
+  }
+
   /**
    * Handle incoming client requests.
+   *
+   * @param serverChannel The bound server channel to accept clients from.
    */
-  private void handleClientRequests() {
-    try (ServerSocket serverSocket = new ServerSocket(port)) {
-      System.out.println("Dstore listening on port " + port);
-      logger.info("Dstore listening on port " + port);
+  private void handleClientRequests(ServerSocketChannel serverChannel) {
+    try {
       while (true) {
-        Socket clientSocket = serverSocket.accept();
-        new Thread(() -> handleClient(clientSocket)).start();
+        // Accepting through a channel gives each client socket a SocketChannel for zero-copy transfers.
+        Socket clientSocket = serverChannel.accept().socket();
+        connectionExecutor.execute(() -> handleClient(clientSocket));
       }
     } catch (IOException e) {
-      System.out.println("Error starting Dstore on port " + port + ": " + e.getMessage());
-      logger.severe("Error starting Dstore on port " + port + ": " + e.getMessage());
+      System.out.println("Error accepting clients on port " + port + ": " + e.getMessage());
+      logger.severe("Error accepting clients on port " + port + ": " + e.getMessage());
     }
   }
 
   /**
    * Handle individual client requests.
+   * The protocol is chosen by the first byte: MAGIC starts a binary connection, anything else is text.
+   * Frames are read exactly, so the file data following a STORE is left in the stream for processStore.
    *
    * @param clientSocket The client socket connection.
    */
   private void handleClient(Socket clientSocket) {
     try {
-      BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-      PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true);
-      String command;
-      while ((command = in.readLine()) != null) {
-        System.out.println("Received command from client: " + command);
-        logger.info("Received command from client: " + command);
-        String[] cmdParts = command.split(" ");
-        if (cmdParts.length < 2) {
-          out.println("ERROR Invalid command");
-          continue;
+      PushbackInputStream in = new PushbackInputStream(clientSocket.getInputStream());
+      ControlMessage message = new ControlMessage();
+      int first = in.read();
+      if (first == Protocol.MAGIC) {
+        if (in.read() == -1) {
+          return;
         }
-        switch (cmdParts[0]) {
-          case "STORE":
-            processStore(cmdParts[1], Integer.parseInt(cmdParts[2]), clientSocket, out);
-            break;
-          case "LOAD_DATA":
-            processLoadData(cmdParts[1], clientSocket);
-            break;
-          default:
-            out.println("ERROR Invalid command");
+        BinaryControlChannel channel = new BinaryControlChannel(clientSocket.getOutputStream());
+        channel.sendHandshake();
+        ByteBuffer frame = null;
+        while ((frame = Protocol.readFrame(in, frame)) != null) {
+          handleClientMessage(message.decode(frame), clientSocket, channel);
+        }
+      } else if (first != -1) {
+        in.unread(first);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+        ControlChannel channel = new TextControlChannel(new PrintWriter(clientSocket.getOutputStream(), true));
+        String command;
+        while ((command = reader.readLine()) != null) {
+          handleClientMessage(message.parseText(command), clientSocket, channel);
         }
       }
     } catch (IOException e) {
@@ -217,44 +672,137 @@ public class Dstore {
   }
 
   /**
-   * Process the STORE command from a client.
+   * Handle one message from a client or another Dstore.
    *
-   * @param filename     The name of the file to store.
-   * @param fileSize     The size of the file to store.
+   * @param message      The parsed message.
    * @param clientSocket The client socket connection.
-   * @param out          The PrintWriter to send responses to the client.
+   * @param channel      The channel to send replies on.
+   * @throws IOException If an I/O error occurs.
    */
-  private void processStore(String filename, int fileSize, Socket clientSocket, PrintWriter out) {
+  private void handleClientMessage(ControlMessage message, Socket clientSocket, ControlChannel channel) throws IOException {
+    System.out.println("Received command from client: " + message);
+    logger.info("Received command from client: " + message);
+    inFlight.incrementAndGet();
+    try {
+      dispatchClientMessage(message, clientSocket, channel);
+    } finally {
+      inFlight.decrementAndGet();
+    }
+  }
+
+  /**
+   * Run the operation of a message from a client or another Dstore.
+   *
+   * @param message      The parsed message.
+   * @param clientSocket The client socket connection.
+   * @param channel      The channel to send replies on.
+   * @throws IOException If an I/O error occurs.
+   */
+  private void dispatchClientMessage(ControlMessage message, Socket clientSocket, ControlChannel channel) throws IOException {
+    switch (message.opcode) {
+      case Protocol.STORE:
+        processStore(message.filename, message.size, clientSocket, channel, true, NO_CHAIN);
+        break;
+      case Protocol.STORE_CHAIN:
+        processStore(message.filename, message.size, clientSocket, channel, true, Arrays.copyOf(message.chainPorts, message.chainCount));
+        break;
+      case Protocol.REBALANCE_STORE:
+        processStore(message.filename, message.size, clientSocket, channel, false, NO_CHAIN);
+        break;
+      case Protocol.LOAD_DATA:
+        processLoadData(message.filename, 0, Long.MAX_VALUE, clientSocket, channel);
+        break;
+      case Protocol.LOAD_RANGE:
+        processLoadData(message.filename, message.offset, message.size, clientSocket, channel);
+        break;
+      case Protocol.STORE_FRAGMENT:
+        processStoreFragment(message.filename, message.size, clientSocket, channel);
+        break;
+      case Protocol.LOAD_FRAGMENT:
+        processLoadFragment(message.filename, message.offset, message.size, clientSocket, channel);
+        break;
+      default:
+        channel.send(Protocol.ERROR, "Invalid command");
+    }
+  }
+
+  /**
+   * Process the STORE command from a client, REBALANCE_STORE from another Dstore, or STORE_CHAIN from either.
+   * For STORE_CHAIN the file is piped on to the next Dstore of the chain chunk by chunk while it is written to disk,
+   * so the sender uploads it once and every Dstore of the chain sends its own STORE_ACK.
+   * With compression enabled the file is compressed block by block as it arrives; what is forwarded, checksummed
+   * and reported is always the uncompressed contents.
+   *
+   * @param filename         The name of the file to store.
+   * @param fileSize         The size of the file to store.
+   * @param clientSocket     The client socket connection.
+   * @param channel          The channel to send responses to the client.
+   * @param notifyController Whether to send STORE_ACK to the controller once stored.
+   * @param chain            Ports of the Dstores still to receive the file, in order.
+   */
+  private void processStore(String filename, long fileSize, Socket clientSocket, ControlChannel channel, boolean notifyController, int[] chain) {
     ReentrantLock lock = fileLocks.computeIfAbsent(filename, k -> new ReentrantLock());
     lock.lock();
     try {
+      invalidateCache(filename);
+      manifest.remove(filename);  // Until the new contents are complete
       File file = new File(storageDir, filename);
-      byte[] buffer = new byte[fileSize];  // Use a buffer the size of the expected file
+      ByteBuffer buffer = bufferPool.acquire();  // Fixed-size buffer reused for the whole upload
+      SocketChannel nextHop = chain.length > 0 ? openChainHop(filename, fileSize, chain) : null;
 
-      try (FileOutputStream fileOut = new FileOutputStream(file); InputStream rawInput = clientSocket.getInputStream()) {
+      file.delete();  // An old copy may be a link shared with other names, so it is never rewritten in place
+      try (FileChannel fileOut = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+           CompressedFile.Writer compressor = compression ? new CompressedFile.Writer(fileOut, compressionBlock, compressionLevel, compressionMetrics) : null) {
+        ReadableByteChannel rawInput = clientSocket.getChannel() != null ? clientSocket.getChannel() : Channels.newChannel(clientSocket.getInputStream());
 
-        out.println("ACK");  // Acknowledge that DataStore is ready to receive the file
+        channel.send(Protocol.ACK);  // Acknowledge that DataStore is ready to receive the file
 
-        int totalBytesRead = 0;
-        int bytesRead;
-        while (totalBytesRead < fileSize && (bytesRead = rawInput.read(buffer, totalBytesRead, fileSize - totalBytesRead)) != -1) {
-          fileOut.write(buffer, 0, bytesRead);
-          totalBytesRead += bytesRead;
+        long totalBytesRead = 0;
+        CRC32C crc = new CRC32C();  // Computed on each chunk while it is in the buffer, so the file is never re-read
+        while (totalBytesRead < fileSize) {
+          buffer.clear();
+          buffer.limit((int) Math.min(buffer.capacity(), fileSize - totalBytesRead));
+          if (rawInput.read(buffer) == -1) {
+            break;
+          }
+          buffer.flip();
+          if (nextHop != null) {
+            nextHop = forwardChunk(nextHop, buffer, filename);
+          }
+          crc.update(buffer.duplicate());
+          if (compressor != null) {
+            totalBytesRead += buffer.remaining();
+            compressor.write(buffer);
+          } else {
+            while (buffer.hasRemaining()) {
+              totalBytesRead += fileOut.write(buffer);
+            }
+          }
         }
 
         if (totalBytesRead < fileSize) {
           throw new IOException("Did not receive the full file");
         }
+        boolean compressed = compressor != null && compressor.finish();
+        manifest.put(filename, totalBytesRead, crc.getValue(), compressed);
+        if (compressor != null) {
+          logger.info("Stored " + filename + (compressed ? " compressed" : " uncompressed") + ", " + compressionMetrics);
+        }
 
-        ctrlWriter.println("STORE_ACK " + filename);
-        System.out.println("Stored file: " + filename + " and sent ACK.");
-        logger.info("Stored file: " + filename + " and sent ACK.");
+        if (notifyController) {
+          ctrlWriter.println("STORE_ACK " + filename + " " + crc.getValue());
+        }
+        System.out.println("Stored file: " + filename + (notifyController ? " and sent ACK." : "."));
+        logger.info("Stored file: " + filename + (notifyController ? " and sent ACK." : "."));
       } catch (IOException e) {
         System.out.println("Error storing file: " + filename + ": " + e.getMessage());
         logger.severe("Error storing file: " + filename + ": " + e.getMessage());
         if (file.exists()) {
           file.delete();  // Attempt to delete the file if an error occurs during storage
         }
+      } finally {
+        bufferPool.release(buffer);
+        closeQuietly(nextHop);
       }
     } finally {
       lock.unlock();
@@ -263,44 +811,865 @@ public class Dstore {
   }
 
   /**
-   * Process the LOAD_DATA command from a client.
+   * Connect to the next Dstore of a chain and start a STORE_CHAIN with the rest of the chain.
+   *
+   * @param filename The name of the file being stored.
+   * @param fileSize The size of the file.
+   * @param chain    Ports of the Dstores still to receive the file, in order.
+   * @return the channel to pipe the file to once the next Dstore acknowledged, or null if it could not be reached
+   */
+  private SocketChannel openChainHop(String filename, long fileSize, int[] chain) {
+    StringBuilder command = new StringBuilder("STORE_CHAIN ").append(filename).append(' ').append(fileSize);
+    for (int i = 1; i < chain.length; i++) {
+      command.append(' ').append(chain[i]);
+    }
+    SocketChannel hop = null;
+    try {
+      hop = SocketChannel.open(new InetSocketAddress("localhost", chain[0]));
+      Socket socket = hop.socket();
+      socket.setSoTimeout(timeout);
+      new PrintWriter(socket.getOutputStream(), true).println(command);
+      String reply = new BufferedReader(new InputStreamReader(socket.getInputStream())).readLine();
+      if (!"ACK".equals(reply)) {
+        throw new IOException("unexpected reply " + reply);
+      }
+      return hop;
+    } catch (IOException e) {
+      System.out.println("Failed to chain " + filename + " to Dstore " + chain[0] + ": " + e.getMessage());
+      logger.warning("Failed to chain " + filename + " to Dstore " + chain[0] + ": " + e.getMessage());
+      closeQuietly(hop);
+      return null;
+    }
+  }
+
+  /**
+   * Pipe one chunk to the next Dstore of a chain, leaving the buffer's position unchanged for the local write.
+   *
+   * @param nextHop  The channel to the next Dstore.
+   * @param chunk    The chunk to send.
+   * @param filename The name of the file being stored.
+   * @return the channel to keep piping to, or null if the next Dstore failed
+   */
+  private SocketChannel forwardChunk(SocketChannel nextHop, ByteBuffer chunk, String filename) {
+    int start = chunk.position();
+    try {
+      while (chunk.hasRemaining()) {
+        nextHop.write(chunk);
+      }
+      return nextHop;
+    } catch (IOException e) {
+      System.out.println("Chain replication of " + filename + " broke: " + e.getMessage());
+      logger.warning("Chain replication of " + filename + " broke: " + e.getMessage());
+      closeQuietly(nextHop);
+      return null;
+    } finally {
+      chunk.position(start);
+    }
+  }
+
+  /**
+   * Close a channel, ignoring errors.
+   *
+   * @param channel The channel to close, or null.
+   */
+  private static void closeQuietly(SocketChannel channel) {
+    if (channel == null) {
+      return;
+    }
+    try {
+      channel.close();
+    } catch (IOException e) {
+      logger.warning("Failed to close channel: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Process the LOAD_DATA command, or LOAD_RANGE for part of a file, from a client.
+   * The range is clamped to the end of the file, so a client striping a download across replicas
+   * can ask every Dstore for its share and close the gaps with another request.
+   * A Dstore holding a fragment of an erasure-coded file rebuilds the range from the fragments.
+   * A compressed file is decompressed from the block holding the offset, so it is never sent with transferTo.
+   * Cached files are sent without the file lock, so concurrent loads of a hot file do not queue behind each other;
+   * writers invalidate the entry under the lock and cached buffers are never reused, so a hit is a consistent copy.
+   * The lock is only held to read the file from disk and fill the cache, or to open the fragments of an erasure-coded
+   * file; those are decoded and sent after it is released.
    *
    * @param filename     The name of the file to load.
+   * @param offset       The first byte to send.
+   * @param length       The maximum number of bytes to send.
    * @param clientSocket The client socket connection.
+   * @param channel      The channel to send an error on.
    * @throws IOException If an I/O error occurs.
    */
-  private void processLoadData(String filename, Socket clientSocket) throws IOException {
+  private void processLoadData(String filename, long offset, long length, Socket clientSocket, ControlChannel channel) throws IOException {
+    ByteBuffer cached = fileCache == null ? null : fileCache.get(filename);
+    if (cached != null) {
+      sendFromMemory(filename, cached, offset, length, clientSocket, channel);
+      return;
+    }
+    ByteBuffer filled = null;
+    FragmentSources decoding = null;
     ReentrantLock lock = fileLocks.computeIfAbsent(filename, k -> new ReentrantLock());
     lock.lock();
     try {
-      File file = new File(storageDir, filename);
-      if (!file.exists()) {
-        PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true);
-        out.println("ERROR_FILE_DOES_NOT_EXIST");
+      DstoreManifest.Entry entry = manifest.get(filename);
+      if (entry == null && fragments.contains(filename)) {
+        decoding = openFragmentSources(filename, offset, length, clientSocket, channel);  // Null if the load failed
+      } else if (entry == null) {
+        channel.send(Protocol.ERROR_FILE_DOES_NOT_EXIST);
         clientSocket.close();  // Close the connection if the file does not exist
         return;
+      } else {
+        File file = new File(storageDir, filename);
+        long fileSize = entry.size();
+        if (fileCache != null && fileCache.accepts(fileSize)) {
+          ByteBuffer contents = readContents(file, entry);
+          if (contents == null || !matchesChecksum(entry, contents)) {
+            discardCorrupt(filename);
+            channel.send(Protocol.ERROR_FILE_DOES_NOT_EXIST);
+            clientSocket.close();
+            return;
+          }
+          fileCache.put(filename, contents);
+          filled = contents;
+        } else if (!checkRange(offset, length, fileSize, clientSocket, channel)) {
+          return;
+        } else {
+          sendFromDisk(filename, file, entry, offset, length, clientSocket);
+        }
       }
+    } finally {
+      lock.unlock();
+      fileLocks.remove(filename);
+    }
+    if (filled != null) {
+      sendFromMemory(filename, filled, offset, length, clientSocket, channel);
+    } else if (decoding != null) {
+      sendDecoded(filename, decoding, offset, length, clientSocket);
+    }
+  }
+
+  /**
+   * Send a range of a stored file from disk, verifying a whole-file load against its checksum. Callers hold the file's lock.
+   *
+   * @param filename     The name of the file.
+   * @param file         The stored file.
+   * @param entry        The file's manifest entry.
+   * @param offset       The first byte to send, within the file.
+   * @param length       The maximum number of bytes to send.
+   * @param clientSocket The client socket connection.
+   * @throws IOException If an I/O error occurs.
+   */
+  private void sendFromDisk(String filename, File file, DstoreManifest.Entry entry, long offset, long length, Socket clientSocket) throws IOException {
+    long fileSize = entry.size();
+    long count = Math.min(length, fileSize - offset);
+    boolean verify = offset == 0 && count == fileSize && entry.checksum() != DstoreManifest.UNKNOWN_CHECKSUM;
 
-      try (InputStream fileInput = new FileInputStream(file); OutputStream clientOutput = clientSocket.getOutputStream()) {
-        byte[] buffer = new byte[4096];
-        int bytesRead;
-        while ((bytesRead = fileInput.read(buffer)) != -1) {
-          clientOutput.write(buffer, 0, bytesRead);
+    SocketChannel clientChannel = clientSocket.getChannel();
+    if (zeroCopy && clientChannel != null && !entry.compressed() && !(verifyLoads && verify)) {
+      sendWithTransferTo(filename, file, offset, count, clientSocket, clientChannel);  // Left to the scrubber to verify
+      return;
+    }
+    boolean intact;
+    try (InputStream input = Channels.newInputStream(openContents(file, entry, offset))) {
+      intact = sendWithStream(filename, input, count, clientSocket, verify ? entry.checksum() : DstoreManifest.UNKNOWN_CHECKSUM,
+          entry.compressed() ? decompressedLoads : streamLoads);
+    } catch (ZipException e) {
+      clientSocket.close();
+      intact = false;
+    }
+    if (!intact) {
+      discardCorrupt(filename);
+    }
+  }
+
+  /**
+   * Process STORE_FRAGMENT from a Dstore encoding a file: receive one fragment, header included, and acknowledge
+   * it with a second ACK once it is complete. The fragment is only visible under its name once fully received.
+   *
+   * @param filename     The name of the erasure-coded file.
+   * @param size         The size of the fragment file, header included.
+   * @param clientSocket The connection from the encoding Dstore.
+   * @param channel      The channel to acknowledge on.
+   */
+  private void processStoreFragment(String filename, long size, Socket clientSocket, ControlChannel channel) {
+    ReentrantLock lock = fileLocks.computeIfAbsent(filename, k -> new ReentrantLock());
+    lock.lock();
+    ByteBuffer buffer = bufferPool.acquire();
+    try {
+      try (FileChannel out = fragments.create(filename)) {
+        ReadableByteChannel in = clientSocket.getChannel() != null ? clientSocket.getChannel() : Channels.newChannel(clientSocket.getInputStream());
+        channel.send(Protocol.ACK);
+        long received = 0;
+        while (received < size) {
+          buffer.clear();
+          buffer.limit((int) Math.min(buffer.capacity(), size - received));
+          if (in.read(buffer) == -1) {
+            throw new IOException("Did not receive the full fragment");
+          }
+          buffer.flip();
+          received += buffer.remaining();
+          writeFully(out, buffer);
         }
-        clientOutput.flush();
-        System.out.println("File " + filename + " sent to client.");
-        logger.info("File " + filename + " sent to client.");
-      } catch (IOException e) {
-        System.out.println("Failed to send file " + filename + ": " + e.getMessage());
-        logger.severe("Failed to send file " + filename + ": " + e.getMessage());
-        throw e;
       }
+      fragments.commit(filename);
+      channel.send(Protocol.ACK);
+      logger.info("Stored fragment of " + filename + " (" + size + " bytes).");
+    } catch (IOException e) {
+      fragments.abort(filename);
+      System.out.println("Error storing fragment of " + filename + ": " + e.getMessage());
+      logger.severe("Error storing fragment of " + filename + ": " + e.getMessage());
     } finally {
+      bufferPool.release(buffer);
       lock.unlock();
       fileLocks.remove(filename);
     }
   }
 
+  /**
+   * Process LOAD_FRAGMENT from a Dstore rebuilding an erasure-coded file: send the fragment's header, then part of
+   * its data. The range counts from the start of the fragment data and is clamped to its end.
+   *
+   * @param filename     The name of the erasure-coded file.
+   * @param offset       The first byte of fragment data to send.
+   * @param length       The maximum number of bytes to send.
+   * @param clientSocket The connection from the rebuilding Dstore.
+   * @param channel      The channel to send an error on.
+   * @throws IOException If an I/O error occurs.
+   */
+  private void processLoadFragment(String filename, long offset, long length, Socket clientSocket, ControlChannel channel) throws IOException {
+    try (FileChannel in = fragments.open(filename)) {  // Committed fragments are replaced, never rewritten, so no lock is needed
+      FragmentStore.Layout layout = FragmentStore.Layout.read(in);
+      if (offset < 0 || length < 0 || offset > layout.fragmentLength()) {
+        channel.send(Protocol.ERROR, "Invalid range");
+        return;
+      }
+      WritableByteChannel out = clientSocket.getChannel() != null ? clientSocket.getChannel() : Channels.newChannel(clientSocket.getOutputStream());
+      writeFully(out, layout.header());
+      long position = layout.headerLength() + offset;
+      long end = position + Math.min(length, layout.fragmentLength() - offset);
+      while (position < end) {
+        position += in.transferTo(position, end - position, out);
+      }
+    } catch (NoSuchFileException e) {
+      channel.send(Protocol.ERROR_FILE_DOES_NOT_EXIST);
+    } finally {
+      clientSocket.close();
+    }
+  }
+
+  /**
+   * The fragments of an erasure-coded file opened for a load, positioned at the first stripe of the range.
+   * Open channels keep reading the fragments they were opened on, since committed fragments are replaced by
+   * rename and never rewritten, so they can be read after the file lock is released.
+   *
+   * @param layout  The layout of the local fragment.
+   * @param sources Channels by fragment index, null for fragments not read.
+   * @param present Whether each fragment is read.
+   * @param start   When the load started, in System.nanoTime.
+   */
+  private record FragmentSources(FragmentStore.Layout layout, ReadableByteChannel[] sources, boolean[] present, long start) {
+  }
+
+  /**
+   * Open the fragments needed to rebuild part of an erasure-coded file. Callers hold the file's lock.
+   * The k fragments are opened on their Dstores at once, data fragments first so a file whose data fragments are
+   * all available is sent without decoding; parity fragments are only opened for missing data fragments.
+   * Each remote fragment's header is checked against the local layout before it is used.
+   * If the range is invalid or too few fragments are available, the client gets an error and its connection is closed.
+   *
+   * @param filename     The name of the file.
+   * @param offset       The first byte to send.
+   * @param length       The maximum number of bytes to send.
+   * @param clientSocket The client socket connection.
+   * @param channel      The channel to send an error on.
+   * @return the opened fragments, or null if the load failed.
+   * @throws IOException If an I/O error occurs.
+   */
+  private FragmentSources openFragmentSources(String filename, long offset, long length, Socket clientSocket, ControlChannel channel) throws IOException {
+    long start = System.nanoTime();
+    FragmentStore.Layout layout;
+    try (FileChannel local = fragments.open(filename)) {
+      layout = FragmentStore.Layout.read(local);
+    }
+    if (!checkRange(offset, length, layout.fileSize(), clientSocket, channel)) {
+      return null;
+    }
+    int dataShards = layout.dataShards();
+    int shardCount = dataShards + layout.parityShards();
+    long count = Math.min(length, layout.fileSize() - offset);
+    long stripeBytes = (long) dataShards * ReedSolomon.CELL_SIZE;
+    long firstStripe = offset / stripeBytes;
+    long stripes = count == 0 ? 0 : (offset + count - 1) / stripeBytes + 1 - firstStripe;
+    ReadableByteChannel[] sources = new ReadableByteChannel[shardCount];
+    long fragmentOffset = firstStripe * ReedSolomon.CELL_SIZE;
+    long fragmentBytes = stripes * ReedSolomon.CELL_SIZE;
+    int opened = openFragments(filename, layout, 0, dataShards, fragmentOffset, fragmentBytes, sources);
+    if (opened < dataShards) {
+      opened += openFragments(filename, layout, dataShards, shardCount, fragmentOffset, fragmentBytes, sources);
+    }
+    if (opened < dataShards) {
+      logger.warning("Only " + opened + " of " + shardCount + " fragments of " + filename + " are available.");
+      channel.send(Protocol.ERROR_FILE_DOES_NOT_EXIST);
+      closeSources(sources);
+      clientSocket.close();
+      return null;
+    }
+    boolean[] present = new boolean[shardCount];
+    for (int i = shardCount - 1; i >= 0; i--) {
+      if (sources[i] != null && opened > dataShards) {
+        sources[i].close();  // More parity than needed came back; the data fragments are preferred
+        sources[i] = null;
+        opened--;
+      }
+      present[i] = sources[i] != null;
+    }
+    return new FragmentSources(layout, sources, present, start);
+  }
+
+  /**
+   * Rebuild part of an erasure-coded file from its opened fragments and send it to a client, without the file lock.
+   * Only the stripes covering the range are read, one stripe at a time. The fragments and the connection are closed after.
+   *
+   * @param filename     The name of the file.
+   * @param decoding     The fragments opened by openFragmentSources.
+   * @param offset       The first byte to send.
+   * @param length       The maximum number of bytes to send.
+   * @param clientSocket The client socket connection.
+   * @throws IOException If an I/O error occurs.
+   */
+  private void sendDecoded(String filename, FragmentSources decoding, long offset, long length, Socket clientSocket) throws IOException {
+    FragmentStore.Layout layout = decoding.layout();
+    ReadableByteChannel[] sources = decoding.sources();
+    boolean[] present = decoding.present();
+    int dataShards = layout.dataShards();
+    int shardCount = dataShards + layout.parityShards();
+    long count = Math.min(length, layout.fileSize() - offset);
+    long stripeBytes = (long) dataShards * ReedSolomon.CELL_SIZE;
+    long firstStripe = offset / stripeBytes;
+    long stripes = count == 0 ? 0 : (offset + count - 1) / stripeBytes + 1 - firstStripe;
+    try {
+      ReedSolomon code = new ReedSolomon(dataShards, layout.parityShards());
+      byte[][] shards = new byte[shardCount][ReedSolomon.CELL_SIZE];
+      WritableByteChannel out = clientSocket.getChannel() != null ? clientSocket.getChannel() : Channels.newChannel(clientSocket.getOutputStream());
+      long end = offset + count;
+      long stripeStart = firstStripe * stripeBytes;
+      for (long stripe = 0; stripe < stripes; stripe++) {
+        for (int i = 0; i < shardCount; i++) {
+          if (present[i]) {
+            FragmentStore.readExactly(sources[i], ByteBuffer.wrap(shards[i]));
+          }
+        }
+        code.decode(shards, present, ReedSolomon.CELL_SIZE);
+        for (int i = 0; i < dataShards; i++) {
+          long cellStart = stripeStart + (long) i * ReedSolomon.CELL_SIZE;
+          long from = Math.max(cellStart, offset);
+          long to = Math.min(cellStart + ReedSolomon.CELL_SIZE, end);
+          if (from < to) {
+            writeFully(out, ByteBuffer.wrap(shards[i], (int) (from - cellStart), (int) (to - from)));
+          }
+        }
+        stripeStart += stripeBytes;
+      }
+      recordLoad(decodedLoads, filename, count, System.nanoTime() - decoding.start());
+    } catch (IOException e) {
+      System.out.println("Failed to send file " + filename + ": " + e.getMessage());
+      logger.severe("Failed to send file " + filename + ": " + e.getMessage());
+      throw e;
+    } finally {
+      closeSources(sources);
+      clientSocket.close();
+    }
+  }
+
+  /**
+   * Close the fragments opened for a load.
+   *
+   * @param sources Channels by fragment index, null for fragments not opened.
+   * @throws IOException If a channel fails to close.
+   */
+  private static void closeSources(ReadableByteChannel[] sources) throws IOException {
+    for (ReadableByteChannel source : sources) {
+      if (source != null) {
+        source.close();
+      }
+    }
+  }
+
+  /**
+   * Open a range of fragments of an erasure-coded file in parallel, reading the local one from disk
+   * and the others from their Dstores with LOAD_FRAGMENT. Fragments that cannot be opened are left null.
+   *
+   * @param filename The name of the file.
+   * @param layout   The layout of the local fragment.
+   * @param from     The first fragment index to open.
+   * @param to       The fragment index to stop before.
+   * @param offset   The first byte of fragment data to read.
+   * @param length   The number of bytes of fragment data to read.
+   * @param sources  Channels by fragment index, filled with the fragments opened.
+   * @return the number of fragments opened.
+   */
+  private int openFragments(String filename, FragmentStore.Layout layout, int from, int to, long offset, long length, ReadableByteChannel[] sources) {
+    List<CompletableFuture<ReadableByteChannel>> opening = new ArrayList<>();
+    for (int i = from; i < to; i++) {
+      int index = i;
+      opening.add(CompletableFuture.supplyAsync(() -> openFragment(filename, layout, index, offset, length), fragmentExecutor));
+    }
+    int opened = 0;
+    for (int i = from; i < to; i++) {
+      sources[i] = opening.get(i - from).join();
+      if (sources[i] != null) {
+        opened++;
+      }
+    }
+    return opened;
+  }
+
+  /**
+   * Open one fragment of an erasure-coded file, positioned at the first byte to read.
+   *
+   * @param filename The name of the file.
+   * @param layout   The layout of the local fragment.
+   * @param index    The index of the fragment to open.
+   * @param offset   The first byte of fragment data to read.
+   * @param length   The number of bytes of fragment data to read.
+   * @return the fragment's data, or null if it is unavailable.
+   */
+  private ReadableByteChannel openFragment(String filename, FragmentStore.Layout layout, int index, long offset, long length) {
+    int dstorePort = layout.ports()[index];
+    try {
+      if (index == layout.index()) {
+        FileChannel local = fragments.open(filename);
+        local.position(layout.headerLength() + offset);
+        return local;
+      }
+      Socket socket = new Socket("localhost", dstorePort);
+      try {
+        socket.setSoTimeout(timeout);
+        new PrintWriter(socket.getOutputStream(), true).println("LOAD_FRAGMENT " + filename + " " + offset + " " + length);
+        ReadableByteChannel in = Channels.newChannel(socket.getInputStream());  // A stream channel, so reads time out
+        FragmentStore.Layout remote = FragmentStore.Layout.read(in);
+        if (remote.index() != index || remote.fileSize() != layout.fileSize()) {
+          throw new IOException("holds another fragment");
+        }
+        return in;
+      } catch (IOException e) {
+        socket.close();
+        throw e;
+      }
+    } catch (IOException e) {
+      logger.warning("Fragment " + index + " of " + filename + " on Dstore " + dstorePort + " is unavailable: " + e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Reject a range that starts outside the file.
+   *
+   * @param offset       The first byte requested.
+   * @param length       The maximum number of bytes requested.
+   * @param fileSize     The size of the file.
+   * @param clientSocket The client socket connection, closed if the range is invalid.
+   * @param channel      The channel to send an error on.
+   * @return true if the range is valid.
+   * @throws IOException If an I/O error occurs.
+   */
+  private boolean checkRange(long offset, long length, long fileSize, Socket clientSocket, ControlChannel channel) throws IOException {
+    if (offset < 0 || length < 0 || offset > fileSize) {
+      channel.send(Protocol.ERROR, "Invalid range");
+      clientSocket.close();
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Checks the contents of a file read into memory against the checksum it was stored with.
+   *
+   * @param entry    The manifest entry of the file.
+   * @param contents The file's contents from position 0 to the limit.
+   * @return true if they match, or if the checksum is unknown.
+   */
+  private static boolean matchesChecksum(DstoreManifest.Entry entry, ByteBuffer contents) {
+    if (entry.checksum() == DstoreManifest.UNKNOWN_CHECKSUM) {
+      return true;
+    }
+    CRC32C crc = new CRC32C();
+    crc.update(contents.duplicate().position(0));
+    return crc.getValue() == entry.checksum();
+  }
+
+  /**
+   * Compute the CRC32C of a file's contents, decompressing it if it is stored compressed.
+   *
+   * @param file    The file to read.
+   * @param entry   The manifest entry of the file.
+   * @param limiter Paces the read, or null to read at full speed.
+   * @return the checksum, or UNKNOWN_CHECKSUM if the compressed data is corrupt.
+   * @throws IOException If an I/O error occurs.
+   */
+  private long checksumOf(File file, DstoreManifest.Entry entry, RateLimiter limiter) throws IOException {
+    CRC32C crc = new CRC32C();
+    ByteBuffer buffer = bufferPool.acquire();
+    try (ReadableByteChannel fileChannel = openContents(file, entry, 0)) {
+      while (fileChannel.read(buffer.clear()) > 0) {
+        buffer.flip();
+        if (limiter != null) {
+          limiter.acquire(buffer.remaining());
+        }
+        crc.update(buffer);
+      }
+    } catch (ZipException e) {
+      return DstoreManifest.UNKNOWN_CHECKSUM;  // Never a stored checksum, so the replica counts as corrupt
+    } finally {
+      bufferPool.release(buffer);
+    }
+    return crc.getValue();
+  }
+
+  /**
+   * Open a stored file for reading its contents from an offset, decompressing it if it is stored compressed.
+   *
+   * @param file   The file to read.
+   * @param entry  The manifest entry of the file.
+   * @param offset The first byte of the contents to read.
+   * @return a channel of the contents from the offset.
+   * @throws IOException If the file cannot be opened, or a ZipException if it is not a valid compressed file.
+   */
+  private ReadableByteChannel openContents(File file, DstoreManifest.Entry entry, long offset) throws IOException {
+    if (entry.compressed()) {
+      return Channels.newChannel(CompressedFile.open(file.toPath(), offset, compressionMetrics));
+    }
+    return FileChannel.open(file.toPath(), StandardOpenOption.READ).position(offset);
+  }
+
+  /**
+   * Read the whole contents of a stored file into a direct buffer for the cache.
+   *
+   * @param file  The file to read.
+   * @param entry The manifest entry of the file.
+   * @return a buffer holding the contents from position 0 to its limit, or null if the compressed data is corrupt.
+   * @throws IOException If an I/O error occurs.
+   */
+  private ByteBuffer readContents(File file, DstoreManifest.Entry entry) throws IOException {
+    if (!entry.compressed()) {
+      return readFully(file);
+    }
+    try {
+      return CompressedFile.readAll(file.toPath(), compressionMetrics);
+    } catch (ZipException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Check a replica against the checksum it was stored with, and discard it if it is corrupt.
+   * The file is first read without its lock, so a mismatch is confirmed under the lock before the replica
+   * is discarded; otherwise a STORE rewriting the file meanwhile would look like corruption.
+   *
+   * @param filename The name of the file.
+   * @param limiter  Paces the first read, or null to read at full speed.
+   * @return false if the replica was corrupt and has been discarded.
+   */
+  private boolean verifyReplica(String filename, RateLimiter limiter) {
+    File file = new File(storageDir, filename);
+    try {
+      DstoreManifest.Entry entry = manifest.get(filename);
+      if (entry == null || entry.checksum() == DstoreManifest.UNKNOWN_CHECKSUM || checksumOf(file, entry, limiter) == entry.checksum()) {
+        return true;
+      }
+      ReentrantLock lock = fileLocks.computeIfAbsent(filename, k -> new ReentrantLock());
+      lock.lock();
+      try {
+        entry = manifest.get(filename);
+        if (entry == null || entry.checksum() == DstoreManifest.UNKNOWN_CHECKSUM || checksumOf(file, entry, null) == entry.checksum()) {
+          return true;
+        }
+        discardCorrupt(filename);
+        return false;
+      } finally {
+        lock.unlock();
+        fileLocks.remove(filename);
+      }
+    } catch (IOException e) {
+      logger.warning("Could not verify " + filename + ": " + e.getMessage());
+      return true;
+    }
+  }
+
+  /**
+   * Delete a replica that does not match its checksum and report it to the Controller,
+   * which drops it from the index and restores it from another replica. The caller holds the file's lock.
+   *
+   * @param filename The name of the file.
+   */
+  private void discardCorrupt(String filename) {
+    System.out.println("Replica of " + filename + " is corrupt, discarding it.");
+    logger.severe("Replica of " + filename + " is corrupt, discarding it.");
+    invalidateCache(filename);
+    manifest.remove(filename);
+    new File(storageDir, filename).delete();
+    ctrlWriter.println("REPLICA_CORRUPT " + filename);
+  }
+
+  /**
+   * Verify every stored file with a known checksum, reading at no more than the scrub rate.
+   *
+   * @param limiter Paces the reads.
+   */
+  private void scrub(RateLimiter limiter) {
+    long start = System.nanoTime();
+    int checked = 0;
+    int corrupt = 0;
+    for (Map.Entry<String, DstoreManifest.Entry> file : manifest.entries()) {
+      if (file.getValue().checksum() == DstoreManifest.UNKNOWN_CHECKSUM) {
+        continue;
+      }
+      checked++;
+      if (!verifyReplica(file.getKey(), limiter)) {
+        corrupt++;
+      }
+    }
+    logger.info("Scrubbed " + checked + " files in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)
+        + " ms, " + corrupt + " corrupt");
+    if (corrupt > 0) {
+      System.out.println("Scrubber discarded " + corrupt + " corrupt replicas");
+    }
+  }
+
+  /**
+   * Read a whole file into a direct buffer for the cache.
+   *
+   * @param file The file to read.
+   * @return a buffer holding the file from position 0 to its limit.
+   * @throws IOException If an I/O error occurs.
+   */
+  private static ByteBuffer readFully(File file) throws IOException {
+    try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      ByteBuffer contents = ByteBuffer.allocateDirect((int) fileChannel.size());
+      while (contents.hasRemaining() && fileChannel.read(contents) != -1) {
+        // Keep reading until the buffer is full
+      }
+      return contents.flip();
+    }
+  }
+
+  /**
+   * Send part of a cached file to a client straight from memory, without opening the file.
+   *
+   * @param filename     The name of the file.
+   * @param contents     The file's contents from position 0 to its limit.
+   * @param offset       The first byte to send.
+   * @param length       The maximum number of bytes to send.
+   * @param clientSocket The client socket connection.
+   * @param channel      The channel to send an error on.
+   * @throws IOException If an I/O error occurs.
+   */
+  private void sendFromMemory(String filename, ByteBuffer contents, long offset, long length, Socket clientSocket, ControlChannel channel) throws IOException {
+    if (!checkRange(offset, length, contents.limit(), clientSocket, channel)) {
+      return;
+    }
+    long start = System.nanoTime();
+    ByteBuffer range = contents.duplicate();
+    range.position((int) offset).limit((int) (offset + Math.min(length, contents.limit() - offset)));
+    long count = range.remaining();
+    try {
+      WritableByteChannel out = clientSocket.getChannel() != null ? clientSocket.getChannel() : Channels.newChannel(clientSocket.getOutputStream());
+      while (range.hasRemaining()) {
+        out.write(range);
+      }
+      recordLoad(cachedLoads, filename, count, System.nanoTime() - start);
+    } catch (IOException e) {
+      System.out.println("Failed to send file " + filename + ": " + e.getMessage());
+      logger.severe("Failed to send file " + filename + ": " + e.getMessage());
+      throw e;
+    } finally {
+      clientSocket.close();
+    }
+  }
+
+  /**
+   * Drop a file from the cache before it is written or removed. Callers hold the file's lock.
+   *
+   * @param filename The name of the file.
+   */
+  private void invalidateCache(String filename) {
+    if (fileCache != null) {
+      fileCache.invalidate(filename);
+    }
+  }
+
+  /**
+   * Create the file cache from the system properties dstore.cacheBytes (0 disables it, the default)
+   * and dstore.cacheMaxFileBytes (largest file cached, 1 MiB by default).
+   *
+   * @return the cache, or null if caching is disabled
+   */
+  private static FileCache newFileCache() {
+    long capacity = Long.getLong("dstore.cacheBytes", 0);
+    return capacity > 0 ? new FileCache(capacity, Long.getLong("dstore.cacheMaxFileBytes", 1024 * 1024)) : null;
+  }
+
+  /**
+   * Send part of a file to a client with FileChannel.transferTo so the kernel can copy it without passing through the heap.
+   *
+   * @param filename      The name of the file.
+   * @param file          The file to send.
+   * @param offset        The first byte to send.
+   * @param count         The number of bytes to send.
+   * @param clientSocket  The client socket connection.
+   * @param clientChannel The channel of the client socket.
+   * @throws IOException If an I/O error occurs.
+   */
+  private void sendWithTransferTo(String filename, File file, long offset, long count, Socket clientSocket, SocketChannel clientChannel) throws IOException {
+    long start = System.nanoTime();
+    try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      long end = offset + count;
+      long position = offset;
+      while (position < end) {
+        position += fileChannel.transferTo(position, end - position, clientChannel);
+      }
+      recordLoad(zeroCopyLoads, filename, count, System.nanoTime() - start);
+    } catch (IOException e) {
+      System.out.println("Failed to send file " + filename + ": " + e.getMessage());
+      logger.severe("Failed to send file " + filename + ": " + e.getMessage());
+      throw e;
+    } finally {
+      clientSocket.close();
+    }
+  }
+
+  /**
+   * Send part of a file to a client by copying it through a heap buffer.
+   * When a checksum is given the whole file is sent and checked as it goes; the last chunk is held back
+   * until the checksum matches, so a client never receives a corrupt file in full.
+   *
+   * @param filename     The name of the file.
+   * @param fileInput    The file's contents from the first byte to send; the caller closes it.
+   * @param count        The number of bytes to send.
+   * @param clientSocket The client socket connection.
+   * @param checksum     The CRC32C of the whole file, or UNKNOWN_CHECKSUM to send without checking.
+   * @param metrics      The metrics of the path sending the file.
+   * @return false if the file did not match its checksum.
+   * @throws IOException If an I/O error occurs.
+   */
+  private boolean sendWithStream(String filename, InputStream fileInput, long count, Socket clientSocket, long checksum, TransferMetrics metrics) throws IOException {
+    long start = System.nanoTime();
+    try (OutputStream clientOutput = clientSocket.getOutputStream()) {
+      byte[] buffer = new byte[4096];
+      CRC32C crc = new CRC32C();
+      long totalBytes = 0;
+      int bytesRead;
+      while (totalBytes < count && (bytesRead = fileInput.read(buffer, 0, (int) Math.min(buffer.length, count - totalBytes))) != -1) {
+        totalBytes += bytesRead;
+        if (checksum != DstoreManifest.UNKNOWN_CHECKSUM) {
+          crc.update(buffer, 0, bytesRead);
+          if (totalBytes == count && crc.getValue() != checksum) {
+            return false;
+          }
+        }
+        clientOutput.write(buffer, 0, bytesRead);
+      }
+      clientOutput.flush();
+      recordLoad(metrics, filename, totalBytes, System.nanoTime() - start);
+      return true;
+    } catch (IOException e) {
+      System.out.println("Failed to send file " + filename + ": " + e.getMessage());
+      logger.severe("Failed to send file " + filename + ": " + e.getMessage());
+      throw e;
+    }
+  }
+
+  /**
+   * Record a completed LOAD_DATA transfer and log its throughput.
+   *
+   * @param metrics  The metrics of the path that sent the file.
+   * @param filename The name of the file.
+   * @param bytes    The number of bytes sent.
+   * @param elapsed  The time the transfer took in nanoseconds.
+   */
+  private void recordLoad(TransferMetrics metrics, String filename, long bytes, long elapsed) {
+    metrics.record(bytes, elapsed);
+    long micros = TimeUnit.NANOSECONDS.toMicros(elapsed);
+    long average = loadLatencyMicros;
+    loadLatencyMicros = average == 0 ? micros : (long) (average + LATENCY_WEIGHT * (micros - average));  // Lost updates between racing transfers only blur the average
+    String rate = String.format("%.1f", TransferMetrics.bytesPerSecond(bytes, elapsed) / (1024 * 1024));
+    System.out.println("File " + filename + " sent to client (" + bytes + " bytes, " + rate + " MB/s).");
+    logger.info("File " + filename + " sent to client (" + bytes + " bytes, " + rate + " MB/s). " + metrics
+        + (fileCache == null ? "" : ", " + fileCache));
+  }
+
+  /**
+   * Report the Dstore's load to the Controller so it can send LOADs to the least busy replica.
+   */
+  private void sendLoadStats() {
+    int queueDepth = connectionExecutor instanceof ThreadPoolExecutor pool ? pool.getQueue().size() : 0;
+    ctrlWriter.println("LOAD_STATS " + inFlight.get() + " " + loadLatencyMicros + " " + queueDepth);
+  }
+
+  /**
+   * Gets the throughput counters of the zero-copy LOAD_DATA path.
+   *
+   * @return the zero-copy metrics
+   */
+  public TransferMetrics getZeroCopyLoads() {
+    return zeroCopyLoads;
+  }
+
+  /**
+   * Gets the throughput counters of the stream LOAD_DATA path.
+   *
+   * @return the stream metrics
+   */
+  public TransferMetrics getStreamLoads() {
+    return streamLoads;
+  }
+
+  /**
+   * Gets the throughput counters of LOAD_DATA served from the cache.
+   *
+   * @return the cache metrics
+   */
+  public TransferMetrics getCachedLoads() {
+    return cachedLoads;
+  }
+
+  /**
+   * Gets the throughput counters of LOAD_DATA rebuilt from erasure-coded fragments.
+   *
+   * @return the erasure-coded load metrics
+   */
+  public TransferMetrics getDecodedLoads() {
+    return decodedLoads;
+  }
+
+  /**
+   * Gets the throughput counters of LOAD_DATA of compressed files, decompressed as they are sent.
+   *
+   * @return the decompressed load metrics
+   */
+  public TransferMetrics getDecompressedLoads() {
+    return decompressedLoads;
+  }
+
+  /**
+   * Gets the ratio and CPU time counters of the compression tier.
+   *
+   * @return the compression metrics
+   */
+  public CompressionMetrics getCompressionMetrics() {
+    return compressionMetrics;
+  }
+
+  /**
+   * Gets the hot-file cache, for its hit, miss and eviction counters.
+   *
+   * @return the cache, or null if caching is disabled
+   */
+  public FileCache getFileCache() {
+    return fileCache;
+  }
+
   public static void main(String[] args) {
     if (args.length != 4) {
       System.out.println("Need to provide 4 arguments: <dstorePort> <ctrlPort> <timeoutMs> <storageDir>");
@@ -0,0 +1,296 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * DstoreManifest is the Dstore's in-memory record of the files it stores, so lookups do not touch the disk.
+ * At startup it is loaded from the manifest file saved at the last clean shutdown, if the storage directory
+ * has not changed since, or else rebuilt by listing the directory and reading the attributes of its files in parallel.
+ * The saved manifest is deleted once loaded, so after a crash the next start rebuilds it from the directory.
+ * The checksum of each file is also kept in a sidecar file of the checksum directory, written once the file is
+ * complete and deleted before it is rewritten, so a rebuilt manifest still knows the checksums of complete files.
+ * Files the Dstore stored compressed are recorded by the size of their contents, which is what clients see; their
+ * sidecar also holds that size, and one without a sidecar is recognised by the footer of its compressed format.
+ */
+public class DstoreManifest {
+  public static final long UNKNOWN_CHECKSUM = -1; // Checksum of a file found on disk rather than stored by this Dstore
+  private static final int MAGIC = 0x444D4632; // "DMF2", first bytes of a saved manifest
+
+  private final Path dir; // Storage directory
+  private final Path savedPath; // File the manifest is saved to, outside the storage directory
+  private final Path checksumDir; // Directory of checksum sidecar files, outside the storage directory
+  private final Predicate<String> internal; // Names in the directory that are not stored files
+  private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>(); // Stored files by name
+
+  /**
+   * What the manifest knows about one stored file.
+   *
+   * @param size       the size of the contents in bytes, before compression
+   * @param modified   the time the file was written, in milliseconds since the epoch
+   * @param checksum   the CRC32C of the contents, or UNKNOWN_CHECKSUM
+   * @param compressed whether the file is stored in CompressedFile's format
+   */
+  public record Entry(long size, long modified, long checksum, boolean compressed) {
+  }
+
+  /**
+   * Constructor for DstoreManifest.
+   *
+   * @param dir         the storage directory
+   * @param savedPath   the file to save the manifest to; it must not be inside the storage directory
+   * @param checksumDir the directory of checksum sidecar files; it must not be inside the storage directory
+   * @param internal    matches names in the directory that are not stored files, such as log files
+   * @throws IOException if the checksum directory cannot be created
+   */
+  public DstoreManifest(Path dir, Path savedPath, Path checksumDir, Predicate<String> internal) throws IOException {
+    this.dir = dir;
+    this.savedPath = savedPath;
+    this.checksumDir = Files.createDirectories(checksumDir);
+    this.internal = internal;
+  }
+
+  /**
+   * Fill the manifest from the saved manifest if it is still valid, or from the storage directory.
+   *
+   * @return true if the saved manifest was used
+   * @throws IOException if the storage directory cannot be listed
+   */
+  public boolean load() throws IOException {
+    boolean loaded = false;
+    if (Files.exists(savedPath)) {
+      try {
+        loaded = loadSaved();
+      } catch (IOException | RuntimeException e) {
+        entries.clear();
+      }
+      Files.delete(savedPath);
+    }
+    if (!loaded) {
+      scan();
+    }
+    return loaded;
+  }
+
+  /**
+   * Read the saved manifest by memory-mapping it.
+   *
+   * @return true if the manifest was intact and the directory has not changed since it was saved
+   * @throws IOException if the manifest cannot be read
+   */
+  private boolean loadSaved() throws IOException {
+    try (FileChannel in = FileChannel.open(savedPath, StandardOpenOption.READ)) {
+      MappedByteBuffer mapped = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+      CRC32C crc = new CRC32C();
+      crc.update(mapped.duplicate().limit(Math.max(0, mapped.limit() - 4)));
+      if (mapped.limit() < 17 || mapped.getInt(0) != MAGIC || mapped.getInt(mapped.limit() - 4) != (int) crc.getValue()) {
+        return false;
+      }
+      mapped.position(4);
+      if (mapped.getLong() != Files.getLastModifiedTime(dir).toMillis()) {
+        return false;  // Files were added or removed while the Dstore was stopped
+      }
+      while (mapped.get() == 1) {
+        String filename = Protocol.getString(mapped);
+        entries.put(filename, new Entry(Protocol.getVarint(mapped), mapped.getLong(), mapped.getLong(), mapped.get() == 1));
+      }
+      return true;
+    } catch (BufferUnderflowException | IllegalArgumentException e) {
+      entries.clear();
+      return false;
+    }
+  }
+
+  /**
+   * Rebuild the manifest from the storage directory, reading file attributes on several threads.
+   * Files are stored flat, so listing the directory once covers every file.
+   *
+   * @throws IOException if the directory cannot be listed
+   */
+  private void scan() throws IOException {
+    entries.clear();
+    try (Stream<Path> paths = Files.list(dir)) {
+      paths.parallel().forEach(path -> {
+        String filename = path.getFileName().toString();
+        if (internal.test(filename)) {
+          return;
+        }
+        try {
+          BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+          if (attributes.isRegularFile()) {
+            entries.put(filename, readEntry(path, attributes));
+          }
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      });
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+  }
+
+  /**
+   * Build the entry of a file from its attributes and checksum sidecar. A file without a sidecar is checked for the
+   * footer of a compressed file, since the Dstore may have stopped between writing a file and its sidecar.
+   *
+   * @param path       the file
+   * @param attributes its attributes
+   * @return the file's entry
+   * @throws IOException if the sidecar cannot be read
+   */
+  private Entry readEntry(Path path, BasicFileAttributes attributes) throws IOException {
+    long modified = attributes.lastModifiedTime().toMillis();
+    Path sidecar = checksumDir.resolve(path.getFileName().toString());
+    if (!Files.exists(sidecar)) {
+      long contentSize = CompressedFile.contentSize(path);
+      return contentSize < 0 ? new Entry(attributes.size(), modified, UNKNOWN_CHECKSUM, false)
+          : new Entry(contentSize, modified, UNKNOWN_CHECKSUM, true);
+    }
+    ByteBuffer contents = ByteBuffer.wrap(Files.readAllBytes(sidecar));
+    long checksum = contents.remaining() >= Integer.BYTES ? Integer.toUnsignedLong(contents.getInt()) : UNKNOWN_CHECKSUM;
+    if (contents.remaining() == Long.BYTES) {
+      return new Entry(contents.getLong(), modified, checksum, true);
+    }
+    return new Entry(attributes.size(), modified, contents.hasRemaining() ? UNKNOWN_CHECKSUM : checksum, false);
+  }
+
+  /**
+   * Save the manifest so the next start can skip the directory scan.
+   * It is written to a temporary file and renamed, so a crash while saving leaves no partial manifest.
+   *
+   * @throws IOException if the manifest cannot be written
+   */
+  public void save() throws IOException {
+    Path tmp = savedPath.resolveSibling(savedPath.getFileName() + ".tmp");
+    CRC32C crc = new CRC32C();
+    try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      ByteBuffer buffer = ByteBuffer.allocate(1024 * 1024);
+      buffer.putInt(MAGIC).putLong(Files.getLastModifiedTime(dir).toMillis());
+      for (Map.Entry<String, Entry> file : entries.entrySet()) {
+        String filename = file.getKey();
+        if (buffer.remaining() < 32 + filename.length() * 3) {
+          drain(buffer, out, crc);
+        }
+        Entry entry = file.getValue();
+        buffer.put((byte) 1);
+        Protocol.putString(buffer, filename);
+        Protocol.putVarint(buffer, entry.size());
+        buffer.putLong(entry.modified()).putLong(entry.checksum()).put((byte) (entry.compressed() ? 1 : 0));
+      }
+      buffer.put((byte) 0);
+      drain(buffer, out, crc);
+      buffer.putInt((int) crc.getValue()).flip();
+      while (buffer.hasRemaining()) {
+        out.write(buffer);
+      }
+      out.force(true);
+    }
+    Files.move(tmp, savedPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Write out a buffer and add it to the checksum.
+   *
+   * @param buffer the buffer being filled
+   * @param out    the manifest file
+   * @param crc    the checksum so far
+   * @throws IOException if the write fails
+   */
+  private static void drain(ByteBuffer buffer, FileChannel out, CRC32C crc) throws IOException {
+    buffer.flip();
+    crc.update(buffer.array(), 0, buffer.limit());
+    while (buffer.hasRemaining()) {
+      out.write(buffer);
+    }
+    buffer.clear();
+  }
+
+  /**
+   * Look up a stored file.
+   *
+   * @param filename the name of the file
+   * @return the file's entry, or null if it is not stored
+   */
+  public Entry get(String filename) {
+    return entries.get(filename);
+  }
+
+  /**
+   * Record a file that has been written, and write its checksum sidecar if the checksum is known.
+   *
+   * @param filename the name of the file
+   * @param size     the size in bytes
+   * @param checksum the CRC32C of the contents, or UNKNOWN_CHECKSUM
+   * @throws IOException if the sidecar cannot be written
+   */
+  public void put(String filename, long size, long checksum) throws IOException {
+    put(filename, size, checksum, false);
+  }
+
+  /**
+   * Record a file that has been written, possibly compressed, and write its sidecar if the checksum is known.
+   * The sidecar of a compressed file also holds the size of its contents.
+   *
+   * @param filename   the name of the file
+   * @param size       the size of the contents in bytes, before compression
+   * @param checksum   the CRC32C of the contents, or UNKNOWN_CHECKSUM
+   * @param compressed whether the file was written in CompressedFile's format
+   * @throws IOException if the sidecar cannot be written
+   */
+  public void put(String filename, long size, long checksum, boolean compressed) throws IOException {
+    if (checksum != UNKNOWN_CHECKSUM) {
+      ByteBuffer sidecar = ByteBuffer.allocate(compressed ? Integer.BYTES + Long.BYTES : Integer.BYTES).putInt((int) checksum);
+      if (compressed) {
+        sidecar.putLong(size);
+      }
+      Files.write(checksumDir.resolve(filename), sidecar.array());
+    }
+    entries.put(filename, new Entry(size, System.currentTimeMillis(), checksum, compressed));
+  }
+
+  /**
+   * Forget a file that is about to be rewritten or has been deleted, and delete its checksum sidecar.
+   * A sidecar that cannot be deleted is left behind; it is overwritten if the file is stored again.
+   *
+   * @param filename the name of the file
+   */
+  public void remove(String filename) {
+    entries.remove(filename);
+    try {
+      Files.deleteIfExists(checksumDir.resolve(filename));
+    } catch (IOException e) {
+      // Left for the next put of the same name to overwrite
+    }
+  }
+
+  /**
+   * Gets a live view of the stored files.
+   *
+   * @return the entries by file name
+   */
+  public Set<Map.Entry<String, Entry>> entries() {
+    return entries.entrySet();
+  }
+
+  /**
+   * Gets the number of stored files.
+   *
+   * @return the number of files
+   */
+  public int size() {
+    return entries.size();
+  }
+}
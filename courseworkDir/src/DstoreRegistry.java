@@ -0,0 +1,142 @@
+import java.net.Socket;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * DstoreRegistry interns Dstore ports as small integer IDs and tracks the control connection of each live Dstore.
+ * A Dstore that rejoins on the same port gets its old ID back, so the Index never has to hold sockets.
+ */
+public class DstoreRegistry {
+  private final Map<Integer, Integer> idsByPort = new ConcurrentHashMap<>(); // Interned ID of every port ever seen
+  private final Map<Integer, Integer> portsById = new ConcurrentHashMap<>(); // Port of every interned ID
+  private final Map<Integer, Protocol.Endpoint> endpointsById = new ConcurrentHashMap<>(); // Pre-encoded port of every interned ID
+  private final Map<Socket, Integer> idsBySocket = new ConcurrentHashMap<>(); // ID of every live Dstore connection
+  private final Map<Integer, Socket> socketsById = new ConcurrentHashMap<>(); // Connection of every live Dstore
+  private final AtomicInteger nextId = new AtomicInteger(); // Next unused ID
+
+  /**
+   * Register a Dstore that joined.
+   *
+   * @param port   the port the Dstore listens on
+   * @param socket the Dstore's control connection
+   * @return the Dstore's ID
+   */
+  public int register(int port, Socket socket) {
+    int id = intern(port);
+    idsBySocket.put(socket, id);
+    socketsById.put(id, socket);
+    return id;
+  }
+
+  /**
+   * Get the ID of a port, assigning one if the port has not been seen, without marking the Dstore live.
+   * Used when the Index is recovered before its Dstores have rejoined.
+   *
+   * @param port the port the Dstore listens on
+   * @return the Dstore's ID
+   */
+  public int intern(int port) {
+    return idsByPort.computeIfAbsent(port, p -> {
+      int newId = nextId.getAndIncrement();
+      if (newId > Short.MAX_VALUE) {
+        throw new IllegalStateException("Too many distinct Dstores");
+      }
+      portsById.put(newId, p);
+      endpointsById.put(newId, new Protocol.Endpoint(p));
+      return newId;
+    });
+  }
+
+  /**
+   * Unregister a connection if it belongs to a Dstore.
+   * A Dstore that rejoined on a new connection stays registered when its old connection closes.
+   *
+   * @param socket the closed connection
+   * @return the Dstore's ID, or null if the connection was not a Dstore or no longer its current connection
+   */
+  public Integer unregister(Socket socket) {
+    Integer id = idsBySocket.remove(socket);
+    return id != null && socketsById.remove(id, socket) ? id : null;
+  }
+
+  /**
+   * Gets the ID of a live Dstore connection.
+   *
+   * @param socket the connection
+   * @return the Dstore's ID, or null if the connection is not a live Dstore
+   */
+  public Integer idOf(Socket socket) {
+    return idsBySocket.get(socket);
+  }
+
+  /**
+   * Gets the ID of a live Dstore by port.
+   *
+   * @param port the Dstore's port
+   * @return the Dstore's ID, or null if no live Dstore listens on the port
+   */
+  public Integer idOfPort(int port) {
+    Integer id = idsByPort.get(port);
+    return id != null && socketsById.containsKey(id) ? id : null;
+  }
+
+  /**
+   * Gets the control connection of a live Dstore.
+   *
+   * @param id the Dstore's ID
+   * @return the connection, or null if the Dstore is not connected
+   */
+  public Socket socketOf(int id) {
+    return socketsById.get(id);
+  }
+
+  /**
+   * Gets the port of a Dstore.
+   *
+   * @param id the Dstore's ID
+   * @return the port, or null if the ID was never assigned
+   */
+  public Integer portOf(int id) {
+    return portsById.get(id);
+  }
+
+  /**
+   * Gets the pre-encoded endpoint of a Dstore.
+   *
+   * @param id the Dstore's ID
+   * @return the endpoint, or null if the ID was never assigned
+   */
+  public Protocol.Endpoint endpointOf(int id) {
+    return endpointsById.get(id);
+  }
+
+  /**
+   * Checks whether a Dstore is connected.
+   *
+   * @param id the Dstore's ID
+   * @return true if the Dstore is connected
+   */
+  public boolean isLive(int id) {
+    return socketsById.containsKey(id);
+  }
+
+  /**
+   * Gets the IDs of the live Dstores.
+   *
+   * @return a live view of the connected Dstore IDs
+   */
+  public Set<Integer> liveIds() {
+    return socketsById.keySet();
+  }
+
+  /**
+   * Gets the number of live Dstores.
+   *
+   * @return the number of connected Dstores
+   */
+  public int size() {
+    return socketsById.size();
+  }
+}
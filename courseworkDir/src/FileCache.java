@@ -0,0 +1,145 @@
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * FileCache keeps the contents of recently loaded small files in direct buffers, bounded by a total number of bytes.
+ * The least recently used files are evicted first. Callers must invalidate a file whenever it is written or removed;
+ * the Dstore does this under the file's lock, so a cached copy is never older than the file on disk.
+ */
+public class FileCache {
+  private final long capacity; // Maximum total bytes of cached files
+  private final long maxEntry; // Largest file that is cached
+  private final LinkedHashMap<String, ByteBuffer> entries = new LinkedHashMap<>(16, 0.75f, true); // Cached files, least recently used first
+  private long used; // Total bytes of cached files, guarded by this
+  private final LongAdder hits = new LongAdder(); // Lookups served from the cache
+  private final LongAdder misses = new LongAdder(); // Lookups of files not in the cache
+  private final LongAdder evictions = new LongAdder(); // Files dropped to make room
+
+  /**
+   * Constructor for FileCache.
+   *
+   * @param capacity maximum total bytes of cached files
+   * @param maxEntry largest file in bytes that is cached
+   */
+  public FileCache(long capacity, long maxEntry) {
+    this.capacity = capacity;
+    this.maxEntry = Math.min(maxEntry, capacity);
+  }
+
+  /**
+   * Checks whether a file of a given size would be cached.
+   *
+   * @param size the size of the file in bytes
+   * @return true if the file fits in the cache
+   */
+  public boolean accepts(long size) {
+    return size <= maxEntry && size <= Integer.MAX_VALUE;
+  }
+
+  /**
+   * Look up a file.
+   *
+   * @param filename the name of the file
+   * @return a read-only view of the file's contents positioned at 0, or null if it is not cached
+   */
+  public ByteBuffer get(String filename) {
+    ByteBuffer contents;
+    synchronized (this) {
+      contents = entries.get(filename);
+    }
+    if (contents == null) {
+      misses.increment();
+      return null;
+    }
+    hits.increment();
+    return contents.duplicate();
+  }
+
+  /**
+   * Cache the contents of a file, evicting the least recently used files to make room.
+   *
+   * @param filename the name of the file
+   * @param contents the file's contents from position 0 to the limit; the cache keeps a read-only view
+   */
+  public void put(String filename, ByteBuffer contents) {
+    int size = contents.limit();
+    if (!accepts(size)) {
+      return;
+    }
+    ByteBuffer entry = contents.asReadOnlyBuffer();
+    entry.position(0);
+    synchronized (this) {
+      ByteBuffer previous = entries.put(filename, entry);
+      used += size - (previous == null ? 0 : previous.limit());
+      Iterator<Map.Entry<String, ByteBuffer>> eldest = entries.entrySet().iterator();
+      while (used > capacity && eldest.hasNext()) {
+        Map.Entry<String, ByteBuffer> victim = eldest.next();
+        if (victim.getKey().equals(filename)) {
+          continue;
+        }
+        used -= victim.getValue().limit();
+        eldest.remove();
+        evictions.increment();
+      }
+    }
+  }
+
+  /**
+   * Drop a file that was written or removed.
+   *
+   * @param filename the name of the file
+   */
+  public void invalidate(String filename) {
+    synchronized (this) {
+      ByteBuffer previous = entries.remove(filename);
+      if (previous != null) {
+        used -= previous.limit();
+      }
+    }
+  }
+
+  /**
+   * Gets the number of lookups served from the cache.
+   *
+   * @return the number of hits
+   */
+  public long getHits() {
+    return hits.sum();
+  }
+
+  /**
+   * Gets the number of lookups of files that were not cached.
+   *
+   * @return the number of misses
+   */
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  /**
+   * Gets the number of files evicted to make room for others.
+   *
+   * @return the number of evictions
+   */
+  public long getEvictions() {
+    return evictions.sum();
+  }
+
+  /**
+   * Gets the total size of the cached files.
+   *
+   * @return the number of bytes cached
+   */
+  public synchronized long getUsedBytes() {
+    return used;
+  }
+
+  @Override
+  public String toString() {
+    return "cache: " + getHits() + " hits, " + getMisses() + " misses, " + getEvictions() + " evictions, "
+        + getUsedBytes() + "/" + capacity + " bytes";
+  }
+}
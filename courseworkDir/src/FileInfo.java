@@ -1,44 +1,187 @@
-import java.net.Socket;
-import java.util.List;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 /**
  * The FileInfo class represents the state of a file in the system.
- * It contains information about the Dstores that store the file, the file size, and the status of the file.
+ * It contains the IDs of the Dstores that store the file, the file size, and the state of the file.
+ * Dstore IDs are small integers assigned by DstoreRegistry, kept in a short array to keep each entry compact.
+ * The state only moves forward through compare-and-set, so each file is its own lock-free state machine.
+ * An erasure-coded file is stored as k data and m parity fragments instead of full replicas; its Dstore IDs are then
+ * the holders of the fragments in fragment order, and a holder that disconnects keeps its place.
+ * A file uploaded in chunks has no Dstores of its own: each chunk is indexed as an entry named by Protocol.chunkName
+ * and marked as a chunk, which keeps it apart from client files, and the file's entry only records how it is split
+ * and whether the upload is complete.
  */
 public class FileInfo {
-  private List<Socket> dstoreSockets; // List of Dstores storing the file
-  public int fileSize; // Size of the file
-  public String statusInfo; // Status of the file (e.g., IN_PROGRESS, COMPLETE, REMOVE_IN_PROGRESS)
+  private static final AtomicReferenceFieldUpdater<FileInfo, FileState> STATE =
+      AtomicReferenceFieldUpdater.newUpdater(FileInfo.class, FileState.class, "state"); // CAS access to state
+  private static final AtomicLongFieldUpdater<FileInfo> CHECKSUM =
+      AtomicLongFieldUpdater.newUpdater(FileInfo.class, "checksum"); // CAS access to checksum
+
+  private volatile short[] dstoreIds; // IDs of the Dstores storing the file, replaced as a whole on change
+  public final long fileSize; // Size of the file
+  public volatile FileState state; // State of the file
+  private volatile long checksum = Protocol.NO_CHECKSUM; // CRC32C of the first replica acknowledged, not journaled
+  public final String contentId; // Content hash and size declared with STORE in dedup mode, or null
+  public final int dataShards; // Data fragments k of an erasure-coded file, 0 for a replicated file
+  public final int parityShards; // Parity fragments m of an erasure-coded file, 0 for a replicated file
+  public final long chunkSize; // Size of each chunk but the last of a file uploaded in chunks, 0 for a file stored whole
+  public final boolean chunk; // Whether this entry is a chunk of a file uploaded in chunks rather than a client file
 
   /**
    * Constructor to initialize FileInfo.
    *
-   * @param dstoreSockets the list of Dstores storing the file
-   * @param fileSize      the size of the file
-   * @param status        the status of the file
+   * @param dstoreIds the IDs of the Dstores storing the file
+   * @param fileSize  the size of the file
+   * @param state     the state of the file
+   */
+  public FileInfo(int[] dstoreIds, long fileSize, FileState state) {
+    this(dstoreIds, fileSize, state, null);
+  }
+
+  /**
+   * Constructor to initialize FileInfo for a file with declared content.
+   *
+   * @param dstoreIds the IDs of the Dstores storing the file
+   * @param fileSize  the size of the file
+   * @param state     the state of the file
+   * @param contentId the content hash and size declared with STORE, or null
+   */
+  public FileInfo(int[] dstoreIds, long fileSize, FileState state, String contentId) {
+    this(dstoreIds, fileSize, state, contentId, 0, 0);
+  }
+
+  /**
+   * Constructor to initialize FileInfo for a file that may be erasure-coded.
+   *
+   * @param dstoreIds    the IDs of the Dstores storing the file, in fragment order if it is erasure-coded
+   * @param fileSize     the size of the file
+   * @param state        the state of the file
+   * @param contentId    the content hash and size declared with STORE, or null
+   * @param dataShards   number of data fragments, 0 for a replicated file
+   * @param parityShards number of parity fragments, 0 for a replicated file
+   */
+  public FileInfo(int[] dstoreIds, long fileSize, FileState state, String contentId, int dataShards, int parityShards) {
+    this(dstoreIds, fileSize, state, contentId, dataShards, parityShards, 0);
+  }
+
+  /**
+   * Constructor to initialize FileInfo with every attribute.
+   *
+   * @param dstoreIds    the IDs of the Dstores storing the file, in fragment order if it is erasure-coded
+   * @param fileSize     the size of the file
+   * @param state        the state of the file
+   * @param contentId    the content hash and size declared with STORE, or null
+   * @param dataShards   number of data fragments, 0 for a replicated file
+   * @param parityShards number of parity fragments, 0 for a replicated file
+   * @param chunkSize    size of each chunk of a file uploaded in chunks, 0 for a file stored whole
+   */
+  public FileInfo(int[] dstoreIds, long fileSize, FileState state, String contentId, int dataShards, int parityShards, long chunkSize) {
+    this(dstoreIds, fileSize, state, contentId, dataShards, parityShards, chunkSize, false);
+  }
+
+  /**
+   * Constructor to initialize FileInfo with every attribute, for a client file or a chunk.
+   *
+   * @param dstoreIds    the IDs of the Dstores storing the file, in fragment order if it is erasure-coded
+   * @param fileSize     the size of the file
+   * @param state        the state of the file
+   * @param contentId    the content hash and size declared with STORE, or null
+   * @param dataShards   number of data fragments, 0 for a replicated file
+   * @param parityShards number of parity fragments, 0 for a replicated file
+   * @param chunkSize    size of each chunk of a file uploaded in chunks, 0 for a file stored whole
+   * @param chunk        whether the entry is a chunk of a file uploaded in chunks
    */
-  public FileInfo(List<Socket> dstoreSockets, int fileSize, String status) {
-    this.dstoreSockets = dstoreSockets;
+  public FileInfo(int[] dstoreIds, long fileSize, FileState state, String contentId, int dataShards, int parityShards, long chunkSize, boolean chunk) {
+    this.dstoreIds = toShorts(dstoreIds);
     this.fileSize = fileSize;
-    this.statusInfo = status;
+    this.state = state;
+    this.contentId = contentId;
+    this.dataShards = dataShards;
+    this.parityShards = parityShards;
+    this.chunkSize = chunkSize;
+    this.chunk = chunk;
+  }
+
+  /**
+   * Gets the IDs of the Dstores storing the file.
+   *
+   * @return a copy of the Dstore IDs
+   */
+  public int[] getDstoreIds() {
+    short[] ids = dstoreIds;
+    int[] copy = new int[ids.length];
+    for (int i = 0; i < ids.length; i++) {
+      copy[i] = ids[i];
+    }
+    return copy;
+  }
+
+  /**
+   * Checks whether a Dstore stores the file.
+   *
+   * @param dstoreId the ID of the Dstore
+   * @return true if the Dstore is one of the file's replicas
+   */
+  public boolean isStoredOn(int dstoreId) {
+    for (short id : dstoreIds) {
+      if (id == dstoreId) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Sets the IDs of the Dstores storing the file.
+   *
+   * @param dstoreIds the new Dstore IDs
+   */
+  public void setDstoreIds(int[] dstoreIds) {
+    this.dstoreIds = toShorts(dstoreIds);
+  }
+
+  /**
+   * Removes a Dstore from the file's replicas.
+   *
+   * @param dstoreId the ID of the Dstore
+   */
+  public void removeDstore(int dstoreId) {
+    short[] ids = dstoreIds;
+    int count = 0;
+    short[] remaining = new short[ids.length];
+    for (short id : ids) {
+      if (id != dstoreId) {
+        remaining[count++] = id;
+      }
+    }
+    if (count < ids.length) {
+      short[] trimmed = new short[count];
+      System.arraycopy(remaining, 0, trimmed, 0, count);
+      dstoreIds = trimmed;
+    }
   }
 
   /**
-   * Gets the list of Dstores storing the file.
+   * Moves the file to a new state if it is still in the expected one.
    *
-   * @return the list of Dstore sockets
+   * @param expected the state the file must be in
+   * @param next     the new state of the file
+   * @return true if the state changed
    */
-  public List<Socket> getDstoreSockets() {
-    return dstoreSockets;
+  public boolean compareAndSetState(FileState expected, FileState next) {
+    return STATE.compareAndSet(this, expected, next);
   }
 
   /**
-   * Sets the status of the file.
+   * Record the checksum a Dstore reported for its replica, unless one was already recorded.
    *
-   * @param status the new status of the file
+   * @param reported the CRC32C reported in STORE_ACK
+   * @return the recorded checksum, which differs from reported if the replicas disagree
    */
-  public void setStatus(String status) {
-    this.statusInfo = status;
+  public long recordChecksum(long reported) {
+    CHECKSUM.compareAndSet(this, Protocol.NO_CHECKSUM, reported);
+    return checksum;
   }
 
   /**
@@ -46,16 +189,85 @@ public class FileInfo {
    *
    * @return the size of the file
    */
-  public int getFileSize() {
+  public long getFileSize() {
     return fileSize;
   }
 
   /**
-   * Gets the status of the file.
+   * Checks whether the file is stored as erasure-coded fragments rather than replicas.
+   *
+   * @return true if the file is erasure-coded
+   */
+  public boolean isErasureCoded() {
+    return dataShards > 0;
+  }
+
+  /**
+   * Checks whether the file is stored as chunks indexed under their own names.
+   *
+   * @return true if the file was uploaded in chunks
+   */
+  public boolean isChunked() {
+    return chunkSize > 0;
+  }
+
+  /**
+   * Checks whether the entry is a chunk of a file uploaded in chunks, which clients cannot list, store or remove.
+   *
+   * @return true if the entry is a chunk
+   */
+  public boolean isChunk() {
+    return chunk;
+  }
+
+  /**
+   * Gets the number of chunks of a file uploaded in chunks.
+   *
+   * @return the number of chunks, at least 1
+   */
+  public int getChunkCount() {
+    return (int) Math.max(1, (fileSize + chunkSize - 1) / chunkSize);
+  }
+
+  /**
+   * Gets the size of one chunk of a file uploaded in chunks.
+   *
+   * @param index the index of the chunk
+   * @return the chunk size, smaller for the last chunk
+   */
+  public long getChunkSize(int index) {
+    return Math.min(chunkSize, fileSize - index * chunkSize);
+  }
+
+  /**
+   * Gets the number of bytes the file takes on each of its Dstores.
+   *
+   * @return the fragment length of an erasure-coded file, otherwise the file size
+   */
+  public long getBytesPerDstore() {
+    return isErasureCoded() ? ReedSolomon.fragmentLength(fileSize, dataShards) : fileSize;
+  }
+
+  /**
+   * Gets the state of the file.
+   *
+   * @return the state of the file
+   */
+  public FileState getState() {
+    return state;
+  }
+
+  /**
+   * Narrow Dstore IDs to shorts.
    *
-   * @return the status of the file
+   * @param ids the Dstore IDs
+   * @return the IDs as a short array
    */
-  public String getStatusInfo() {
-    return statusInfo;
+  private static short[] toShorts(int[] ids) {
+    short[] shorts = new short[ids.length];
+    for (int i = 0; i < ids.length; i++) {
+      shorts[i] = (short) ids[i];
+    }
+    return shorts;
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,8 @@
+/**
+ * FileState is the lifecycle state of a file in the Index.
+ */
+public enum FileState {
+  IN_PROGRESS, // Being stored, waiting for STORE_ACKs
+  COMPLETE, // Stored on every selected Dstore
+  REMOVE_IN_PROGRESS // Being removed, waiting for REMOVE_ACKs
+}
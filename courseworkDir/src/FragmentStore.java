@@ -0,0 +1,201 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * FragmentStore holds the Dstore's fragments of erasure-coded files, one file per fragment in a directory beside the
+ * storage directory. Each fragment file starts with a header giving the code, the fragment's index and the ports of
+ * the Dstores holding every fragment, so any holder can find the others to rebuild the file without the Controller.
+ * A fragment is written under a temporary name and renamed once complete, so a partial fragment is never read.
+ */
+public class FragmentStore {
+  private static final int MAGIC = 0x52534631; // "RSF1", first bytes of a fragment file
+
+  private final Path dir; // Directory of fragment files
+
+  /**
+   * Where the fragments of a file are and which one this is.
+   *
+   * @param dataShards   number of data shards k
+   * @param parityShards number of parity shards m
+   * @param index        index of this fragment, data shards first
+   * @param fileSize     size of the original file
+   * @param ports        ports of the Dstores holding each fragment, by index
+   */
+  public record Layout(int dataShards, int parityShards, int index, long fileSize, int[] ports) {
+
+    /**
+     * Gets the length of the header written before the fragment data.
+     *
+     * @return the header length in bytes
+     */
+    public int headerLength() {
+      return 4 + 3 + 8 + 4 * ports.length;
+    }
+
+    /**
+     * Gets the length of the fragment data after the header.
+     *
+     * @return the data length in bytes
+     */
+    public long fragmentLength() {
+      return ReedSolomon.fragmentLength(fileSize, dataShards);
+    }
+
+    /**
+     * Gets the same layout for another fragment of the file.
+     *
+     * @param other the index of the other fragment
+     * @return the other fragment's layout
+     */
+    public Layout forIndex(int other) {
+      return new Layout(dataShards, parityShards, other, fileSize, ports);
+    }
+
+    /**
+     * Encode the header.
+     *
+     * @return a buffer holding the header, ready to be written
+     */
+    public ByteBuffer header() {
+      ByteBuffer header = ByteBuffer.allocate(headerLength());
+      header.putInt(MAGIC).put((byte) dataShards).put((byte) parityShards).put((byte) index).putLong(fileSize);
+      for (int port : ports) {
+        header.putInt(port);
+      }
+      return header.flip();
+    }
+
+    /**
+     * Read a header from a channel.
+     *
+     * @param in the channel, positioned at the start of the header
+     * @return the layout in the header
+     * @throws IOException if the channel ends early or the header is not a fragment header
+     */
+    public static Layout read(ReadableByteChannel in) throws IOException {
+      ByteBuffer fixed = readExactly(in, ByteBuffer.allocate(4 + 3 + 8));
+      if (fixed.getInt() != MAGIC) {
+        throw new IOException("Not a fragment");
+      }
+      int dataShards = fixed.get() & 0xff;
+      int parityShards = fixed.get() & 0xff;
+      int index = fixed.get() & 0xff;
+      long fileSize = fixed.getLong();
+      ByteBuffer portBytes = readExactly(in, ByteBuffer.allocate(4 * (dataShards + parityShards)));
+      int[] ports = new int[dataShards + parityShards];
+      for (int i = 0; i < ports.length; i++) {
+        ports[i] = portBytes.getInt();
+      }
+      return new Layout(dataShards, parityShards, index, fileSize, ports);
+    }
+  }
+
+  /**
+   * Constructor for FragmentStore.
+   *
+   * @param dir the directory of fragment files, created if missing; it must not be inside the storage directory
+   * @throws IOException if the directory cannot be created
+   */
+  public FragmentStore(Path dir) throws IOException {
+    this.dir = Files.createDirectories(dir);
+  }
+
+  /**
+   * Checks whether a fragment of a file is stored.
+   *
+   * @param filename the name of the file
+   * @return true if a complete fragment is stored
+   */
+  public boolean contains(String filename) {
+    return Files.exists(dir.resolve(filename));
+  }
+
+  /**
+   * Open a stored fragment, positioned at its header.
+   *
+   * @param filename the name of the file
+   * @return the open fragment
+   * @throws IOException if the fragment does not exist or cannot be read
+   */
+  public FileChannel open(String filename) throws IOException {
+    return FileChannel.open(dir.resolve(filename), StandardOpenOption.READ);
+  }
+
+  /**
+   * Create the temporary file a fragment is written to before it is committed.
+   *
+   * @param filename the name of the file
+   * @return the temporary fragment, empty and open for writing
+   * @throws IOException if it cannot be created
+   */
+  public FileChannel create(String filename) throws IOException {
+    return FileChannel.open(tempPath(filename), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+  }
+
+  /**
+   * Make a fully written fragment visible under its own name, replacing any older one.
+   *
+   * @param filename the name of the file
+   * @throws IOException if the rename fails
+   */
+  public void commit(String filename) throws IOException {
+    Files.move(tempPath(filename), dir.resolve(filename), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Delete a fragment that was not committed.
+   *
+   * @param filename the name of the file
+   */
+  public void abort(String filename) {
+    try {
+      Files.deleteIfExists(tempPath(filename));
+    } catch (IOException e) {
+      // Overwritten by the next fragment of the same name
+    }
+  }
+
+  /**
+   * Delete a stored fragment.
+   *
+   * @param filename the name of the file
+   * @return true if a fragment was deleted
+   * @throws IOException if it cannot be deleted
+   */
+  public boolean delete(String filename) throws IOException {
+    return Files.deleteIfExists(dir.resolve(filename));
+  }
+
+  /**
+   * Gets the temporary name a fragment is written under.
+   *
+   * @param filename the name of the file
+   * @return the temporary path
+   */
+  private Path tempPath(String filename) {
+    return dir.resolve(filename + ".part");
+  }
+
+  /**
+   * Fill a buffer from a channel.
+   *
+   * @param in     the channel
+   * @param buffer the buffer to fill
+   * @return the buffer, flipped for reading
+   * @throws IOException if the channel ends before the buffer is full
+   */
+  public static ByteBuffer readExactly(ReadableByteChannel in, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      if (in.read(buffer) == -1) {
+        throw new IOException("Fragment ended early");
+      }
+    }
+    return buffer.flip();
+  }
+}
@@ -1,36 +1,189 @@
-import java.net.Socket;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.Collections;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.function.BiConsumer;
 
 /**
  * Index class manages the state of files within the system.
- * It tracks files that are in progress, complete, or marked for removal.
+ * Each file has one entry holding its state, size and the IDs of the Dstores storing it.
+ * A reverse map from Dstore ID to file names lets a disconnect or rebalance touch only the files on that Dstore.
+ * No method takes a global lock: entries change through ConcurrentHashMap.compute, which only locks the entry's bin,
+ * and state transitions are compare-and-set on the entry, so operations on different files do not contend.
+ * The names of complete files are also kept sorted in a skip list, updated with each transition,
+ * so LIST walks them without copying and without blocking STOREs and REMOVEs.
+ * With a journal attached, every transition is also logged from inside the same compute, so the log holds
+ * the transitions of each file in the order they were applied.
+ * Files stored with a declared content ID are also grouped by it; the number of names sharing a content ID is its
+ * reference count, and a complete file in the group can serve as the source for linking a new name to the content.
+ * Erasure-coded files keep their fragment holders in fragment order; they are never given or relieved of replicas,
+ * and a holder that disconnects stays recorded, since its fragment is back when it rejoins.
+ * A file uploaded in chunks is indexed with no Dstores, and each of its chunks as an entry of its own marked as a chunk.
+ * Complete chunks are kept in their own set rather than with the complete files, so LIST never sees them and a client
+ * file whose name merely looks like a chunk's is listed like any other.
  */
 public class Index {
-  public final ConcurrentHashMap<String, FileInfo> inProgressFilesInfo = new ConcurrentHashMap<>();  //Stores information about files that are in progress.
-  public final ConcurrentHashMap<String, FileInfo> completeFilesInfo = new ConcurrentHashMap<>();   //Stores information about files that have been completely stored.
-  public final ConcurrentHashMap<String, FileInfo> removeFilesInfo = new ConcurrentHashMap<>();    //Stores information about files that are marked for removal.
+  private final ConcurrentHashMap<String, FileInfo> filesInfo = new ConcurrentHashMap<>();  //Stores information about every file that is in progress, complete or being removed.
+  private final ConcurrentSkipListSet<String> completeFiles = new ConcurrentSkipListSet<>();  //Names of the complete files, sorted.
+  private final Set<String> completeChunks = ConcurrentHashMap.newKeySet();  //Names of the complete chunks of files uploaded in chunks.
+  private final ConcurrentHashMap<Integer, Set<String>> filesByDstore = new ConcurrentHashMap<>();  //Stores the names of the files on each Dstore.
+  private final ConcurrentHashMap<String, Set<String>> filesByContent = new ConcurrentHashMap<>();  //Names of the files with each declared content ID.
+  private volatile IndexJournal journal;  //Log of the transitions, or null if the index is not durable.
 
   /**
-   * Returns the map containing information about files that are in progress.
+   * Attaches the journal that logs every later transition.
    *
-   * @return ConcurrentHashMap of in-progress files
+   * @param journal the journal
    */
-  public ConcurrentHashMap<String, FileInfo> getInProgressFilesInfo() {
-    return inProgressFilesInfo;
+  public void setJournal(IndexJournal journal) {
+    this.journal = journal;
   }
 
   /**
-   * Adds a file to the in-progress list and initializes its storage information.
+   * Adds a recovered file without logging it.
    *
    * @param filename the name of the file
-   * @param dstores  the list of dstores where the file is being stored
-   * @param fileSize the size of the file
+   * @param fileInfo the file's recovered state, size and Dstores
    */
-  public synchronized void fileToStore(String filename, List<Socket> dstores, int fileSize) {
-    inProgressFilesInfo.putIfAbsent(filename, new FileInfo(dstores, fileSize, "IN_PROGRESS"));
-    System.out.println(inProgressFilesInfo.get(filename).getDstoreSockets() + " is storing " + inProgressFilesInfo.get(filename).getFileSize() + " of size " + inProgressFilesInfo.get(filename).getFileSize() + " bytes");
+  public void restore(String filename, FileInfo fileInfo) {
+    filesInfo.put(filename, fileInfo);
+    addToDstores(filename, fileInfo.getDstoreIds());
+    addContentReference(fileInfo.contentId, filename);
+    if (fileInfo.state == FileState.COMPLETE) {
+      completeNames(fileInfo).add(filename);
+    }
+  }
+
+  /**
+   * Gets the set that holds the name of an entry while it is complete.
+   *
+   * @param fileInfo the entry
+   * @return the complete chunks for a chunk, otherwise the complete files
+   */
+  private Set<String> completeNames(FileInfo fileInfo) {
+    return fileInfo.isChunk() ? completeChunks : completeFiles;
+  }
+
+  /**
+   * Visits every file in any state, without locking, e.g. to write a snapshot.
+   *
+   * @param action called with the name and information of each file
+   */
+  public void forEachFile(BiConsumer<String, FileInfo> action) {
+    filesInfo.forEach(action);
+  }
+
+  /**
+   * Adds a file to the index as in progress and records its storage information.
+   *
+   * @param filename  the name of the file
+   * @param dstoreIds the IDs of the Dstores where the file is being stored
+   * @param fileSize  the size of the file
+   * @return true if the file was added, false if the name is already indexed
+   */
+  public boolean fileToStore(String filename, int[] dstoreIds, long fileSize) {
+    return fileToStore(filename, dstoreIds, fileSize, null);
+  }
+
+  /**
+   * Adds a new file with declared content to the index, in progress.
+   *
+   * @param filename  the name of the file
+   * @param dstoreIds the IDs of the Dstores chosen for the file
+   * @param fileSize  the size of the file
+   * @param contentId the content hash and size declared with STORE, or null
+   * @return true if the file was added, false if it already exists
+   */
+  public boolean fileToStore(String filename, int[] dstoreIds, long fileSize, String contentId) {
+    return fileToStore(filename, dstoreIds, fileSize, contentId, 0, 0);
+  }
+
+  /**
+   * Adds a new file to the index, in progress, either replicated or erasure-coded.
+   *
+   * @param filename     the name of the file
+   * @param dstoreIds    the IDs of the Dstores chosen for the file, in fragment order if it is erasure-coded
+   * @param fileSize     the size of the file
+   * @param contentId    the content hash and size declared with STORE, or null
+   * @param dataShards   number of data fragments, 0 to replicate the file
+   * @param parityShards number of parity fragments, 0 to replicate the file
+   * @return true if the file was added, false if it already exists
+   */
+  public boolean fileToStore(String filename, int[] dstoreIds, long fileSize, String contentId, int dataShards, int parityShards) {
+    return addEntry(filename, dstoreIds, fileSize, contentId, dataShards, parityShards, false);
+  }
+
+  /**
+   * Adds a chunk of a file uploaded in chunks to the index as in progress, apart from the client files.
+   *
+   * @param chunkName    the name of the chunk, given by Protocol.chunkName
+   * @param dstoreIds    the IDs of the Dstores chosen for the chunk, in fragment order if it is erasure-coded
+   * @param fileSize     the size of the chunk
+   * @param dataShards   number of data fragments, 0 to replicate the chunk
+   * @param parityShards number of parity fragments, 0 to replicate the chunk
+   * @return true if the chunk was added, false if an entry of that name already exists
+   */
+  public boolean chunkToStore(String chunkName, int[] dstoreIds, long fileSize, int dataShards, int parityShards) {
+    return addEntry(chunkName, dstoreIds, fileSize, null, dataShards, parityShards, true);
+  }
+
+  /**
+   * Adds a new client file or chunk to the index as in progress.
+   *
+   * @param filename     the name of the file or chunk
+   * @param dstoreIds    the IDs of the Dstores chosen for it, in fragment order if it is erasure-coded
+   * @param fileSize     its size
+   * @param contentId    the content hash and size declared with STORE, or null
+   * @param dataShards   number of data fragments, 0 to replicate it
+   * @param parityShards number of parity fragments, 0 to replicate it
+   * @param chunk        whether it is a chunk of a file uploaded in chunks
+   * @return true if it was added, false if an entry of that name already exists
+   */
+  private boolean addEntry(String filename, int[] dstoreIds, long fileSize, String contentId, int dataShards, int parityShards, boolean chunk) {
+    boolean[] added = new boolean[1];
+    filesInfo.computeIfAbsent(filename, k -> {
+      added[0] = true;
+      addToDstores(filename, dstoreIds);
+      addContentReference(contentId, filename);
+      IndexJournal log = journal;
+      if (log != null) {
+        log.logStore(filename, dstoreIds, fileSize, contentId);
+        if (dataShards > 0) {
+          log.logErasure(filename, dataShards, parityShards);
+        }
+        if (chunk) {
+          log.logChunk(filename);
+        }
+      }
+      return new FileInfo(dstoreIds, fileSize, FileState.IN_PROGRESS, contentId, dataShards, parityShards, 0, chunk);
+    });
+    return added[0];
+  }
+
+  /**
+   * Adds a new file uploaded in chunks to the index, in progress. Its chunks are added with chunkToStore.
+   *
+   * @param filename  the name of the file
+   * @param fileSize  the size of the file
+   * @param chunkSize the size of each chunk but the last
+   * @return true if the file was added, false if it already exists
+   */
+  public boolean fileToStoreInChunks(String filename, long fileSize, long chunkSize) {
+    boolean[] added = new boolean[1];
+    filesInfo.computeIfAbsent(filename, k -> {
+      added[0] = true;
+      IndexJournal log = journal;
+      if (log != null) {
+        log.logStore(filename, new int[0], fileSize, null);
+        log.logChunked(filename, chunkSize);
+      }
+      return new FileInfo(new int[0], fileSize, FileState.IN_PROGRESS, null, 0, 0, chunkSize);
+    });
+    return added[0];
   }
 
   /**
@@ -39,9 +192,8 @@ public class Index {
    * @param filename the name of the file
    * @return true if the file is in progress, false otherwise
    */
-  public synchronized boolean isFileInProgress(String filename) {
-    FileInfo fileInfo = inProgressFilesInfo.get(filename);
-    return fileInfo != null && "IN_PROGRESS".equals(fileInfo.statusInfo);
+  public boolean isFileInProgress(String filename) {
+    return hasState(filename, FileState.IN_PROGRESS);
   }
 
   /**
@@ -50,55 +202,241 @@ public class Index {
    * @param filename the name of the file
    * @return true if the file is complete, false otherwise
    */
-  public synchronized boolean isFileComplete(String filename) {
-    return completeFilesInfo.containsKey(filename);
+  public boolean isFileComplete(String filename) {
+    return hasState(filename, FileState.COMPLETE);
   }
 
   /**
-   * Marks a file as complete by moving it from the in-progress list to the complete list.
+   * Marks an in-progress file as complete.
    *
    * @param filename the name of the file
+   * @return true if this call completed the file
    */
-  public synchronized void markFileAsComplete(String filename) {
-    if (inProgressFilesInfo.get(filename) != null) {
-      inProgressFilesInfo.get(filename).setStatus("COMPLETE");
-      completeFilesInfo.put(filename, inProgressFilesInfo.get(filename));
-      inProgressFilesInfo.remove(filename);
-    }
+  public boolean markFileAsComplete(String filename) {
+    return transition(filename, FileState.IN_PROGRESS, FileState.COMPLETE);
   }
 
   /**
-   * Marks a file as "remove in progress" by moving it from the complete list to the remove list.
+   * Marks a complete file as "remove in progress".
    *
    * @param filename the name of the file
+   * @return true if this call started the removal
    */
-  public synchronized void markFileAsRemoveInProgress(String filename) {
-    if (completeFilesInfo.get(filename) != null) {
-      completeFilesInfo.get(filename).setStatus("REMOVE_IN_PROGRESS");
-      removeFilesInfo.put(filename, completeFilesInfo.get(filename));
-      completeFilesInfo.remove(filename);
-    }
+  public boolean markFileAsRemoveInProgress(String filename) {
+    return transition(filename, FileState.COMPLETE, FileState.REMOVE_IN_PROGRESS);
   }
 
   /**
-   * Removes a file from all lists (in-progress, complete, and remove).
+   * Marks an upload in progress as being removed, so it can no longer complete.
    *
    * @param filename the name of the file
+   * @return true if this call aborted the upload
+   */
+  public boolean abortUpload(String filename) {
+    return transition(filename, FileState.IN_PROGRESS, FileState.REMOVE_IN_PROGRESS);
+  }
+
+  /**
+   * Returns a file whose removal was not acknowledged by all its Dstores to complete, so it can be removed again.
+   *
+   * @param filename  the name of the file
+   * @param dstoreIds the IDs of the Dstores still holding the file
+   * @return true if this call restored the file
    */
-  public synchronized void removeFile(String filename) {
-    inProgressFilesInfo.remove(filename);
-    completeFilesInfo.remove(filename);
-    removeFilesInfo.remove(filename);
+  public boolean cancelRemove(String filename, int[] dstoreIds) {
+    boolean[] changed = new boolean[1];
+    filesInfo.computeIfPresent(filename, (k, fileInfo) -> {
+      if (fileInfo.compareAndSetState(FileState.REMOVE_IN_PROGRESS, FileState.COMPLETE)) {
+        changed[0] = true;
+        removeFromDstores(filename, fileInfo.getDstoreIds());
+        fileInfo.setDstoreIds(dstoreIds);
+        addToDstores(filename, dstoreIds);
+        IndexJournal log = journal;
+        if (log != null) {
+          log.logDstores(filename, dstoreIds);
+          log.logState(filename, FileState.COMPLETE);
+        }
+        completeNames(fileInfo).add(filename);
+      }
+      return fileInfo;
+    });
+    return changed[0];
+  }
+
+  /**
+   * Moves a file from one state to another and keeps the sorted names of complete files in step.
+   * The change runs inside compute, so transitions of one file reach the skip list in order.
+   *
+   * @param filename the name of the file
+   * @param expected the state the file must be in
+   * @param next     the new state
+   * @return true if this call made the transition
+   */
+  private boolean transition(String filename, FileState expected, FileState next) {
+    boolean[] changed = new boolean[1];
+    filesInfo.computeIfPresent(filename, (k, fileInfo) -> {
+      if (fileInfo.compareAndSetState(expected, next)) {
+        changed[0] = true;
+        IndexJournal log = journal;
+        if (log != null) {
+          log.logState(filename, next);
+        }
+        if (next == FileState.COMPLETE) {
+          completeNames(fileInfo).add(filename);
+        } else if (expected == FileState.COMPLETE) {
+          completeNames(fileInfo).remove(filename);
+        }
+      }
+      return fileInfo;
+    });
+    return changed[0];
+  }
+
+  /**
+   * Removes a file from the index, whatever its state.
+   *
+   * @param filename the name of the file
+   * @return the removed FileInfo, or null if the file was not indexed
+   */
+  public FileInfo removeFile(String filename) {
+    return removeFile(filename, null);
+  }
+
+  /**
+   * Removes a file from the index if it is in the expected state.
+   *
+   * @param filename the name of the file
+   * @param expected the state the file must be in, or null for any state
+   * @return the removed FileInfo, or null if the file was not indexed in that state
+   */
+  public FileInfo removeFile(String filename, FileState expected) {
+    FileInfo[] removed = new FileInfo[1];
+    filesInfo.computeIfPresent(filename, (k, fileInfo) -> {
+      if (expected != null && fileInfo.state != expected) {
+        return fileInfo;
+      }
+      removeFromDstores(filename, fileInfo.getDstoreIds());
+      removeContentReference(fileInfo.contentId, filename);
+      if (fileInfo.state == FileState.COMPLETE) {
+        completeNames(fileInfo).remove(filename);
+      }
+      IndexJournal log = journal;
+      if (log != null) {
+        log.logRemove(filename);
+      }
+      removed[0] = fileInfo;
+      return null;
+    });
+    return removed[0];
   }
 
   /**
    * Retrieves information about a completely stored file.
    *
    * @param filename the name of the file
-   * @return FileInfo object containing information about the file
+   * @return FileInfo object containing information about the file, or null if it is not complete
    */
   public FileInfo getCompleteFileInfo(String filename) {
-    return completeFilesInfo.get(filename);
+    FileInfo fileInfo = filesInfo.get(filename);
+    return fileInfo != null && fileInfo.state == FileState.COMPLETE ? fileInfo : null;
+  }
+
+  /**
+   * Retrieves information about a file in any state.
+   *
+   * @param filename the name of the file
+   * @return FileInfo object containing information about the file, or null if it is not indexed
+   */
+  public FileInfo getFileInfo(String filename) {
+    return filesInfo.get(filename);
+  }
+
+  /**
+   * Replaces the Dstores recorded for a complete file, e.g. after a rebalance.
+   *
+   * @param filename  the name of the file
+   * @param dstoreIds the IDs of the Dstores that now store the file
+   */
+  public void updateFileDstores(String filename, int[] dstoreIds) {
+    filesInfo.computeIfPresent(filename, (k, fileInfo) -> {
+      if (fileInfo.state == FileState.COMPLETE) {
+        removeFromDstores(filename, fileInfo.getDstoreIds());
+        fileInfo.setDstoreIds(dstoreIds);
+        addToDstores(filename, dstoreIds);
+        IndexJournal log = journal;
+        if (log != null) {
+          log.logDstores(filename, dstoreIds);
+        }
+      }
+      return fileInfo;
+    });
+  }
+
+  /**
+   * Records that a Dstore holds a copy of a file, as reported in its inventory.
+   * A file the index does not know may be adopted as complete, which recovers files after a restart without metadata.
+   * Without metadata a chunk cannot be told from a client file, so the chunks of a lost multipart upload are adopted as files.
+   * Files in another state, or whose size differs from the copy, are left alone.
+   *
+   * @param filename the name of the file
+   * @param fileSize the size of the Dstore's copy
+   * @param dstoreId the ID of the Dstore
+   * @param adopt    whether to add the file if the index does not know it
+   * @return true if the Dstore was added to the file's replicas
+   */
+  public boolean addReplica(String filename, long fileSize, int dstoreId, boolean adopt) {
+    boolean[] added = new boolean[1];
+    filesInfo.compute(filename, (k, fileInfo) -> {
+      IndexJournal log = journal;
+      if (fileInfo == null && adopt) {
+        int[] dstoreIds = {dstoreId};
+        fileInfo = new FileInfo(dstoreIds, fileSize, FileState.COMPLETE);
+        addToDstores(filename, dstoreIds);
+        completeFiles.add(filename);
+        if (log != null) {
+          log.logStore(filename, dstoreIds, fileSize, null);
+          log.logState(filename, FileState.COMPLETE);
+        }
+        added[0] = true;
+      } else if (fileInfo != null && fileInfo.state == FileState.COMPLETE && !fileInfo.isErasureCoded()
+          && fileInfo.fileSize == fileSize && !fileInfo.isStoredOn(dstoreId)) {
+        int[] current = fileInfo.getDstoreIds();
+        int[] dstoreIds = Arrays.copyOf(current, current.length + 1);
+        dstoreIds[current.length] = dstoreId;
+        fileInfo.setDstoreIds(dstoreIds);
+        addToDstores(filename, new int[] {dstoreId});
+        if (log != null) {
+          log.logDstores(filename, dstoreIds);
+        }
+        added[0] = true;
+      }
+      return fileInfo;
+    });
+    return added[0];
+  }
+
+  /**
+   * Records that a Dstore no longer holds a copy of a complete file.
+   *
+   * @param filename the name of the file
+   * @param dstoreId the ID of the Dstore
+   * @return true if the Dstore was removed from the file's replicas
+   */
+  public boolean removeReplica(String filename, int dstoreId) {
+    boolean[] removed = new boolean[1];
+    filesInfo.computeIfPresent(filename, (k, fileInfo) -> {
+      if (fileInfo.state == FileState.COMPLETE && !fileInfo.isErasureCoded() && fileInfo.isStoredOn(dstoreId)) {
+        fileInfo.removeDstore(dstoreId);
+        removeFromDstores(filename, new int[] {dstoreId});
+        IndexJournal log = journal;
+        if (log != null) {
+          log.logDstores(filename, fileInfo.getDstoreIds());
+        }
+        removed[0] = true;
+      }
+      return fileInfo;
+    });
+    return removed[0];
   }
 
   /**
@@ -106,18 +444,168 @@ public class Index {
    *
    * @return List of complete file names
    */
-  public synchronized List<String> getCompleteFiles() {
-    return new ArrayList<>(completeFilesInfo.keySet());
+  public List<String> getCompleteFiles() {
+    return new ArrayList<>(completeFiles);
+  }
+
+  /**
+   * Retrieves a list of the complete chunks of files uploaded in chunks.
+   *
+   * @return List of complete chunk names
+   */
+  public List<String> getCompleteChunks() {
+    return new ArrayList<>(completeChunks);
+  }
+
+  /**
+   * Retrieves a live, sorted view of the complete files with a prefix, starting after a cursor.
+   * Iterating the view takes no lock; files completed or removed meanwhile may or may not be seen.
+   *
+   * @param prefix the prefix of the file names, empty for all files
+   * @param cursor the last name of the previous page, empty to start from the first file
+   * @return the file names after the cursor that start with the prefix
+   */
+  public NavigableSet<String> getCompleteFiles(String prefix, String cursor) {
+    NavigableSet<String> files = prefix.isEmpty()
+        ? completeFiles
+        : completeFiles.subSet(prefix, true, prefix + Character.MAX_VALUE, false);
+    if (!cursor.isEmpty()) {
+      files = files.tailSet(cursor, false);
+    }
+    return Collections.unmodifiableNavigableSet(files);
+  }
+
+  /**
+   * Retrieves the names of the files recorded on a Dstore.
+   *
+   * @param dstoreId the ID of the Dstore
+   * @return the file names, possibly empty
+   */
+  public Set<String> getFilesOnDstore(int dstoreId) {
+    Set<String> files = filesByDstore.get(dstoreId);
+    return files == null ? Collections.emptySet() : Collections.unmodifiableSet(files);
+  }
+
+  /**
+   * Removes a Dstore from all replicated file records. Only the files on that Dstore are visited.
+   * This is not journaled: the Dstore keeps its files while disconnected, so after a restart they are listed again.
+   * Erasure-coded files keep the Dstore as the holder of its fragment.
+   *
+   * @param dstoreId the ID of the Dstore to be removed
+   */
+  public void removeDstoreFromFiles(int dstoreId) {
+    Set<String> files = filesByDstore.remove(dstoreId);
+    if (files == null) {
+      return;
+    }
+    Set<String> fragments = ConcurrentHashMap.newKeySet();
+    for (String filename : files) {
+      filesInfo.computeIfPresent(filename, (k, fileInfo) -> {
+        if (fileInfo.isErasureCoded()) {
+          fragments.add(filename);
+        } else {
+          fileInfo.removeDstore(dstoreId);
+        }
+        return fileInfo;
+      });
+    }
+    if (!fragments.isEmpty()) {
+      filesByDstore.computeIfAbsent(dstoreId, id -> ConcurrentHashMap.newKeySet()).addAll(fragments);
+    }
+  }
+
+  /**
+   * Checks the state of a file.
+   *
+   * @param filename the name of the file
+   * @param state    the expected state
+   * @return true if the file is indexed with that state
+   */
+  private boolean hasState(String filename, FileState state) {
+    FileInfo fileInfo = filesInfo.get(filename);
+    return fileInfo != null && fileInfo.state == state;
   }
 
   /**
-   * Removes a Dstore from all file records.
+   * Finds a complete file with a declared content ID.
    *
-   * @param dstore the socket of the Dstore to be removed
+   * @param contentId the content hash and size
+   * @return the name of a complete file with that content, or null if there is none
    */
-  public synchronized void removeDstoreFromFiles(Socket dstore) {
-    inProgressFilesInfo.values().forEach(fileInfo -> fileInfo.getDstoreSockets().remove(dstore));
-    completeFilesInfo.values().forEach(fileInfo -> fileInfo.getDstoreSockets().remove(dstore));
-    removeFilesInfo.values().forEach(fileInfo -> fileInfo.getDstoreSockets().remove(dstore));
+  public String findCompleteFileWithContent(String contentId) {
+    Set<String> filenames = filesByContent.get(contentId);
+    if (filenames != null) {
+      for (String filename : filenames) {
+        if (isFileComplete(filename)) {
+          return filename;
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Counts the files sharing a declared content ID.
+   *
+   * @param contentId the content hash and size
+   * @return the reference count of the content
+   */
+  public int getContentReferences(String contentId) {
+    Set<String> filenames = filesByContent.get(contentId);
+    return filenames == null ? 0 : filenames.size();
+  }
+
+  /**
+   * Adds a file to the group of its content ID.
+   *
+   * @param contentId the content hash and size, or null for a file without declared content
+   * @param filename  the name of the file
+   */
+  private void addContentReference(String contentId, String filename) {
+    if (contentId != null) {
+      filesByContent.computeIfAbsent(contentId, id -> ConcurrentHashMap.newKeySet()).add(filename);
+    }
+  }
+
+  /**
+   * Removes a file from the group of its content ID, dropping the group with its last reference.
+   *
+   * @param contentId the content hash and size, or null for a file without declared content
+   * @param filename  the name of the file
+   */
+  private void removeContentReference(String contentId, String filename) {
+    if (contentId != null) {
+      filesByContent.computeIfPresent(contentId, (id, filenames) -> {
+        filenames.remove(filename);
+        return filenames.isEmpty() ? null : filenames;
+      });
+    }
+  }
+
+  /**
+   * Records a file in the reverse map of each of its Dstores.
+   *
+   * @param filename  the name of the file
+   * @param dstoreIds the IDs of the Dstores
+   */
+  private void addToDstores(String filename, int[] dstoreIds) {
+    for (int dstoreId : dstoreIds) {
+      filesByDstore.computeIfAbsent(dstoreId, id -> ConcurrentHashMap.newKeySet()).add(filename);
+    }
+  }
+
+  /**
+   * Drops a file from the reverse map of each of its Dstores.
+   *
+   * @param filename  the name of the file
+   * @param dstoreIds the IDs of the Dstores
+   */
+  private void removeFromDstores(String filename, int[] dstoreIds) {
+    for (int dstoreId : dstoreIds) {
+      Set<String> files = filesByDstore.get(dstoreId);
+      if (files != null) {
+        files.remove(filename);
+      }
+    }
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,112 @@
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * IndexBenchmark measures the heap used per file by the Index, and the time a Dstore disconnect takes,
+ * against the layout the Index used to have: a map of file name to an object holding a List of Dstore sockets,
+ * an int size and a String status, where a disconnect walks every file.
+ * Usage: java IndexBenchmark [files] [dstores] [replicas], e.g. 1000000, 10000000 or 50000000 files;
+ * give the JVM enough heap for the old layout, around 200 bytes per file.
+ */
+public class IndexBenchmark {
+
+  /**
+   * The per-file record of the old Index.
+   *
+   * @param dstoreSockets the Dstores storing the file
+   * @param fileSize      the size of the file
+   * @param statusInfo    the status of the file
+   */
+  private record LegacyFileInfo(List<Socket> dstoreSockets, int fileSize, String statusInfo) {
+  }
+
+  /**
+   * Run the benchmark.
+   *
+   * @param args number of files, number of Dstores and replication factor
+   */
+  public static void main(String[] args) {
+    int files = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+    int dstoreCount = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+    int r = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+    System.out.println("files=" + files + " dstores=" + dstoreCount + " r=" + r);
+
+    Socket[] sockets = new Socket[dstoreCount];
+    for (int i = 0; i < dstoreCount; i++) {
+      sockets[i] = new Socket();
+    }
+    long base = usedHeap();
+    ConcurrentHashMap<String, LegacyFileInfo> legacy = new ConcurrentHashMap<>();
+    for (int i = 0; i < files; i++) {
+      List<Socket> holders = new ArrayList<>(r);
+      for (int j = 0; j < r; j++) {
+        holders.add(sockets[(i + j) % dstoreCount]);
+      }
+      legacy.put(name(i), new LegacyFileInfo(holders, 1024, "COMPLETE"));
+    }
+    long legacyBytes = usedHeap() - base;
+    long start = System.nanoTime();
+    for (LegacyFileInfo fileInfo : legacy.values()) {
+      fileInfo.dstoreSockets().remove(sockets[0]);
+    }
+    long legacyDisconnect = System.nanoTime() - start;
+    report("legacy", files, legacyBytes, legacyDisconnect);
+    legacy = null;
+
+    base = usedHeap();
+    Index index = new Index();
+    for (int i = 0; i < files; i++) {
+      int[] holders = new int[r];
+      for (int j = 0; j < r; j++) {
+        holders[j] = (i + j) % dstoreCount;
+      }
+      String filename = name(i);
+      index.fileToStore(filename, holders, 1024);
+      index.markFileAsComplete(filename);
+    }
+    long compactBytes = usedHeap() - base;
+    start = System.nanoTime();
+    index.removeDstoreFromFiles(0);
+    long compactDisconnect = System.nanoTime() - start;
+    report("compact", files, compactBytes, compactDisconnect);
+    System.out.println(index.getFilesOnDstore(1).size() + " files left on Dstore 1");
+  }
+
+  /**
+   * Gets the name of a benchmark file.
+   *
+   * @param i the number of the file
+   * @return its name
+   */
+  private static String name(int i) {
+    return "file-" + i + ".txt";
+  }
+
+  /**
+   * Measure the heap in use after garbage collection.
+   *
+   * @return the bytes in use
+   */
+  private static long usedHeap() {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  /**
+   * Print the results for one layout.
+   *
+   * @param layout     name of the layout
+   * @param files      number of files
+   * @param bytes      heap used by the layout
+   * @param disconnect nanoseconds taken by one Dstore disconnect
+   */
+  private static void report(String layout, int files, long bytes, long disconnect) {
+    System.out.printf("%-8s %8.1f MiB  %6.1f bytes/file  disconnect %8.1f ms%n",
+        layout, bytes / 1048576.0, (double) bytes / files, disconnect / 1e6);
+  }
+}
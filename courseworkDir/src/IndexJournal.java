@@ -0,0 +1,696 @@
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+/**
+ * IndexJournal makes the Index durable with a write-ahead log of its transitions and periodic snapshots.
+ * Index appends a record for every STORE, state change, removal and replica change while it applies it;
+ * records are only copied into a buffer, and one flusher thread writes and fsyncs whatever has accumulated,
+ * so concurrent operations share each fsync. Replies that promise durability wait for it with whenDurable.
+ * The log is split into numbered segments. Once a segment grows past the snapshot threshold the flusher starts
+ * a new one and a snapshot of the whole Index is written in the background, after which older segments are deleted.
+ * Records are idempotent "set" operations in Dstore ports, so replaying them over a snapshot taken while the Index
+ * kept changing converges on the final state. The snapshot records the segment before the one it was started in,
+ * which also covers operations that were logged but not yet visible when the snapshot began.
+ * Recovery memory-maps the snapshot, replays the later segments and drops files whose STORE never completed.
+ * An erasure-coded file is logged as its STORE followed by an ERASURE record giving its code, and a file uploaded
+ * in chunks as its STORE followed by a CHUNKED record; its upload stays in progress across a restart so it can resume.
+ * Each chunk of such a file is logged as its STORE followed by a PART record, which keeps it apart from client files.
+ */
+public class IndexJournal {
+  private static final int SNAPSHOT_MAGIC = 0x49445831; // "IDX1", first bytes of a snapshot
+  private static final String SNAPSHOT = "index.snapshot"; // Name of the current snapshot
+  private static final byte STORE = 1; // Record: filename size count port* [contentId]
+  private static final byte STATE = 2; // Record: filename state
+  private static final byte REMOVE = 3; // Record: filename
+  private static final byte DSTORES = 4; // Record: filename count port*
+  private static final byte ERASURE = 5; // Record: filename k m
+  private static final byte CHUNKED = 6; // Record: filename chunkSize
+  private static final byte PART = 7; // Record: filename, of a chunk of a file uploaded in chunks
+  private static final FileState[] STATES = FileState.values(); // States by ordinal
+
+  private final Path dir; // Directory holding the snapshot and the log segments
+  private final Index index; // Index being made durable
+  private final DstoreRegistry dstores; // Maps Dstore IDs to the ports the records hold
+  private final long snapshotBytes; // Log bytes after which a snapshot is taken
+  private final Executor callbackExecutor; // Runs whenDurable callbacks, so a slow reply cannot hold up the flusher
+  private final ReentrantLock lock = new ReentrantLock(); // Guards the buffers, sequence numbers and waiters
+  private final Condition appended = lock.newCondition(); // Signalled when a record is appended
+  private final CRC32C appendCrc = new CRC32C(); // Checksum of appended records, guarded by lock
+  private final Queue<Waiter> waiters = new ArrayDeque<>(); // Callbacks waiting for their records to be durable
+  private final AtomicBoolean snapshotting = new AtomicBoolean(); // Whether a snapshot is being written
+  private ByteBuffer active = ByteBuffer.allocate(64 * 1024); // Records not yet handed to the flusher
+  private ByteBuffer spare = ByteBuffer.allocate(64 * 1024); // Buffer the flusher returns after writing
+  private long appendedSeq; // Number of records appended
+  private long durableSeq; // Number of records written and fsynced
+  private FileChannel segment; // Log segment being written, owned by the flusher
+  private long segmentNumber; // Number of the segment being written
+  private long segmentBytes; // Bytes written to the current segment
+
+  /**
+   * A callback waiting for the records appended before it to be durable.
+   */
+  private record Waiter(long seq, Runnable callback) {
+  }
+
+  /**
+   * Constructor for IndexJournal.
+   *
+   * @param dir              directory for the snapshot and the log, created if missing
+   * @param index            the Index to make durable
+   * @param dstores          the registry mapping Dstore IDs to ports
+   * @param snapshotBytes    log bytes after which a snapshot is taken
+   * @param callbackExecutor runs the callbacks of whenDurable once their records are on disk
+   */
+  public IndexJournal(Path dir, Index index, DstoreRegistry dstores, long snapshotBytes, Executor callbackExecutor) {
+    this.dir = dir;
+    this.index = index;
+    this.dstores = dstores;
+    this.snapshotBytes = snapshotBytes;
+    this.callbackExecutor = callbackExecutor;
+  }
+
+  /**
+   * Rebuild the Index from the snapshot and the log, then start logging its transitions.
+   * Files whose REMOVE was interrupted are restored as complete, so a client can remove them again.
+   *
+   * @return the number of files recovered
+   * @throws IOException if the directory cannot be read or the log cannot be opened
+   */
+  public int open() throws IOException {
+    Files.createDirectories(dir);
+    Map<String, FileInfo> files = new HashMap<>();
+    long firstSegment = loadSnapshot(files);
+    List<Long> segments = listSegments();
+    for (long number : segments) {
+      if (number >= firstSegment) {
+        replaySegment(segmentPath(number), files);
+      }
+    }
+    int recovered = 0;
+    for (Map.Entry<String, FileInfo> entry : files.entrySet()) {
+      if (entry.getValue().state == FileState.REMOVE_IN_PROGRESS && !entry.getValue().isChunked()) {
+        entry.getValue().state = FileState.COMPLETE;  // Its REMOVE can no longer be acknowledged, so it may be removed again
+      }
+      if (entry.getValue().state != FileState.IN_PROGRESS || entry.getValue().isChunked()) {  // Its STORE can no longer be acknowledged, unlike a chunk
+        index.restore(entry.getKey(), entry.getValue());
+        recovered++;
+      }
+    }
+
+    segmentNumber = segments.isEmpty() ? 0 : segments.get(segments.size() - 1) + 1;
+    segment = openSegment(segmentNumber);
+    index.setJournal(this);
+    Thread flusher = new Thread(this::flushLoop, "index-journal");
+    flusher.setDaemon(true);
+    flusher.start();
+    return recovered;
+  }
+
+  /**
+   * Log a new file being stored.
+   *
+   * @param filename  the name of the file
+   * @param dstoreIds the IDs of the Dstores chosen for it
+   * @param fileSize  the size of the file
+   * @param contentId the content ID declared for it, or null
+   */
+  public void logStore(String filename, int[] dstoreIds, long fileSize, String contentId) {
+    append(STORE, filename, fileSize, dstoreIds, null, contentId, null);
+  }
+
+  /**
+   * Log the code of an erasure-coded file, right after its STORE.
+   *
+   * @param filename     the name of the file
+   * @param dataShards   number of data fragments
+   * @param parityShards number of parity fragments
+   */
+  public void logErasure(String filename, int dataShards, int parityShards) {
+    append(ERASURE, filename, 0, null, null, null, new long[] {dataShards, parityShards});
+  }
+
+  /**
+   * Log the chunk size of a file uploaded in chunks, right after its STORE.
+   *
+   * @param filename  the name of the file
+   * @param chunkSize the size of each chunk but the last
+   */
+  public void logChunked(String filename, long chunkSize) {
+    append(CHUNKED, filename, 0, null, null, null, new long[] {chunkSize});
+  }
+
+  /**
+   * Log that a new entry is a chunk of a file uploaded in chunks, right after its STORE.
+   *
+   * @param chunkName the name of the chunk
+   */
+  public void logChunk(String chunkName) {
+    append(PART, chunkName, 0, null, null, null, null);
+  }
+
+  /**
+   * Log a file moving to a new state.
+   *
+   * @param filename the name of the file
+   * @param state    the new state
+   */
+  public void logState(String filename, FileState state) {
+    append(STATE, filename, 0, null, state, null, null);
+  }
+
+  /**
+   * Log a file leaving the Index.
+   *
+   * @param filename the name of the file
+   */
+  public void logRemove(String filename) {
+    append(REMOVE, filename, 0, null, null, null, null);
+  }
+
+  /**
+   * Log the Dstores of a file changing, e.g. after a rebalance.
+   *
+   * @param filename  the name of the file
+   * @param dstoreIds the IDs of the Dstores now storing it
+   */
+  public void logDstores(String filename, int[] dstoreIds) {
+    append(DSTORES, filename, 0, dstoreIds, null, null, null);
+  }
+
+  /**
+   * Run a callback once every record appended so far is on disk.
+   * The callback runs straight away if those records are already durable, and otherwise on the callback executor,
+   * so it may block without delaying the next fsync.
+   *
+   * @param callback the callback, typically sending a reply
+   */
+  public void whenDurable(Runnable callback) {
+    lock.lock();
+    try {
+      if (durableSeq < appendedSeq) {
+        waiters.add(new Waiter(appendedSeq, callback));
+        return;
+      }
+    } finally {
+      lock.unlock();
+    }
+    callback.run();
+  }
+
+  /**
+   * Encode a record into the active buffer: varint length, body, CRC32C of the body.
+   *
+   * @param type      the record type
+   * @param filename  the name of the file
+   * @param fileSize  the size, for STORE
+   * @param dstoreIds the Dstore IDs, for STORE and DSTORES
+   * @param state     the state, for STATE
+   * @param contentId the declared content ID, for STORE, or null
+   * @param numbers   the data and parity fragment counts for ERASURE, the chunk size for CHUNKED, or null
+   */
+  private void append(byte type, String filename, long fileSize, int[] dstoreIds, FileState state, String contentId, long[] numbers) {
+    int bound = 1 + 5 + filename.length() * 3 + 10 + 5 + (dstoreIds == null ? 0 : dstoreIds.length * 5) + 1
+        + (contentId == null ? 0 : 5 + contentId.length() * 3) + (numbers == null ? 0 : numbers.length * 10);
+    lock.lock();
+    try {
+      ensureCapacity(5 + bound + 4);
+      int lengthAt = active.position();
+      active.position(lengthAt + 5);  // Length is written once the body is known, padded to five bytes
+      int bodyStart = active.position();
+      active.put(type);
+      Protocol.putString(active, filename);
+      if (type == STORE) {
+        Protocol.putVarint(active, fileSize);
+      }
+      if (dstoreIds != null) {
+        Protocol.putVarint(active, dstoreIds.length);
+        for (int dstoreId : dstoreIds) {
+          Protocol.putVarint(active, dstores.portOf(dstoreId));
+        }
+      }
+      if (state != null) {
+        active.put((byte) state.ordinal());
+      }
+      if (contentId != null) {
+        Protocol.putString(active, contentId);
+      }
+      if (numbers != null) {
+        for (long number : numbers) {
+          Protocol.putVarint(active, number);
+        }
+      }
+      int bodyLength = active.position() - bodyStart;
+      putPaddedVarint(active, lengthAt, bodyLength);
+      appendCrc.reset();
+      appendCrc.update(active.array(), bodyStart, bodyLength);
+      active.putInt((int) appendCrc.getValue());
+      appendedSeq++;
+      appended.signal();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Grow the active buffer if a record may not fit. Must be called with the lock held.
+   *
+   * @param bound the largest size of the record
+   */
+  private void ensureCapacity(int bound) {
+    if (active.remaining() < bound) {
+      ByteBuffer larger = ByteBuffer.allocate(Math.max(active.capacity() * 2, active.position() + bound));
+      active.flip();
+      larger.put(active);
+      active = larger;
+    }
+  }
+
+  /**
+   * Write a varint in exactly five bytes, so a record's length can be filled in after its body.
+   *
+   * @param buffer the buffer
+   * @param at     index of the five bytes
+   * @param value  the value
+   */
+  private static void putPaddedVarint(ByteBuffer buffer, int at, int value) {
+    for (int i = 0; i < 4; i++) {
+      buffer.put(at + i, (byte) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    buffer.put(at + 4, (byte) value);
+  }
+
+  /**
+   * Write and fsync the appended records in batches, then release the callbacks waiting for them.
+   * Records appended while one batch is being synced form the next batch. A batch that cannot be made durable is
+   * retried, and its callbacks and every later one wait, so no reply ever promises a change the disk does not hold.
+   */
+  private void flushLoop() {
+    while (true) {
+      ByteBuffer batch;
+      long batchSeq;
+      lock.lock();
+      try {
+        while (active.position() == 0) {
+          appended.awaitUninterruptibly();
+        }
+        batch = active;
+        active = spare;
+        batchSeq = appendedSeq;
+      } finally {
+        lock.unlock();
+      }
+
+      batch.flip();
+      writeDurably(batch);
+      batch.clear();
+
+      List<Runnable> ready = new ArrayList<>();
+      lock.lock();
+      try {
+        spare = batch;
+        durableSeq = batchSeq;
+        while (!waiters.isEmpty() && waiters.peek().seq() <= batchSeq) {
+          ready.add(waiters.poll().callback());
+        }
+      } finally {
+        lock.unlock();
+      }
+      for (Runnable callback : ready) {
+        try {
+          callbackExecutor.execute(() -> {
+            try {
+              callback.run();
+            } catch (Exception e) {
+              System.out.println("Error running journal callback: " + e.getMessage());
+            }
+          });
+        } catch (RejectedExecutionException e) {
+          System.out.println("Error running journal callback: " + e.getMessage());
+        }
+      }
+
+      if (segmentBytes >= snapshotBytes && snapshotting.compareAndSet(false, true)) {
+        startSnapshot();
+      }
+    }
+  }
+
+  /**
+   * Write a batch to the segment and fsync it, retrying until both succeed; nothing waiting on the batch is released before.
+   * A failed fsync may have dropped the dirty pages, so each retry truncates the segment back to where the batch
+   * started and writes the whole batch again rather than repeating only the fsync. Runs on the flusher thread.
+   *
+   * @param batch the records to write, flipped for reading
+   */
+  private void writeDurably(ByteBuffer batch) {
+    long start = -1;  // Segment size before the batch, known once the first attempt reads it
+    long delayMillis = 10;
+    while (true) {
+      try {
+        if (start < 0) {
+          start = segment.size();
+        } else {
+          segment.truncate(start);
+          batch.rewind();
+        }
+        while (batch.hasRemaining()) {
+          segment.write(batch);
+        }
+        segment.force(false);
+        segmentBytes += batch.limit();
+        return;
+      } catch (IOException e) {
+        System.out.println("Error writing index journal, retrying in " + delayMillis + " ms: " + e.getMessage());
+      }
+      LockSupport.parkNanos(delayMillis * 1_000_000);
+      delayMillis = Math.min(delayMillis * 2, 1000);
+    }
+  }
+
+  /**
+   * Move on to a new segment and snapshot the Index in the background. Runs on the flusher thread.
+   */
+  private void startSnapshot() {
+    long replayFrom = segmentNumber;
+    try {
+      FileChannel next = openSegment(segmentNumber + 1);
+      segment.close();
+      segment = next;
+      segmentNumber++;
+      segmentBytes = 0;
+    } catch (IOException e) {
+      System.out.println("Error starting index journal segment: " + e.getMessage());
+      snapshotting.set(false);
+      return;
+    }
+    Thread writer = new Thread(() -> {
+      try {
+        writeSnapshot(replayFrom);
+      } catch (IOException e) {
+        System.out.println("Error writing index snapshot: " + e.getMessage());
+      } finally {
+        snapshotting.set(false);
+      }
+    }, "index-snapshot");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /**
+   * Write a snapshot of the Index and delete the segments it makes redundant.
+   * The snapshot is written to a temporary file and renamed, so a crash leaves the previous one intact.
+   *
+   * @param replayFrom the first segment recovery must replay on top of this snapshot
+   * @throws IOException if the snapshot cannot be written
+   */
+  private void writeSnapshot(long replayFrom) throws IOException {
+    long start = System.nanoTime();
+    Path tmp = dir.resolve(SNAPSHOT + ".tmp");
+    CRC32C crc = new CRC32C();
+    int[] count = new int[1];
+    try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      ByteBuffer buffer = ByteBuffer.allocate(1024 * 1024);
+      buffer.putInt(SNAPSHOT_MAGIC).putLong(replayFrom);
+      IOException[] failure = new IOException[1];
+      index.forEachFile((filename, fileInfo) -> {
+        if (failure[0] != null) {
+          return;
+        }
+        int[] dstoreIds = fileInfo.getDstoreIds();
+        try {
+          String contentId = fileInfo.contentId;
+          if (buffer.remaining() < 48 + filename.length() * 3 + dstoreIds.length * 5 + (contentId == null ? 0 : contentId.length() * 3)) {
+            drain(buffer, out, crc);
+          }
+          // 2 marks an entry followed by its content ID; 4 is added for one followed by its erasure code, 8 by its chunk size,
+          // and 16 for a chunk of a file uploaded in chunks
+          buffer.put((byte) ((contentId == null ? 1 : 2) + (fileInfo.isErasureCoded() ? 4 : 0) + (fileInfo.isChunked() ? 8 : 0)
+              + (fileInfo.isChunk() ? 16 : 0)));
+          Protocol.putString(buffer, filename);
+          Protocol.putVarint(buffer, fileInfo.getFileSize());
+          buffer.put((byte) fileInfo.state.ordinal());
+          Protocol.putVarint(buffer, dstoreIds.length);
+          for (int dstoreId : dstoreIds) {
+            Protocol.putVarint(buffer, dstores.portOf(dstoreId));
+          }
+          if (contentId != null) {
+            Protocol.putString(buffer, contentId);
+          }
+          if (fileInfo.isErasureCoded()) {
+            Protocol.putVarint(buffer, fileInfo.dataShards);
+            Protocol.putVarint(buffer, fileInfo.parityShards);
+          }
+          if (fileInfo.isChunked()) {
+            Protocol.putVarint(buffer, fileInfo.chunkSize);
+          }
+          count[0]++;
+        } catch (IOException e) {
+          failure[0] = e;
+        }
+      });
+      if (failure[0] != null) {
+        throw failure[0];
+      }
+      buffer.put((byte) 0);
+      drain(buffer, out, crc);
+      buffer.putInt((int) crc.getValue()).flip();
+      while (buffer.hasRemaining()) {
+        out.write(buffer);
+      }
+      out.force(true);
+    }
+    Files.move(tmp, dir.resolve(SNAPSHOT), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    for (long number : listSegments()) {
+      if (number < replayFrom) {
+        Files.deleteIfExists(segmentPath(number));
+      }
+    }
+    System.out.println("Index snapshot of " + count[0] + " files written in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+  }
+
+  /**
+   * Write out a snapshot buffer and add it to the snapshot's checksum.
+   *
+   * @param buffer the buffer being filled
+   * @param out    the snapshot file
+   * @param crc    the checksum of the snapshot so far
+   * @throws IOException if the write fails
+   */
+  private static void drain(ByteBuffer buffer, FileChannel out, CRC32C crc) throws IOException {
+    buffer.flip();
+    crc.update(buffer.array(), 0, buffer.limit());
+    while (buffer.hasRemaining()) {
+      out.write(buffer);
+    }
+    buffer.clear();
+  }
+
+  /**
+   * Load the snapshot, if there is a valid one, by memory-mapping it.
+   *
+   * @param files map to fill with the snapshot's files
+   * @return the first segment to replay on top of it, 0 without a snapshot
+   * @throws IOException if the snapshot cannot be read
+   */
+  private long loadSnapshot(Map<String, FileInfo> files) throws IOException {
+    Path path = dir.resolve(SNAPSHOT);
+    if (!Files.exists(path)) {
+      return 0;
+    }
+    try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+      MappedByteBuffer mapped = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+      CRC32C crc = new CRC32C();
+      crc.update(mapped.duplicate().limit(Math.max(0, mapped.limit() - 4)));
+      if (mapped.limit() < 17 || mapped.getInt(0) != SNAPSHOT_MAGIC || mapped.getInt(mapped.limit() - 4) != (int) crc.getValue()) {
+        System.out.println("Ignoring corrupt index snapshot " + path);
+        return 0;
+      }
+      mapped.position(4);
+      long replayFrom = mapped.getLong();
+      byte marker;
+      while ((marker = mapped.get()) != 0) {
+        String filename = Protocol.getString(mapped);
+        long fileSize = Protocol.getVarint(mapped);
+        FileState state = STATES[mapped.get()];
+        int[] dstoreIds = readDstores(mapped);
+        String contentId = (marker & 3) == 2 ? Protocol.getString(mapped) : null;
+        int dataShards = (marker & 4) != 0 ? (int) Protocol.getVarint(mapped) : 0;
+        int parityShards = (marker & 4) != 0 ? (int) Protocol.getVarint(mapped) : 0;
+        long chunkSize = (marker & 8) != 0 ? Protocol.getVarint(mapped) : 0;
+        files.put(filename, new FileInfo(dstoreIds, fileSize, state, contentId, dataShards, parityShards, chunkSize, (marker & 16) != 0));
+      }
+      return replayFrom;
+    }
+  }
+
+  /**
+   * Apply the records of a segment. A torn record at the end, left by a crash, is cut off.
+   *
+   * @param path  the segment
+   * @param files map of files to apply the records to
+   * @throws IOException if the segment cannot be read
+   */
+  private void replaySegment(Path path, Map<String, FileInfo> files) throws IOException {
+    try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      MappedByteBuffer mapped = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+      CRC32C crc = new CRC32C();
+      int recordStart = 0;
+      try {
+        while (mapped.hasRemaining()) {
+          recordStart = mapped.position();
+          int length = (int) Protocol.getVarint(mapped);
+          if (length < 2 || length > mapped.remaining() - 4) {
+            throw new IllegalArgumentException("Bad record length");
+          }
+          ByteBuffer body = mapped.slice(mapped.position(), length);
+          crc.reset();
+          crc.update(body.duplicate());
+          mapped.position(mapped.position() + length);
+          if (mapped.getInt() != (int) crc.getValue()) {
+            throw new IllegalArgumentException("Bad record checksum");
+          }
+          apply(body, files);
+        }
+      } catch (BufferUnderflowException | IllegalArgumentException e) {
+        System.out.println("Index journal " + path.getFileName() + " ends with a torn record at byte " + recordStart + ", truncating");
+        in.truncate(recordStart);
+      }
+    }
+  }
+
+  /**
+   * Apply one record. Records set state rather than check it, so replaying one twice is harmless.
+   *
+   * @param body  the record body
+   * @param files map of files to apply the record to
+   */
+  private void apply(ByteBuffer body, Map<String, FileInfo> files) {
+    byte type = body.get();
+    String filename = Protocol.getString(body);
+    FileInfo fileInfo = files.get(filename);
+    switch (type) {
+      case STORE:
+        long fileSize = Protocol.getVarint(body);
+        int[] storeIds = readDstores(body);
+        files.put(filename, new FileInfo(storeIds, fileSize, FileState.IN_PROGRESS, body.hasRemaining() ? Protocol.getString(body) : null));
+        break;
+      case STATE:
+        if (fileInfo != null) {
+          fileInfo.state = STATES[body.get()];
+        }
+        break;
+      case REMOVE:
+        files.remove(filename);
+        break;
+      case DSTORES:
+        int[] dstoreIds = readDstores(body);
+        if (fileInfo != null) {
+          fileInfo.setDstoreIds(dstoreIds);
+        }
+        break;
+      case ERASURE:
+        if (fileInfo != null) {
+          int dataShards = (int) Protocol.getVarint(body);
+          files.put(filename, new FileInfo(fileInfo.getDstoreIds(), fileInfo.fileSize, fileInfo.state, fileInfo.contentId,
+              dataShards, (int) Protocol.getVarint(body), fileInfo.chunkSize, fileInfo.chunk));
+        }
+        break;
+      case CHUNKED:
+        if (fileInfo != null) {
+          files.put(filename, new FileInfo(fileInfo.getDstoreIds(), fileInfo.fileSize, fileInfo.state, fileInfo.contentId,
+              fileInfo.dataShards, fileInfo.parityShards, Protocol.getVarint(body), fileInfo.chunk));
+        }
+        break;
+      case PART:
+        if (fileInfo != null) {
+          files.put(filename, new FileInfo(fileInfo.getDstoreIds(), fileInfo.fileSize, fileInfo.state, fileInfo.contentId,
+              fileInfo.dataShards, fileInfo.parityShards, fileInfo.chunkSize, true));
+        }
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown record type " + type);
+    }
+  }
+
+  /**
+   * Read a count and that many Dstore ports, interning each port as a Dstore ID.
+   *
+   * @param buffer the buffer to read from
+   * @return the Dstore IDs
+   */
+  private int[] readDstores(ByteBuffer buffer) {
+    int[] dstoreIds = new int[(int) Protocol.getVarint(buffer)];
+    for (int i = 0; i < dstoreIds.length; i++) {
+      dstoreIds[i] = dstores.intern((int) Protocol.getVarint(buffer));
+    }
+    return dstoreIds;
+  }
+
+  /**
+   * List the numbers of the log segments in the directory.
+   *
+   * @return the segment numbers in ascending order
+   * @throws IOException if the directory cannot be read
+   */
+  private List<Long> listSegments() throws IOException {
+    List<Long> segments = new ArrayList<>();
+    try (DirectoryStream<Path> paths = Files.newDirectoryStream(dir, "index-*.wal")) {
+      for (Path path : paths) {
+        String name = path.getFileName().toString();
+        try {
+          segments.add(Long.parseLong(name.substring(6, name.length() - 4)));
+        } catch (NumberFormatException e) {
+          System.out.println("Ignoring unexpected journal file " + name);
+        }
+      }
+    }
+    Collections.sort(segments);
+    return segments;
+  }
+
+  /**
+   * Gets the path of a log segment.
+   *
+   * @param number the segment number
+   * @return the segment's path
+   */
+  private Path segmentPath(long number) {
+    return dir.resolve("index-" + number + ".wal");
+  }
+
+  /**
+   * Create a log segment and make its directory entry durable.
+   *
+   * @param number the segment number
+   * @return the segment, open for appending
+   * @throws IOException if the segment cannot be created
+   */
+  private FileChannel openSegment(long number) throws IOException {
+    FileChannel channel = FileChannel.open(segmentPath(number), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    channel.force(true);
+    return channel;
+  }
+}
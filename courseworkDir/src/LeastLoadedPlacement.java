@@ -0,0 +1,101 @@
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * LeastLoadedPlacement stores each file on the r Dstores holding the fewest bytes.
+ * A selected file counts against its Dstores straight away, so a burst of STOREs spreads out
+ * before the first acknowledgements arrive.
+ */
+public class LeastLoadedPlacement implements PlacementStrategy {
+  private final Map<Integer, Long> bytesByDstore = new HashMap<>(); // Bytes placed on each Dstore
+  private final TreeSet<Integer> byLoad = new TreeSet<>(
+      Comparator.comparingLong((Integer port) -> bytesByDstore.get(port)).thenComparing(port -> port)); // Dstores ordered by bytes
+  private final ReentrantLock lock = new ReentrantLock(); // Guards bytesByDstore and byLoad
+
+  @Override
+  public void addDstore(int port) {
+    lock.lock();
+    try {
+      if (!bytesByDstore.containsKey(port)) {
+        bytesByDstore.put(port, 0L);
+        byLoad.add(port);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void removeDstore(int port) {
+    lock.lock();
+    try {
+      if (bytesByDstore.containsKey(port)) {
+        byLoad.remove(port);
+        bytesByDstore.remove(port);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public List<Integer> select(String filename, long fileSize, int r) {
+    lock.lock();
+    try {
+      List<Integer> selected = new ArrayList<>(r);
+      for (Integer port : byLoad) {
+        if (selected.size() >= r) {
+          break;
+        }
+        selected.add(port);
+      }
+      for (Integer port : selected) {
+        adjust(port, fileSize);
+      }
+      return selected;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void recordStored(int port, long bytes) {
+    lock.lock();
+    try {
+      adjust(port, bytes);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void recordRemoved(int port, long bytes) {
+    lock.lock();
+    try {
+      adjust(port, -bytes);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Change the bytes of a Dstore and reposition it. Must be called with the lock held.
+   *
+   * @param port  port of the Dstore
+   * @param delta change in bytes
+   */
+  private void adjust(int port, long delta) {
+    Long bytes = bytesByDstore.get(port);
+    if (bytes == null) {
+      return;
+    }
+    byLoad.remove(port);
+    bytesByDstore.put(port, Math.max(0, bytes + delta));
+    byLoad.add(port);
+  }
+}
@@ -0,0 +1,89 @@
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * PendingAcks tracks the acknowledgements still expected for one STORE or REMOVE operation.
+ * Only the Dstores the operation was sent to can acknowledge it, and each of them counts once,
+ * so a Dstore that retries cannot complete the operation early.
+ */
+public class PendingAcks {
+  private final Set<Integer> awaiting = ConcurrentHashMap.newKeySet(); // IDs of the Dstores yet to acknowledge
+  private final AtomicInteger remaining; // Number of acknowledgements still expected
+  private final ControlChannel client; // Channel answering the client's request when the operation completes
+  private volatile TimerWheel.Timeout deadline; // Fails the operation if it is not acknowledged in time
+
+  /**
+   * Constructor for PendingAcks.
+   *
+   * @param dstoreIds the IDs of the Dstores expected to acknowledge
+   * @param client    the channel answering the client's request when the operation completes
+   */
+  public PendingAcks(int[] dstoreIds, ControlChannel client) {
+    for (int dstoreId : dstoreIds) {
+      awaiting.add(dstoreId);
+    }
+    this.remaining = new AtomicInteger(awaiting.size());
+    this.client = client;
+  }
+
+  /**
+   * Record an acknowledgement from a Dstore.
+   *
+   * @param dstoreId the ID of the acknowledging Dstore
+   * @return true if this was the last acknowledgement expected; false for the others,
+   * for duplicates and for Dstores the operation was not sent to
+   */
+  public boolean acknowledge(int dstoreId) {
+    return awaiting.remove(dstoreId) && remaining.decrementAndGet() == 0;
+  }
+
+  /**
+   * Gets the number of acknowledgements still expected.
+   *
+   * @return the number of Dstores yet to acknowledge
+   */
+  public int getRemaining() {
+    return remaining.get();
+  }
+
+  /**
+   * Gets the Dstores that have not acknowledged the operation yet.
+   *
+   * @return the IDs of the Dstores yet to acknowledge
+   */
+  public int[] getAwaiting() {
+    return awaiting.stream().mapToInt(Integer::intValue).toArray();
+  }
+
+  /**
+   * Gets the channel answering the client's request when the operation completes.
+   *
+   * @return the client's reply channel, tagged with the request ID
+   */
+  public ControlChannel getClient() {
+    return client;
+  }
+
+  /**
+   * Set the timeout that fails the operation. It is cancelled straight away if the operation already completed.
+   *
+   * @param deadline the scheduled timeout
+   */
+  public void setDeadline(TimerWheel.Timeout deadline) {
+    this.deadline = deadline;
+    if (remaining.get() == 0) {
+      deadline.cancel();
+    }
+  }
+
+  /**
+   * Cancel the timeout of the operation, once it has completed.
+   */
+  public void cancelDeadline() {
+    TimerWheel.Timeout current = deadline;
+    if (current != null) {
+      current.cancel();
+    }
+  }
+}
@@ -0,0 +1,107 @@
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * PlacementStrategy decides which Dstores store a new file. Dstores are identified by port number.
+ * The strategy is chosen at startup with the system property {@code controller.placement}:
+ * {@code ring} (default), {@code rendezvous}, {@code least-loaded} or {@code random}.
+ */
+public interface PlacementStrategy {
+
+  /**
+   * Add a Dstore that joined.
+   *
+   * @param port port of the Dstore
+   */
+  void addDstore(int port);
+
+  /**
+   * Remove a Dstore that disconnected.
+   *
+   * @param port port of the Dstore
+   */
+  void removeDstore(int port);
+
+  /**
+   * Select the Dstores to store a file on. Implementations may count the file against the chosen Dstores.
+   *
+   * @param filename name of the file
+   * @param fileSize size of the file in bytes
+   * @param r        number of Dstores wanted
+   * @return up to r distinct Dstore ports
+   */
+  List<Integer> select(String filename, long fileSize, int r);
+
+  /**
+   * Rank the Dstores that should hold an existing file, without counting the file against them.
+   * Rebalancing moves files to these Dstores, so it keeps the placement the strategy would choose.
+   *
+   * @param filename name of the file
+   * @param r        number of Dstores wanted
+   * @return up to r distinct Dstore ports in order of preference, or an empty list if the strategy has no preference
+   *     and rebalancing should just even out the load
+   */
+  default List<Integer> rank(String filename, int r) {
+    return List.of();
+  }
+
+  /**
+   * Record that a Dstore gained a file outside of select, e.g. during a rebalance.
+   *
+   * @param port  port of the Dstore
+   * @param bytes size of the file
+   */
+  default void recordStored(int port, long bytes) {
+  }
+
+  /**
+   * Record that a Dstore lost a file or a selected store did not complete.
+   *
+   * @param port  port of the Dstore
+   * @param bytes size of the file
+   */
+  default void recordRemoved(int port, long bytes) {
+  }
+
+  /**
+   * Create the strategy named by a system property value.
+   *
+   * @param name ring, rendezvous, least-loaded or random
+   * @return the placement strategy
+   */
+  static PlacementStrategy fromName(String name) {
+    switch (name) {
+      case "ring":
+        return new ConsistentHashPlacement(Integer.getInteger("controller.virtualNodes", 128));
+      case "rendezvous":
+        return new RendezvousPlacement();
+      case "least-loaded":
+        return new LeastLoadedPlacement();
+      case "random":
+        return new RandomPlacement();
+      default:
+        throw new IllegalArgumentException("Unknown placement strategy: " + name);
+    }
+  }
+
+  /**
+   * 64-bit FNV-1a hash of a key followed by a 64-bit finalizer, so nearby keys spread across the ring.
+   *
+   * @param key  the key to hash
+   * @param salt value mixed into the hash, e.g. a Dstore port or virtual node number
+   * @return the hash
+   */
+  static long hash(String key, long salt) {
+    long h = 0xcbf29ce484222325L ^ salt;
+    for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+      h ^= b;
+      h *= 0x100000001b3L;
+    }
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+}
@@ -0,0 +1,341 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Protocol holds the opcodes and the wire encoding shared by the text and binary control protocols.
+ * A connection is binary if its first byte is MAGIC; text messages always start with an ASCII letter.
+ * A binary client sends MAGIC and its version, the server answers with MAGIC and its own version,
+ * and every message after that is a frame: varint length, opcode byte, then the opcode's fields.
+ * Numbers are unsigned varints and strings are a varint byte length followed by UTF-8 bytes.
+ * A request may carry an ID so a client can pipeline requests: in text the message starts with "#id ",
+ * in binary the opcode has REQUEST_ID_FLAG set and a varint ID follows it. Replies to the request carry the same ID.
+ * STORE_MANY and REMOVE_MANY with ID n are answered as if they were single requests with IDs n, n+1, ...
+ * LIST may ask for one page: "LIST prefix* cursor limit" in text, where the cursor is the last name of the previous
+ * page or "*" for the first page. A binary LIST reply is split into frames of up to LIST_CHUNK names,
+ * each ending with a flag that is 1 if another frame of the same reply follows.
+ * After JOIN a Dstore reports the files it holds in INVENTORY messages of up to LIST_CHUNK files,
+ * followed by INVENTORY_END with the total.
+ * A Dstore's STORE_ACK may carry the CRC32C of the stored file, and a Dstore that finds a replica corrupt
+ * deletes it and reports REPLICA_CORRUPT so the Controller can restore it from another replica.
+ * A client may declare a hash of the contents with STORE; in dedup mode the Controller answers a STORE of contents
+ * it already holds with STORE_COMPLETE straight away, after sending LINK to the Dstores holding them.
+ * A large file may be erasure-coded instead of replicated: the client uploads it to one coordinating Dstore, which
+ * on ENCODE splits it into k data and m parity fragments, sends one to each Dstore of the list with STORE_FRAGMENT,
+ * deletes its own copy and reports ENCODE_COMPLETE. A holder asked to LOAD the file reads k fragments with
+ * LOAD_FRAGMENT, whose offset and length count from the start of the fragment data, and rebuilds it.
+ * A large file may be uploaded in chunks: STORE_MULTIPART is answered with STORE_PARTS, the chunk size and the indices
+ * of the chunks still to upload. Each chunk is stored like a file named by chunkName, after STORE_PART for its index
+ * is answered with STORE_TO, and completes with its own STORE_COMPLETE, so chunks may be uploaded in parallel and a
+ * failed one retried alone. Repeating STORE_MULTIPART with the same size resumes the upload. COMPLETE_MULTIPART
+ * answers STORE_COMPLETE once every chunk is stored, or STORE_PARTS with the missing ones. LOAD of a chunked file is
+ * answered with LOAD_PARTS, one Dstore per chunk, and RELOAD of a chunk's name offers another Dstore for that chunk.
+ * Chunk names are only taken while their multipart file exists: a client file may have a name ending in '#' and
+ * digits unless it names a chunk of a multipart file, and a multipart upload is refused if one of its chunk names is taken.
+ */
+public final class Protocol {
+  public static final int MAGIC = 0xB1; // First byte of a binary connection
+  public static final int VERSION = 1; // Binary protocol version spoken by this build
+  public static final int MAX_FRAME = 4 * 1024 * 1024; // Largest frame accepted before the connection is dropped
+  public static final int REQUEST_ID_FLAG = 0x80; // Opcode bit marking a frame that carries a request ID
+  public static final long NO_REQUEST = -1; // Request ID of messages sent without one
+  public static final long NO_CHECKSUM = -1; // Checksum of a STORE_ACK sent without one
+  public static final int LIST_CHUNK = 1024; // File names per binary LIST frame, and per flush of a text LIST
+  public static final char CHUNK_SEPARATOR = '#'; // Separates a multipart file's name from a chunk index in the chunk's name
+
+  public static final byte UNKNOWN = 0; // Malformed or unrecognised message
+  public static final byte JOIN = 1; // port
+  public static final byte STORE = 2; // filename size, optional content hash
+  public static final byte STORE_ACK = 3; // filename, optional checksum
+  public static final byte LOAD = 4; // filename
+  public static final byte RELOAD = 5; // filename
+  public static final byte REMOVE = 6; // filename
+  public static final byte REMOVE_ACK = 7; // filename
+  public static final byte LIST = 8; // request: nothing, or prefix cursor limit; reply: count filename* more
+  public static final byte REBALANCE = 9; // text arguments
+  public static final byte REBALANCE_COMPLETE = 10; // nothing
+  public static final byte REBALANCE_STORE = 11; // filename size
+  public static final byte LOAD_DATA = 12; // filename
+  public static final byte ACK = 13; // nothing
+  public static final byte STORE_TO = 14; // count port*
+  public static final byte STORE_COMPLETE = 15; // nothing
+  public static final byte LOAD_FROM = 16; // port size
+  public static final byte REMOVE_COMPLETE = 17; // nothing
+  public static final byte ERROR_FILE_DOES_NOT_EXIST = 18; // filename, optional
+  public static final byte ERROR_FILE_ALREADY_EXISTS = 19; // nothing
+  public static final byte ERROR_NOT_ENOUGH_DSTORES = 20; // nothing
+  public static final byte ERROR_LOAD = 21; // nothing
+  public static final byte ERROR = 22; // text reason
+  public static final byte STORE_MANY = 23; // count (filename size)*
+  public static final byte REMOVE_MANY = 24; // count filename*
+  public static final byte STORE_CHAIN = 25; // filename size count port*
+  public static final byte LOAD_RANGE = 26; // filename offset length
+  public static final byte LOAD_ALL = 27; // filename
+  public static final byte LOAD_FROM_ALL = 28; // size count port*
+  public static final byte LOAD_STATS = 29; // inFlight latencyMicros queueDepth
+  public static final byte INVENTORY = 30; // count (filename size)*
+  public static final byte INVENTORY_END = 31; // total
+  public static final byte REPLICA_CORRUPT = 32; // filename
+  public static final byte LINK = 33; // text arguments: source filename
+  public static final byte ENCODE = 34; // text arguments: filename k m port*
+  public static final byte ENCODE_COMPLETE = 35; // filename
+  public static final byte STORE_FRAGMENT = 36; // filename size
+  public static final byte LOAD_FRAGMENT = 37; // filename offset length
+  public static final byte STORE_MULTIPART = 38; // filename size
+  public static final byte STORE_PARTS = 39; // chunkSize count index*
+  public static final byte STORE_PART = 40; // filename index
+  public static final byte COMPLETE_MULTIPART = 41; // filename
+  public static final byte LOAD_PARTS = 42; // size chunkSize count port*
+
+  private static final String[] VERBS = {
+      null, "JOIN", "STORE", "STORE_ACK", "LOAD", "RELOAD", "REMOVE", "REMOVE_ACK", "LIST", "REBALANCE",
+      "REBALANCE_COMPLETE", "REBALANCE_STORE", "LOAD_DATA", "ACK", "STORE_TO", "STORE_COMPLETE", "LOAD_FROM",
+      "REMOVE_COMPLETE", "ERROR_FILE_DOES_NOT_EXIST", "ERROR_FILE_ALREADY_EXISTS", "ERROR_NOT_ENOUGH_DSTORES",
+      "ERROR_LOAD", "ERROR", "STORE_MANY", "REMOVE_MANY", "STORE_CHAIN", "LOAD_RANGE", "LOAD_ALL",
+      "LOAD_FROM_ALL", "LOAD_STATS", "INVENTORY", "INVENTORY_END", "REPLICA_CORRUPT", "LINK",
+      "ENCODE", "ENCODE_COMPLETE", "STORE_FRAGMENT", "LOAD_FRAGMENT", "STORE_MULTIPART", "STORE_PARTS", "STORE_PART",
+      "COMPLETE_MULTIPART", "LOAD_PARTS"
+  }; // Text verb of every opcode
+
+  private Protocol() {
+  }
+
+  /**
+   * Gets the text verb of an opcode.
+   *
+   * @param opcode the opcode
+   * @return the verb, or null for UNKNOWN and unassigned opcodes
+   */
+  public static String verb(byte opcode) {
+    return opcode > 0 && opcode < VERBS.length ? VERBS[opcode] : null;
+  }
+
+  /**
+   * Find the opcode of the verb in a text message without allocating.
+   *
+   * @param message the text message
+   * @param start   index of the verb in the message
+   * @param length  length of the verb
+   * @return the opcode, or UNKNOWN
+   */
+  public static byte opcodeOf(String message, int start, int length) {
+    for (int opcode = 1; opcode < VERBS.length; opcode++) {
+      if (VERBS[opcode].length() == length && message.regionMatches(start, VERBS[opcode], 0, length)) {
+        return (byte) opcode;
+      }
+    }
+    return UNKNOWN;
+  }
+
+  /**
+   * Gets the name a chunk of a multipart file is stored under.
+   *
+   * @param filename the name of the file
+   * @param index    the index of the chunk
+   * @return the chunk's name, the file name followed by '#' and the index
+   */
+  public static String chunkName(String filename, int index) {
+    return filename + CHUNK_SEPARATOR + index;
+  }
+
+  /**
+   * Gets the chunk index a name would have as the name of a chunk.
+   *
+   * @param name the name
+   * @return the index after the last '#', or -1 if the name does not end with '#' and a chunk index
+   */
+  public static int chunkIndex(String name) {
+    int separator = name.lastIndexOf(CHUNK_SEPARATOR);
+    if (separator <= 0 || separator == name.length() - 1 || name.length() - separator > 10) {
+      return -1;
+    }
+    int index = 0;
+    for (int i = separator + 1; i < name.length(); i++) {
+      char c = name.charAt(i);
+      if (c < '0' || c > '9') {
+        return -1;
+      }
+      index = index * 10 + (c - '0');
+    }
+    return index;
+  }
+
+  /**
+   * Gets the name of the multipart file a chunk name belongs to.
+   *
+   * @param chunkName a name for which chunkIndex is not -1
+   * @return the name before the last '#'
+   */
+  public static String chunkParent(String chunkName) {
+    return chunkName.substring(0, chunkName.lastIndexOf(CHUNK_SEPARATOR));
+  }
+
+  /**
+   * Number of bytes a value takes as a varint.
+   *
+   * @param value a non-negative value
+   * @return the encoded size in bytes
+   */
+  public static int varintSize(long value) {
+    int size = 1;
+    while ((value >>>= 7) != 0) {
+      size++;
+    }
+    return size;
+  }
+
+  /**
+   * Write a non-negative value as a varint.
+   *
+   * @param buffer the buffer to write to
+   * @param value  the value
+   */
+  public static void putVarint(ByteBuffer buffer, long value) {
+    while ((value & ~0x7FL) != 0) {
+      buffer.put((byte) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    buffer.put((byte) value);
+  }
+
+  /**
+   * Read a varint.
+   *
+   * @param buffer the buffer to read from
+   * @return the value
+   * @throws IllegalArgumentException if the varint is longer than 64 bits
+   */
+  public static long getVarint(ByteBuffer buffer) {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      byte b = buffer.get();
+      value |= (long) (b & 0x7F) << shift;
+      if (b >= 0) {
+        return value;
+      }
+    }
+    throw new IllegalArgumentException("Varint too long");
+  }
+
+  /**
+   * Number of bytes a string takes on the wire, assuming ASCII; longer strings are measured when written.
+   *
+   * @param value the string
+   * @return the encoded size in bytes for an ASCII string
+   */
+  public static int stringSize(String value) {
+    return varintSize(value.length()) + value.length();
+  }
+
+  /**
+   * Write a string as a varint byte length followed by UTF-8. ASCII strings are copied without allocating.
+   *
+   * @param buffer the buffer to write to, with room for the encoded string
+   * @param value  the string
+   */
+  public static void putString(ByteBuffer buffer, String value) {
+    int length = value.length();
+    for (int i = 0; i < length; i++) {
+      if (value.charAt(i) >= 0x80) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        putVarint(buffer, bytes.length);
+        buffer.put(bytes);
+        return;
+      }
+    }
+    putVarint(buffer, length);
+    for (int i = 0; i < length; i++) {
+      buffer.put((byte) value.charAt(i));
+    }
+  }
+
+  /**
+   * Read a string written by putString.
+   *
+   * @param buffer the buffer to read from; heap buffers are decoded without copying
+   * @return the string
+   */
+  public static String getString(ByteBuffer buffer) {
+    int length = (int) getVarint(buffer);
+    if (length < 0 || length > buffer.remaining()) {
+      throw new IllegalArgumentException("String longer than frame");
+    }
+    if (!buffer.hasArray()) {
+      byte[] bytes = new byte[length];
+      buffer.get(bytes);
+      return new String(bytes, StandardCharsets.UTF_8);
+    }
+    String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+    buffer.position(buffer.position() + length);
+    return value;
+  }
+
+  /**
+   * Read one frame from a stream. Bytes are read exactly, so data following the frame stays in the stream.
+   *
+   * @param in     the stream to read from
+   * @param buffer buffer to reuse for the frame, or null
+   * @return a buffer holding the frame from its opcode to its end, or null at the end of the stream
+   * @throws IOException if the stream fails, ends inside a frame or the frame is too large
+   */
+  public static ByteBuffer readFrame(InputStream in, ByteBuffer buffer) throws IOException {
+    long length = 0;
+    for (int shift = 0; ; shift += 7) {
+      int b = in.read();
+      if (b == -1) {
+        if (shift == 0) {
+          return null;
+        }
+        throw new EOFException("Connection closed inside a frame");
+      }
+      length |= (long) (b & 0x7F) << shift;
+      if (b < 0x80) {
+        break;
+      }
+      if (shift > 28) {
+        throw new IOException("Frame length too long");
+      }
+    }
+    if (length < 1 || length > MAX_FRAME) {
+      throw new IOException("Invalid frame length: " + length);
+    }
+    if (buffer == null || buffer.capacity() < length) {
+      buffer = ByteBuffer.allocate((int) Math.max(length, 256));
+    }
+    buffer.clear();
+    int read = 0;
+    while (read < length) {
+      int n = in.read(buffer.array(), read, (int) length - read);
+      if (n == -1) {
+        throw new EOFException("Connection closed inside a frame");
+      }
+      read += n;
+    }
+    buffer.limit((int) length);
+    return buffer;
+  }
+
+  /**
+   * A Dstore port encoded once for both protocols, so replies naming Dstores only copy bytes.
+   */
+  public static final class Endpoint {
+    public final int port; // Port the Dstore listens on
+    public final String text; // Port in the text protocol, with its leading space
+    public final byte[] varint; // Port as a varint in the binary protocol
+
+    /**
+     * Constructor for Endpoint.
+     *
+     * @param port the port the Dstore listens on
+     */
+    public Endpoint(int port) {
+      this.port = port;
+      this.text = " " + port;
+      ByteBuffer buffer = ByteBuffer.allocate(varintSize(port));
+      putVarint(buffer, port);
+      this.varint = buffer.array();
+    }
+  }
+}
@@ -0,0 +1,75 @@
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+/**
+ * ProtocolBenchmark compares the cost of the control-plane codecs on the busiest exchange, STORE and its STORE_TO reply.
+ * Parsing a STORE is timed three ways: the String.split parsing the Controller used to do, ControlMessage.parseText,
+ * and ControlMessage.decode of the equivalent binary frame. Encoding STORE_TO is timed for both channels.
+ * Each case reports nanoseconds and bytes allocated per message. Neither parser is allocation-free: the bytes
+ * reported for them are the file name String, which ControlMessage keeps as a String because handlers key maps by it.
+ * Usage: java ProtocolBenchmark [messages]
+ */
+public class ProtocolBenchmark {
+  private static final com.sun.management.ThreadMXBean THREADS =
+      (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean(); // Measures allocation by this thread
+  private static long sink; // Keeps results alive so the JIT cannot drop the work
+
+  /**
+   * Run the benchmark.
+   *
+   * @param args number of messages per case
+   */
+  public static void main(String[] args) {
+    int messages = args.length > 0 ? Integer.parseInt(args[0]) : 5_000_000;
+    String text = "STORE report-2024-q3.csv 1048576";
+    ByteBuffer frame = ByteBuffer.allocate(64);
+    frame.put(Protocol.STORE);
+    Protocol.putString(frame, "report-2024-q3.csv");
+    Protocol.putVarint(frame, 1048576);
+    frame.flip();
+    ControlMessage message = new ControlMessage();
+    Protocol.Endpoint[] endpoints = {new Protocol.Endpoint(13001), new Protocol.Endpoint(13002), new Protocol.Endpoint(13003)};
+    OutputStream discard = OutputStream.nullOutputStream();
+    ControlChannel textChannel = new TextControlChannel(new PrintWriter(discard, true));
+    ControlChannel binaryChannel = new BinaryControlChannel(discard);
+
+    for (int round = 0; round < 2; round++) {  // The first round warms up the JIT
+      boolean print = round == 1;
+      measure(print, "parse split", messages, () -> {
+        String[] parts = text.split(" ");
+        if (parts[0].equals("STORE") && parts.length == 3) {
+          sink += parts[1].length() + Long.parseLong(parts[2]);
+        }
+      });
+      measure(print, "parse text", messages, () -> sink += message.parseText(text).size);
+      measure(print, "parse binary", messages, () -> sink += message.decode(frame.position(0)).size);
+      measure(print, "encode text", messages, () -> textChannel.sendStoreTo(endpoints));
+      measure(print, "encode binary", messages, () -> binaryChannel.sendStoreTo(endpoints));
+    }
+    System.out.println(sink == 42 ? "" : "done");
+  }
+
+  /**
+   * Time one case and print its cost per message.
+   *
+   * @param print    whether to print the result
+   * @param name     name of the case
+   * @param messages number of messages
+   * @param work     the work for one message
+   */
+  private static void measure(boolean print, String name, int messages, Runnable work) {
+    long threadId = Thread.currentThread().threadId();
+    long allocated = THREADS.getThreadAllocatedBytes(threadId);
+    long start = System.nanoTime();
+    for (int i = 0; i < messages; i++) {
+      work.run();
+    }
+    long elapsed = System.nanoTime() - start;
+    allocated = THREADS.getThreadAllocatedBytes(threadId) - allocated;
+    if (print) {
+      System.out.printf("%-14s %7.1f ns/msg  %6.1f bytes/msg%n", name, (double) elapsed / messages, (double) allocated / messages);
+    }
+  }
+}
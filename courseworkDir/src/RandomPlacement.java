@@ -0,0 +1,28 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * RandomPlacement keeps the original behaviour: shuffle the Dstores and take the first r.
+ */
+public class RandomPlacement implements PlacementStrategy {
+  private final List<Integer> dstores = new CopyOnWriteArrayList<>(); // Ports of the live Dstores
+
+  @Override
+  public void addDstore(int port) {
+    dstores.add(port);
+  }
+
+  @Override
+  public void removeDstore(int port) {
+    dstores.remove(Integer.valueOf(port));
+  }
+
+  @Override
+  public List<Integer> select(String filename, long fileSize, int r) {
+    List<Integer> selected = new ArrayList<>(dstores);
+    Collections.shuffle(selected);
+    return selected.subList(0, Math.min(r, selected.size()));
+  }
+}
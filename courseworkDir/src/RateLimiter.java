@@ -0,0 +1,42 @@
+import java.util.concurrent.TimeUnit;
+
+/**
+ * RateLimiter paces a background reader to a number of bytes per second, so it leaves the disk to client transfers.
+ * Time spent idle is not saved up, so a reader that pauses cannot burst afterwards.
+ */
+public class RateLimiter {
+  private final long bytesPerSecond; // Sustained rate allowed
+  private long nextFree = System.nanoTime(); // Time from which the next bytes may be taken, guarded by this
+
+  /**
+   * Constructor for RateLimiter.
+   *
+   * @param bytesPerSecond the sustained rate allowed, greater than zero
+   */
+  public RateLimiter(long bytesPerSecond) {
+    this.bytesPerSecond = bytesPerSecond;
+  }
+
+  /**
+   * Wait until a number of bytes may be taken at the allowed rate.
+   * An interrupt ends the wait early and is left set on the thread.
+   *
+   * @param bytes the number of bytes about to be read
+   */
+  public void acquire(long bytes) {
+    long wait;
+    synchronized (this) {
+      long now = System.nanoTime();
+      nextFree = Math.max(nextFree, now);
+      wait = nextFree - now;
+      nextFree += bytes * TimeUnit.SECONDS.toNanos(1) / bytesPerSecond;
+    }
+    if (wait > 0) {
+      try {
+        TimeUnit.NANOSECONDS.sleep(wait);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+}
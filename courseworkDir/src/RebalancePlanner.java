@@ -0,0 +1,290 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.BiFunction;
+
+/**
+ * RebalancePlanner computes where files should live after a rebalance and the per-Dstore
+ * instructions needed to get there. Dstores are identified by port number.
+ * The plan only touches files that are under- or over-replicated or that have to move
+ * to bring every Dstore within floor/ceil of R*F/N files, so the work is proportional to what changed.
+ * When the placement strategy ranks Dstores for a file, as the hashing strategies do, the file is planned onto
+ * the Dstores it ranks first instead, so a rebalance keeps the strategy's placement rather than undoing it.
+ */
+public class RebalancePlanner {
+
+  private RebalancePlanner() {
+  }
+
+  /**
+   * Compute the target placement of every file that has to change, evening out the number of files per Dstore.
+   *
+   * @param current current placement of every complete file on live Dstores
+   * @param dstores live Dstores
+   * @param r       replication factor
+   * @return target placement of the files that change, in the order they were planned
+   */
+  public static Map<String, Set<Integer>> plan(Map<String, Set<Integer>> current, Collection<Integer> dstores, int r) {
+    return plan(current, dstores, r, (filename, count) -> List.of());
+  }
+
+  /**
+   * Compute the target placement of every file that has to change.
+   * A file the ranking has Dstores for is placed on them; the others are placed to even out the number of files.
+   *
+   * @param current current placement of every complete file on live Dstores
+   * @param dstores live Dstores
+   * @param r       replication factor
+   * @param ranking the Dstores a file should be on, in order of preference, e.g. PlacementStrategy::rank
+   * @return target placement of the files that change, in the order they were planned
+   */
+  public static Map<String, Set<Integer>> plan(Map<String, Set<Integer>> current, Collection<Integer> dstores, int r,
+                                               BiFunction<String, Integer, List<Integer>> ranking) {
+    Map<String, Set<Integer>> target = new HashMap<>();
+    Map<Integer, Integer> load = new TreeMap<>();
+    for (Integer dstore : dstores) {
+      load.put(dstore, 0);
+    }
+    for (Map.Entry<String, Set<Integer>> entry : current.entrySet()) {
+      Set<Integer> holders = new HashSet<>(entry.getValue());
+      holders.retainAll(load.keySet());
+      target.put(entry.getKey(), holders);
+      for (Integer holder : holders) {
+        load.merge(holder, 1, Integer::sum);
+      }
+    }
+
+    int replicas = Math.min(r, load.size());
+    Set<String> ranked = new HashSet<>();
+    for (Map.Entry<String, Set<Integer>> entry : target.entrySet()) {
+      Set<Integer> holders = entry.getValue();
+      if (holders.isEmpty()) {
+        System.out.println("No live replica left for file: " + entry.getKey());
+        continue;
+      }
+      List<Integer> preferred = new ArrayList<>(ranking.apply(entry.getKey(), replicas));
+      preferred.retainAll(load.keySet());
+      if (!preferred.isEmpty()) {
+        ranked.add(entry.getKey());
+        for (Integer holder : holders) {
+          load.merge(holder, -1, Integer::sum);
+        }
+        holders.clear();
+        for (Integer dstore : preferred.subList(0, Math.min(replicas, preferred.size()))) {
+          holders.add(dstore);
+          load.merge(dstore, 1, Integer::sum);
+        }
+      }
+      while (holders.size() > replicas) {
+        Integer busiest = extreme(load, holders, true);
+        holders.remove(busiest);
+        load.merge(busiest, -1, Integer::sum);
+      }
+      while (holders.size() < replicas) {
+        Integer idlest = extreme(load, excluding(load.keySet(), holders), false);
+        holders.add(idlest);
+        load.merge(idlest, 1, Integer::sum);
+      }
+    }
+
+    balance(target, load, ranked);
+
+    Map<String, Set<Integer>> changed = new LinkedHashMap<>();
+    for (Map.Entry<String, Set<Integer>> entry : target.entrySet()) {
+      Set<Integer> before = current.get(entry.getKey());
+      if (!entry.getValue().isEmpty() && !entry.getValue().equals(before)) {
+        changed.put(entry.getKey(), entry.getValue());
+      }
+    }
+    return changed;
+  }
+
+  /**
+   * Move files from the busiest to the idlest Dstore until every Dstore holds floor or ceil of the average.
+   * Files placed by the strategy's ranking stay where it put them.
+   *
+   * @param target target placement, updated in place
+   * @param load   number of files per Dstore, updated in place
+   * @param ranked files placed by the ranking, which are not moved
+   */
+  private static void balance(Map<String, Set<Integer>> target, Map<Integer, Integer> load, Set<String> ranked) {
+    if (load.isEmpty()) {
+      return;
+    }
+    int total = 0;
+    for (int count : load.values()) {
+      total += count;
+    }
+    int floor = total / load.size();
+    int ceil = (total + load.size() - 1) / load.size();
+
+    while (true) {
+      Integer busiest = extreme(load, load.keySet(), true);
+      Integer idlest = extreme(load, load.keySet(), false);
+      if (load.get(busiest) <= ceil && load.get(idlest) >= floor) {
+        return;
+      }
+      String movable = null;
+      for (Map.Entry<String, Set<Integer>> entry : target.entrySet()) {
+        if (!ranked.contains(entry.getKey()) && entry.getValue().contains(busiest) && !entry.getValue().contains(idlest)) {
+          movable = entry.getKey();
+          break;
+        }
+      }
+      if (movable == null) {
+        return;
+      }
+      target.get(movable).remove(busiest);
+      target.get(movable).add(idlest);
+      load.merge(busiest, -1, Integer::sum);
+      load.merge(idlest, 1, Integer::sum);
+    }
+  }
+
+  /**
+   * Group the changes of a plan into one instruction per Dstore.
+   * Each new replica is copied from one of the current holders, spreading the sends across them.
+   *
+   * @param current current placement
+   * @param target  target placement of the files that change
+   * @return instruction for every Dstore that has work to do
+   */
+  public static Map<Integer, Instruction> instructions(Map<String, Set<Integer>> current, Map<String, Set<Integer>> target) {
+    Map<Integer, Instruction> instructions = new TreeMap<>();
+    Map<Integer, Integer> sendsPerDstore = new HashMap<>();
+    for (Map.Entry<String, Set<Integer>> entry : target.entrySet()) {
+      String filename = entry.getKey();
+      Set<Integer> before = current.get(filename);
+      Set<Integer> after = entry.getValue();
+
+      for (Integer receiver : after) {
+        if (before.contains(receiver)) {
+          continue;
+        }
+        Integer sender = extreme(sendsPerDstore, before, false);
+        sendsPerDstore.merge(sender, 1, Integer::sum);
+        instructions.computeIfAbsent(sender, k -> new Instruction()).filesToSend
+            .computeIfAbsent(filename, k -> new ArrayList<>()).add(receiver);
+      }
+      for (Integer holder : before) {
+        if (!after.contains(holder)) {
+          instructions.computeIfAbsent(holder, k -> new Instruction()).filesToRemove.add(filename);
+        }
+      }
+    }
+    return instructions;
+  }
+
+  /**
+   * The copies of a set of instructions, without their removals, to be sent as the first step of a rebalance.
+   *
+   * @param instructions instruction for every Dstore that has work to do
+   * @return instruction for every Dstore that has files to send, with nothing to remove
+   */
+  public static Map<Integer, Instruction> copies(Map<Integer, Instruction> instructions) {
+    Map<Integer, Instruction> copies = new TreeMap<>();
+    for (Map.Entry<Integer, Instruction> entry : instructions.entrySet()) {
+      if (!entry.getValue().filesToSend.isEmpty()) {
+        copies.computeIfAbsent(entry.getKey(), k -> new Instruction()).filesToSend.putAll(entry.getValue().filesToSend);
+      }
+    }
+    return copies;
+  }
+
+  /**
+   * The removals of a set of instructions that are safe once the copies have been made: a file's surplus
+   * replicas are only removed if every Dstore the plan gives it already holds a confirmed copy.
+   *
+   * @param instructions instruction for every Dstore that has work to do
+   * @param target       target placement of the files that change
+   * @param holders      Dstores holding each file after the copies, counting only confirmed copies
+   * @return instruction for every Dstore that has files to remove, with nothing to send
+   */
+  public static Map<Integer, Instruction> removals(Map<Integer, Instruction> instructions, Map<String, Set<Integer>> target,
+                                                   Map<String, Set<Integer>> holders) {
+    Map<Integer, Instruction> removals = new TreeMap<>();
+    for (Map.Entry<Integer, Instruction> entry : instructions.entrySet()) {
+      for (String filename : entry.getValue().filesToRemove) {
+        Set<Integer> held = holders.get(filename);
+        if (held != null && held.containsAll(target.get(filename))) {
+          removals.computeIfAbsent(entry.getKey(), k -> new Instruction()).filesToRemove.add(filename);
+        }
+      }
+    }
+    return removals;
+  }
+
+  /**
+   * Find the Dstore with the most or fewest entries among the candidates, breaking ties by port.
+   *
+   * @param counts     count per Dstore, missing entries count as zero
+   * @param candidates Dstores to choose from
+   * @param most       true for the largest count, false for the smallest
+   * @return the chosen Dstore
+   */
+  private static Integer extreme(Map<Integer, Integer> counts, Collection<Integer> candidates, boolean most) {
+    Integer chosen = null;
+    int chosenCount = 0;
+    for (Integer candidate : candidates) {
+      int count = counts.getOrDefault(candidate, 0);
+      if (chosen == null || (most ? count > chosenCount : count < chosenCount)
+          || (count == chosenCount && candidate < chosen)) {
+        chosen = candidate;
+        chosenCount = count;
+      }
+    }
+    return chosen;
+  }
+
+  /**
+   * Dstores in all but the excluded set.
+   *
+   * @param all      all Dstores
+   * @param excluded Dstores to leave out
+   * @return the remaining Dstores
+   */
+  private static List<Integer> excluding(Collection<Integer> all, Set<Integer> excluded) {
+    List<Integer> remaining = new ArrayList<>();
+    for (Integer dstore : all) {
+      if (!excluded.contains(dstore)) {
+        remaining.add(dstore);
+      }
+    }
+    return remaining;
+  }
+
+  /**
+   * The work one Dstore does in a rebalance: files it sends to other Dstores and files it removes.
+   */
+  public static class Instruction {
+    public final Map<String, List<Integer>> filesToSend = new LinkedHashMap<>(); // File name to the ports it is sent to
+    public final List<String> filesToRemove = new ArrayList<>(); // Files removed after sending
+
+    /**
+     * Format the arguments of the REBALANCE message for this instruction:
+     * files_to_send_count (file port_count port...)* files_to_remove_count file*
+     *
+     * @return the REBALANCE arguments
+     */
+    public String toArguments() {
+      StringBuilder sb = new StringBuilder().append(filesToSend.size());
+      for (Map.Entry<String, List<Integer>> entry : filesToSend.entrySet()) {
+        sb.append(' ').append(entry.getKey()).append(' ').append(entry.getValue().size());
+        for (Integer port : entry.getValue()) {
+          sb.append(' ').append(port);
+        }
+      }
+      sb.append(' ').append(filesToRemove.size());
+      for (String filename : filesToRemove) {
+        sb.append(' ').append(filename);
+      }
+      return sb.toString();
+    }
+  }
+}
@@ -0,0 +1,229 @@
+import java.util.Arrays;
+
+/**
+ * ReedSolomon is a systematic Reed-Solomon erasure code over GF(2^8) with k data and m parity shards.
+ * The data shards are stored as they are and each parity shard is a combination of them given by a Cauchy matrix,
+ * so every k of the k + m shards are enough to rebuild the others. Shards are processed in equal-length cells,
+ * one cell per shard at a time, so a file of any size streams through a fixed amount of memory.
+ */
+public class ReedSolomon {
+  public static final int CELL_SIZE = 64 * 1024; // Bytes of each shard in one stripe
+  private static final int FIELD_SIZE = 256; // Elements of GF(2^8)
+  private static final int POLYNOMIAL = 0x11d; // x^8 + x^4 + x^3 + x^2 + 1, the field's primitive polynomial
+  private static final byte[] EXP = new byte[FIELD_SIZE * 2]; // Powers of the generator, doubled to skip a modulo
+  private static final int[] LOG = new int[FIELD_SIZE]; // Discrete logarithms, LOG[0] unused
+  private static final byte[][] MUL = new byte[FIELD_SIZE][FIELD_SIZE]; // Full multiplication table, 64 KiB
+
+  static {
+    int x = 1;
+    for (int i = 0; i < FIELD_SIZE - 1; i++) {
+      EXP[i] = (byte) x;
+      LOG[x] = i;
+      x <<= 1;
+      if (x >= FIELD_SIZE) {
+        x ^= POLYNOMIAL;
+      }
+    }
+    for (int i = FIELD_SIZE - 1; i < EXP.length; i++) {
+      EXP[i] = EXP[i - (FIELD_SIZE - 1)];
+    }
+    for (int a = 1; a < FIELD_SIZE; a++) {
+      for (int b = 1; b < FIELD_SIZE; b++) {
+        MUL[a][b] = EXP[LOG[a] + LOG[b]];
+      }
+    }
+  }
+
+  private final int dataShards; // k
+  private final int parityShards; // m
+  private final byte[][] parityMatrix; // m x k coefficients of the parity shards
+
+  /**
+   * Constructor for ReedSolomon.
+   *
+   * @param dataShards   number of data shards k, at least 1
+   * @param parityShards number of parity shards m, at least 1
+   */
+  public ReedSolomon(int dataShards, int parityShards) {
+    if (dataShards < 1 || parityShards < 1 || dataShards + parityShards > FIELD_SIZE) {
+      throw new IllegalArgumentException("Unsupported code " + dataShards + "+" + parityShards);
+    }
+    this.dataShards = dataShards;
+    this.parityShards = parityShards;
+    parityMatrix = new byte[parityShards][dataShards];
+    for (int i = 0; i < parityShards; i++) {
+      for (int j = 0; j < dataShards; j++) {
+        parityMatrix[i][j] = inverse((dataShards + i) ^ j);  // Cauchy matrix 1 / (x_i + y_j), with x_i and y_j distinct
+      }
+    }
+  }
+
+  /**
+   * Length of each shard of a file: one cell per stripe, with the last stripe padded with zeros.
+   *
+   * @param fileSize   the size of the file
+   * @param dataShards number of data shards k
+   * @return the shard length in bytes, a multiple of CELL_SIZE
+   */
+  public static long fragmentLength(long fileSize, int dataShards) {
+    long stripe = (long) dataShards * CELL_SIZE;
+    return (fileSize + stripe - 1) / stripe * CELL_SIZE;
+  }
+
+  /**
+   * Gets the number of data shards.
+   *
+   * @return k
+   */
+  public int getDataShards() {
+    return dataShards;
+  }
+
+  /**
+   * Gets the number of parity shards.
+   *
+   * @return m
+   */
+  public int getParityShards() {
+    return parityShards;
+  }
+
+  /**
+   * Compute the parity cells of one stripe.
+   *
+   * @param shards k + m cells; the first k hold data and the last m are overwritten with parity
+   * @param length number of bytes of each cell to use
+   */
+  public void encode(byte[][] shards, int length) {
+    for (int i = 0; i < parityShards; i++) {
+      combine(parityMatrix[i], shards, shards[dataShards + i], length);
+    }
+  }
+
+  /**
+   * Rebuild the missing data cells of one stripe from any k present cells. Parity cells are not rebuilt.
+   *
+   * @param shards  k + m cells, of which at least k are present
+   * @param present which cells hold valid data
+   * @param length  number of bytes of each cell to use
+   */
+  public void decode(byte[][] shards, boolean[] present, int length) {
+    int[] rows = new int[dataShards];
+    int found = 0;
+    for (int i = 0; i < dataShards + parityShards && found < dataShards; i++) {
+      if (present[i]) {
+        rows[found++] = i;
+      }
+    }
+    if (found < dataShards) {
+      throw new IllegalArgumentException("Only " + found + " of " + dataShards + " shards present");
+    }
+    boolean missingData = false;
+    for (int i = 0; i < dataShards; i++) {
+      missingData |= !present[i];
+    }
+    if (!missingData) {
+      return;
+    }
+    byte[][] decodeMatrix = invert(subMatrix(rows));
+    byte[][] inputs = new byte[dataShards][];
+    for (int i = 0; i < dataShards; i++) {
+      inputs[i] = shards[rows[i]];
+    }
+    for (int i = 0; i < dataShards; i++) {
+      if (!present[i]) {
+        combine(decodeMatrix[i], inputs, shards[i], length);
+      }
+    }
+  }
+
+  /**
+   * Gets the rows of the encoding matrix that produced the given shards.
+   *
+   * @param rows indices of k shards
+   * @return the k x k matrix mapping the data shards to those shards
+   */
+  private byte[][] subMatrix(int[] rows) {
+    byte[][] matrix = new byte[dataShards][];
+    for (int i = 0; i < dataShards; i++) {
+      if (rows[i] < dataShards) {
+        matrix[i] = new byte[dataShards];
+        matrix[i][rows[i]] = 1;
+      } else {
+        matrix[i] = parityMatrix[rows[i] - dataShards].clone();
+      }
+    }
+    return matrix;
+  }
+
+  /**
+   * Write a linear combination of cells: output = sum of coefficients[j] * inputs[j].
+   *
+   * @param coefficients one coefficient per input
+   * @param inputs       the input cells
+   * @param output       the cell to overwrite
+   * @param length       number of bytes of each cell to use
+   */
+  private static void combine(byte[] coefficients, byte[][] inputs, byte[] output, int length) {
+    Arrays.fill(output, 0, length, (byte) 0);
+    for (int j = 0; j < coefficients.length; j++) {
+      byte[] table = MUL[coefficients[j] & 0xff];
+      byte[] input = inputs[j];
+      for (int b = 0; b < length; b++) {
+        output[b] ^= table[input[b] & 0xff];
+      }
+    }
+  }
+
+  /**
+   * Invert a square matrix over GF(2^8) by Gauss-Jordan elimination.
+   *
+   * @param matrix the matrix, which is modified
+   * @return the inverse
+   */
+  private static byte[][] invert(byte[][] matrix) {
+    int n = matrix.length;
+    byte[][] inverse = new byte[n][n];
+    for (int i = 0; i < n; i++) {
+      inverse[i][i] = 1;
+    }
+    for (int col = 0; col < n; col++) {
+      int pivot = col;
+      while (matrix[pivot][col] == 0) {
+        pivot++;  // A Cauchy-based code has no singular submatrix, so a pivot always exists
+      }
+      byte[] swap = matrix[pivot];
+      matrix[pivot] = matrix[col];
+      matrix[col] = swap;
+      swap = inverse[pivot];
+      inverse[pivot] = inverse[col];
+      inverse[col] = swap;
+      byte[] scale = MUL[inverse(matrix[col][col] & 0xff) & 0xff];
+      for (int j = 0; j < n; j++) {
+        matrix[col][j] = scale[matrix[col][j] & 0xff];
+        inverse[col][j] = scale[inverse[col][j] & 0xff];
+      }
+      for (int row = 0; row < n; row++) {
+        int factor = matrix[row][col] & 0xff;
+        if (row != col && factor != 0) {
+          byte[] times = MUL[factor];
+          for (int j = 0; j < n; j++) {
+            matrix[row][j] ^= times[matrix[col][j] & 0xff];
+            inverse[row][j] ^= times[inverse[col][j] & 0xff];
+          }
+        }
+      }
+    }
+    return inverse;
+  }
+
+  /**
+   * Multiplicative inverse in GF(2^8).
+   *
+   * @param a a non-zero element
+   * @return 1 / a
+   */
+  private static byte inverse(int a) {
+    return EXP[FIELD_SIZE - 1 - LOG[a]];
+  }
+}
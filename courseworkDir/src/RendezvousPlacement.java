@@ -0,0 +1,46 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * RendezvousPlacement implements highest-random-weight hashing: each Dstore scores a file by
+ * hashing the file name with its port, and the r highest scores win. A JOIN or leave only moves
+ * the files for which the changed Dstore is among the top r.
+ */
+public class RendezvousPlacement implements PlacementStrategy {
+  private final Set<Integer> dstores = ConcurrentHashMap.newKeySet(); // Ports of the live Dstores
+
+  @Override
+  public void addDstore(int port) {
+    dstores.add(port);
+  }
+
+  @Override
+  public void removeDstore(int port) {
+    dstores.remove(port);
+  }
+
+  @Override
+  public List<Integer> select(String filename, long fileSize, int r) {
+    // Min-heap of the r best (score, port) pairs seen so far.
+    PriorityQueue<long[]> best = new PriorityQueue<>(r + 1, (a, b) -> Long.compare(a[0], b[0]));
+    for (Integer port : dstores) {
+      best.add(new long[] {PlacementStrategy.hash(filename, port), port});
+      if (best.size() > r) {
+        best.poll();
+      }
+    }
+    List<Integer> selected = new ArrayList<>(best.size());
+    while (!best.isEmpty()) {
+      selected.add(0, (int) best.poll()[1]);
+    }
+    return selected;
+  }
+
+  @Override
+  public List<Integer> rank(String filename, int r) {
+    return select(filename, 0, r);  // Selection has no side effects, so it doubles as the ranking
+  }
+}
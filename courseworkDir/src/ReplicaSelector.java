@@ -0,0 +1,119 @@
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ReplicaSelector chooses which replica serves a LOAD from the load each Dstore reports in LOAD_STATS
+ * and the LOADs the Controller has sent it since that report.
+ * The policy is read from the system property {@code controller.replicaSelection}:
+ * <ul>
+ *   <li>{@code p2c} (default) samples two candidates and takes the less loaded one;</li>
+ *   <li>{@code least} takes the least loaded candidate;</li>
+ *   <li>{@code random} ignores load, as before.</li>
+ * </ul>
+ * A Dstore is less loaded if it has fewer outstanding transfers (in flight, queued and newly assigned),
+ * with its recent transfer latency breaking ties.
+ */
+public class ReplicaSelector {
+  private final Map<Integer, Load> loads = new ConcurrentHashMap<>(); // Latest load of every Dstore that reported
+  private final String policy; // p2c, least or random
+
+  /**
+   * Constructor for ReplicaSelector.
+   *
+   * @param policy p2c, least or random
+   */
+  public ReplicaSelector(String policy) {
+    if (!"p2c".equals(policy) && !"least".equals(policy) && !"random".equals(policy)) {
+      throw new IllegalArgumentException("Unknown replica selection policy: " + policy);
+    }
+    this.policy = policy;
+  }
+
+  /**
+   * Record a LOAD_STATS report from a Dstore.
+   *
+   * @param dstoreId      the ID of the Dstore
+   * @param inFlight      transfers the Dstore is serving
+   * @param latencyMicros moving average of the Dstore's transfer time in microseconds
+   * @param queueDepth    connections waiting for a handler thread on the Dstore
+   */
+  public void report(int dstoreId, int inFlight, long latencyMicros, int queueDepth) {
+    Load load = loads.computeIfAbsent(dstoreId, id -> new Load());
+    load.reported = inFlight + queueDepth;
+    load.latencyMicros = latencyMicros;
+    load.assigned.set(0);  // The report already counts the transfers assigned before it
+  }
+
+  /**
+   * Forget a Dstore that disconnected.
+   *
+   * @param dstoreId the ID of the Dstore
+   */
+  public void remove(int dstoreId) {
+    loads.remove(dstoreId);
+  }
+
+  /**
+   * Choose a replica and count the LOAD against it until its next report.
+   *
+   * @param candidates IDs of the Dstores that may serve the LOAD, not empty
+   * @return the position of the chosen Dstore in candidates
+   */
+  public int choose(List<Integer> candidates) {
+    int size = candidates.size();
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    int chosen;
+    if (size == 1 || "random".equals(policy)) {
+      chosen = random.nextInt(size);
+    } else if ("p2c".equals(policy)) {
+      int first = random.nextInt(size);
+      int second = random.nextInt(size - 1);
+      if (second >= first) {
+        second++;
+      }
+      chosen = compare(candidates.get(first), candidates.get(second)) <= 0 ? first : second;
+    } else {
+      chosen = random.nextInt(size);  // Random start so ties do not always go to the same Dstore
+      for (int i = 0, candidate = chosen; i < size; i++, candidate = (candidate + 1) % size) {
+        if (compare(candidates.get(candidate), candidates.get(chosen)) < 0) {
+          chosen = candidate;
+        }
+      }
+    }
+    loads.computeIfAbsent(candidates.get(chosen), id -> new Load()).assigned.incrementAndGet();
+    return chosen;
+  }
+
+  /**
+   * Compare the load of two Dstores.
+   *
+   * @param a the ID of the first Dstore
+   * @param b the ID of the second Dstore
+   * @return negative if a is less loaded, positive if b is, zero if they are equal
+   */
+  private int compare(int a, int b) {
+    Load loadA = loads.get(a);
+    Load loadB = loads.get(b);
+    int outstanding = Integer.compare(loadA == null ? 0 : loadA.outstanding(), loadB == null ? 0 : loadB.outstanding());
+    if (outstanding != 0) {
+      return outstanding;
+    }
+    return Long.compare(loadA == null ? 0 : loadA.latencyMicros, loadB == null ? 0 : loadB.latencyMicros);
+  }
+
+  /**
+   * Load signals of one Dstore.
+   */
+  private static final class Load {
+    private volatile int reported; // Transfers in flight and queued at the last report
+    private volatile long latencyMicros; // Moving average of transfer time at the last report
+    private final AtomicInteger assigned = new AtomicInteger(); // LOADs sent to the Dstore since the last report
+
+    int outstanding() {
+      return reported + assigned.get();
+    }
+  }
+}
@@ -0,0 +1,141 @@
+import java.io.PrintWriter;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * TextControlChannel sends control messages as newline-terminated text lines.
+ * Replies to a request with an ID start with "#id ".
+ * Every message is written while holding the connection's lock, so a LIST written piece by piece is never interleaved.
+ * The lock is a ReentrantLock rather than a monitor, so a virtual thread blocked writing does not pin its carrier.
+ */
+public class TextControlChannel implements ControlChannel {
+  private final PrintWriter writer; // Auto-flushing writer of the connection
+  private final ReentrantLock lock; // Held while writing a message, shared by every channel of the connection
+  private final String prefix; // Request ID prefix of every message, empty for untagged messages
+
+  /**
+   * Constructor for TextControlChannel.
+   *
+   * @param writer auto-flushing writer of the connection
+   */
+  public TextControlChannel(PrintWriter writer) {
+    this(writer, new ReentrantLock(), "");
+  }
+
+  private TextControlChannel(PrintWriter writer, ReentrantLock lock, String prefix) {
+    this.writer = writer;
+    this.lock = lock;
+    this.prefix = prefix;
+  }
+
+  @Override
+  public ControlChannel forRequest(long requestId) {
+    return requestId == Protocol.NO_REQUEST ? this : new TextControlChannel(writer, lock, "#" + requestId + " ");
+  }
+
+  @Override
+  public void send(byte opcode) {
+    lock.lock();
+    try {
+      writer.println(prefix + Protocol.verb(opcode));
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void send(byte opcode, String argument) {
+    lock.lock();
+    try {
+      writer.println(prefix + Protocol.verb(opcode) + " " + argument);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void sendStoreTo(Protocol.Endpoint[] endpoints) {
+    StringBuilder sb = new StringBuilder(prefix).append("STORE_TO");
+    for (Protocol.Endpoint endpoint : endpoints) {
+      sb.append(endpoint.text);
+    }
+    lock.lock();
+    try {
+      writer.println(sb);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void sendLoadFrom(Protocol.Endpoint endpoint, long fileSize) {
+    lock.lock();
+    try {
+      writer.println(prefix + "LOAD_FROM" + endpoint.text + " " + fileSize);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void sendLoadFromAll(long fileSize, Protocol.Endpoint[] endpoints) {
+    StringBuilder sb = new StringBuilder(prefix).append("LOAD_FROM_ALL ").append(fileSize);
+    for (Protocol.Endpoint endpoint : endpoints) {
+      sb.append(endpoint.text);
+    }
+    lock.lock();
+    try {
+      writer.println(sb);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void sendParts(long chunkSize, int[] parts) {
+    StringBuilder sb = new StringBuilder(prefix).append("STORE_PARTS ").append(chunkSize).append(' ').append(parts.length);
+    for (int part : parts) {
+      sb.append(' ').append(part);
+    }
+    lock.lock();
+    try {
+      writer.println(sb);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void sendLoadParts(long fileSize, long chunkSize, Protocol.Endpoint[] endpoints) {
+    StringBuilder sb = new StringBuilder(prefix).append("LOAD_PARTS ").append(fileSize).append(' ').append(chunkSize)
+        .append(' ').append(endpoints.length);
+    for (Protocol.Endpoint endpoint : endpoints) {
+      sb.append(endpoint.text);
+    }
+    lock.lock();
+    try {
+      writer.println(sb);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void sendList(Iterable<String> filenames) {
+    lock.lock();
+    try {
+      writer.print(prefix);
+      writer.print("LIST");
+      int count = 0;
+      for (String filename : filenames) {
+        writer.print(' ');
+        writer.print(filename);
+        if (++count % Protocol.LIST_CHUNK == 0) {
+          writer.flush();
+        }
+      }
+      writer.println();
+    } finally {
+      lock.unlock();
+    }
+  }
+}
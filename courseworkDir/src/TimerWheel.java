@@ -0,0 +1,222 @@
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * TimerWheel is a hashed timing wheel for operation deadlines.
+ * Scheduling and cancelling are O(1): new and cancelled timeouts are handed to the wheel thread through queues,
+ * and the wheel thread only visits the bucket of the current tick. Deadlines longer than one turn of the wheel
+ * wait for the required number of rounds in their bucket. Tasks run on the wheel thread and must be short.
+ */
+public class TimerWheel {
+  private final long tickNanos; // Length of one tick
+  private final Bucket[] wheel; // Buckets of timeouts, one per tick of a turn
+  private final int mask; // wheel.length - 1, used to map a tick to its bucket
+  private final Queue<Timeout> newTimeouts = new ConcurrentLinkedQueue<>(); // Timeouts waiting to be placed in a bucket
+  private final Queue<Timeout> cancelledTimeouts = new ConcurrentLinkedQueue<>(); // Timeouts waiting to be unlinked from their bucket
+  private final long startTime; // System.nanoTime() when the wheel started
+  private long tick; // Number of ticks processed so far, only used by the wheel thread
+
+  /**
+   * Constructor for TimerWheel. Starts the wheel thread.
+   *
+   * @param tickMillis length of one tick in milliseconds
+   * @param wheelSize  number of buckets, rounded up to a power of two
+   * @param name       name of the wheel thread
+   */
+  public TimerWheel(long tickMillis, int wheelSize, String name) {
+    this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+    int size = Integer.highestOneBit(Math.max(2, wheelSize) - 1) << 1;
+    this.wheel = new Bucket[size];
+    for (int i = 0; i < size; i++) {
+      wheel[i] = new Bucket();
+    }
+    this.mask = size - 1;
+    this.startTime = System.nanoTime();
+    Thread worker = new Thread(this::run, name);
+    worker.setDaemon(true);
+    worker.start();
+  }
+
+  /**
+   * Schedule a task to run after a delay.
+   *
+   * @param task        the task to run
+   * @param delayMillis the delay in milliseconds
+   * @return a handle that can cancel the task
+   */
+  public Timeout schedule(Runnable task, long delayMillis) {
+    Timeout timeout = new Timeout(this, task, System.nanoTime() - startTime + TimeUnit.MILLISECONDS.toNanos(delayMillis));
+    newTimeouts.add(timeout);
+    return timeout;
+  }
+
+  /**
+   * Main loop of the wheel thread.
+   */
+  private void run() {
+    while (true) {
+      long deadline = tickNanos * (tick + 1);
+      long sleepNanos = deadline - (System.nanoTime() - startTime);
+      if (sleepNanos > 0) {
+        try {
+          TimeUnit.NANOSECONDS.sleep(sleepNanos);
+        } catch (InterruptedException e) {
+          return;
+        }
+        continue;
+      }
+      unlinkCancelled();
+      placeNew();
+      wheel[(int) (tick & mask)].expire(deadline);
+      tick++;
+    }
+  }
+
+  /**
+   * Move newly scheduled timeouts into their buckets.
+   */
+  private void placeNew() {
+    Timeout timeout;
+    while ((timeout = newTimeouts.poll()) != null) {
+      if (timeout.state != Timeout.PENDING) {
+        continue;
+      }
+      long targetTick = Math.max(timeout.deadline / tickNanos, tick);
+      timeout.remainingRounds = (targetTick - tick) / wheel.length;
+      wheel[(int) (targetTick & mask)].add(timeout);
+    }
+  }
+
+  /**
+   * Unlink cancelled timeouts from their buckets.
+   */
+  private void unlinkCancelled() {
+    Timeout timeout;
+    while ((timeout = cancelledTimeouts.poll()) != null) {
+      if (timeout.bucket != null) {
+        timeout.bucket.remove(timeout);
+      }
+    }
+  }
+
+  /**
+   * A scheduled task. Cancelling it before it runs prevents it from running.
+   */
+  public static final class Timeout {
+    private static final int PENDING = 0; // Scheduled and not yet run or cancelled
+    private static final int CANCELLED = 1; // Cancelled before it ran
+    private static final int EXPIRED = 2; // Ran, or is running
+    private static final AtomicIntegerFieldUpdater<Timeout> STATE =
+        AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state"); // CAS access to state
+
+    private final TimerWheel timerWheel; // Wheel the timeout belongs to
+    private final Runnable task; // Task to run at the deadline
+    private final long deadline; // Deadline in nanoseconds since the wheel started
+    private volatile int state = PENDING; // PENDING, CANCELLED or EXPIRED
+    private long remainingRounds; // Turns of the wheel left before the deadline, only used by the wheel thread
+    private Bucket bucket; // Bucket holding the timeout, only used by the wheel thread
+    private Timeout prev; // Previous timeout in the bucket
+    private Timeout next; // Next timeout in the bucket
+
+    private Timeout(TimerWheel timerWheel, Runnable task, long deadline) {
+      this.timerWheel = timerWheel;
+      this.task = task;
+      this.deadline = deadline;
+    }
+
+    /**
+     * Cancel the task if it has not run yet.
+     *
+     * @return true if this call cancelled the task
+     */
+    public boolean cancel() {
+      if (!STATE.compareAndSet(this, PENDING, CANCELLED)) {
+        return false;
+      }
+      timerWheel.cancelledTimeouts.add(this);
+      return true;
+    }
+
+    /**
+     * Run the task if it has not been cancelled.
+     */
+    private void expire() {
+      if (!STATE.compareAndSet(this, PENDING, EXPIRED)) {
+        return;
+      }
+      try {
+        task.run();
+      } catch (RuntimeException e) {
+        System.out.println("Timeout task failed: " + e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Doubly linked list of the timeouts hashed to one tick of the wheel. Only used by the wheel thread.
+   */
+  private static final class Bucket {
+    private Timeout head; // First timeout in the bucket
+    private Timeout tail; // Last timeout in the bucket
+
+    /**
+     * Append a timeout to the bucket.
+     *
+     * @param timeout the timeout
+     */
+    void add(Timeout timeout) {
+      timeout.bucket = this;
+      if (head == null) {
+        head = tail = timeout;
+      } else {
+        tail.next = timeout;
+        timeout.prev = tail;
+        tail = timeout;
+      }
+    }
+
+    /**
+     * Unlink a timeout from the bucket.
+     *
+     * @param timeout the timeout
+     */
+    void remove(Timeout timeout) {
+      if (timeout.prev != null) {
+        timeout.prev.next = timeout.next;
+      } else {
+        head = timeout.next;
+      }
+      if (timeout.next != null) {
+        timeout.next.prev = timeout.prev;
+      } else {
+        tail = timeout.prev;
+      }
+      timeout.prev = null;
+      timeout.next = null;
+      timeout.bucket = null;
+    }
+
+    /**
+     * Run the timeouts due by the end of the current tick and count down the rounds of the others.
+     *
+     * @param tickDeadline end of the current tick in nanoseconds since the wheel started
+     */
+    void expire(long tickDeadline) {
+      Timeout timeout = head;
+      while (timeout != null) {
+        Timeout next = timeout.next;
+        if (timeout.remainingRounds <= 0 && timeout.deadline <= tickDeadline) {
+          remove(timeout);
+          timeout.expire();
+        } else if (timeout.state == Timeout.CANCELLED) {
+          remove(timeout);
+        } else {
+          timeout.remainingRounds--;
+        }
+        timeout = next;
+      }
+    }
+  }
+}
@@ -0,0 +1,77 @@
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * TransferMetrics accumulates the bytes and time spent on one kind of data transfer,
+ * so the throughput of different send paths can be compared.
+ */
+public class TransferMetrics {
+  private final String name; // Name of the transfer path
+  private final LongAdder transfers = new LongAdder(); // Number of completed transfers
+  private final LongAdder bytes = new LongAdder(); // Total bytes transferred
+  private final LongAdder nanos = new LongAdder(); // Total time spent transferring
+
+  /**
+   * Constructor for TransferMetrics.
+   *
+   * @param name the name of the transfer path
+   */
+  public TransferMetrics(String name) {
+    this.name = name;
+  }
+
+  /**
+   * Record a completed transfer.
+   *
+   * @param byteCount   number of bytes transferred
+   * @param elapsedNano time the transfer took in nanoseconds
+   */
+  public void record(long byteCount, long elapsedNano) {
+    transfers.increment();
+    bytes.add(byteCount);
+    nanos.add(elapsedNano);
+  }
+
+  /**
+   * Gets the number of completed transfers.
+   *
+   * @return the number of transfers
+   */
+  public long getTransfers() {
+    return transfers.sum();
+  }
+
+  /**
+   * Gets the total number of bytes transferred.
+   *
+   * @return the number of bytes
+   */
+  public long getBytes() {
+    return bytes.sum();
+  }
+
+  /**
+   * Gets the average throughput over all recorded transfers.
+   *
+   * @return bytes per second, or 0 if nothing has been recorded
+   */
+  public double getBytesPerSecond() {
+    long elapsed = nanos.sum();
+    return elapsed == 0 ? 0 : bytes.sum() * 1_000_000_000.0 / elapsed;
+  }
+
+  /**
+   * Throughput of a single transfer.
+   *
+   * @param byteCount   number of bytes transferred
+   * @param elapsedNano time the transfer took in nanoseconds
+   * @return bytes per second
+   */
+  public static double bytesPerSecond(long byteCount, long elapsedNano) {
+    return elapsedNano == 0 ? 0 : byteCount * 1_000_000_000.0 / elapsedNano;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%s: %d transfers, %d bytes, %.1f MB/s", name, getTransfers(), getBytes(), getBytesPerSecond() / (1024 * 1024));
+  }
+}